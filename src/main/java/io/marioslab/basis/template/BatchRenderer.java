@@ -0,0 +1,215 @@
+
+package io.marioslab.basis.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>
+ * Renders a template once for each element of a source of variable maps, e.g. a newsletter for each recipient, on a number of
+ * worker threads. The variables of an element are set on top of a base context holding the variables shared by all elements,
+ * which is not copied. A template may assign shared variables, which only affects the element it is rendered for. The output of
+ * each element is passed to a {@link Sink}.
+ * </p>
+ *
+ * <p>
+ * Each worker renders into its own buffer with its own context, forked from the base context, and reuses both for all elements
+ * it renders. If the renderer is {@link #ordered(boolean) ordered}, the sink receives the output in the order of the source. To
+ * bound the memory used for output that is rendered ahead, workers wait before taking the next element if it is too far ahead of
+ * the oldest element not passed to the sink yet.
+ * </p>
+ *
+ * <pre>
+ * new BatchRenderer(template).context(base).threads(8).render(recipients, (index, variables, output, length) -&gt; {
+ * 	mailer.send((String)variables.get("email"), new String(output, 0, length, "UTF-8"));
+ * });
+ * </pre>
+ **/
+public class BatchRenderer {
+	private final Template template;
+	private TemplateContext context = new TemplateContext();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean ordered = true;
+
+	public BatchRenderer (Template template) {
+		this.template = template;
+	}
+
+	/** Sets the context holding the variables shared by all elements. It must not be modified while rendering. Defaults to an
+	 * empty context. **/
+	public BatchRenderer context (TemplateContext context) {
+		this.context = context;
+		return this;
+	}
+
+	/** Sets the number of threads rendering elements, including the thread calling {@link #render(Iterator, Sink)}. Defaults to
+	 * the number of available processors. **/
+	public BatchRenderer threads (int threads) {
+		if (threads <= 0) throw new IllegalArgumentException("threads must be > 0.");
+		this.threads = threads;
+		return this;
+	}
+
+	/** Sets whether the sink receives the output in the order of the source. Otherwise, the output is passed to the sink as soon
+	 * as it is rendered, without copying it. Defaults to true. **/
+	public BatchRenderer ordered (boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	/** See {@link #render(Iterator, Sink)}. **/
+	public long render (Iterable<? extends Map<String, ?>> source, Sink sink) throws IOException {
+		return render(source.iterator(), sink);
+	}
+
+	/** Renders the template for each element of the source and passes the output to the sink. The source is only accessed by one
+	 * thread at a time, and the sink is only called by one thread at a time. Returns the number of rendered elements. If
+	 * rendering an element, the source or the sink fails, the remaining elements are not rendered and the error is rethrown. **/
+	public long render (Iterator<? extends Map<String, ?>> source, Sink sink) throws IOException {
+		Run run = new Run(source, sink);
+		Thread[] workers = new Thread[threads - 1];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(run::work, "basis-template-batch");
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		run.work();
+		for (Thread worker : workers) {
+			while (true) {
+				try {
+					worker.join();
+					break;
+				} catch (InterruptedException e) {
+					run.fail(new InterruptedIOException("Interrupted while rendering batch."));
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return run.finish();
+	}
+
+	/** Receives the output of the elements of a batch. **/
+	public interface Sink {
+		/** Called with the output of the element at the given index of the source, as UTF-8. Only the first length bytes of the
+		 * output array are valid. The array is reused for other elements once this method returns. **/
+		public void accept (long index, Map<String, ?> variables, byte[] output, int length) throws IOException;
+	}
+
+	/** The state of a call to {@link BatchRenderer#render(Iterator, Sink)}. **/
+	private class Run {
+		private final Iterator<? extends Map<String, ?>> source;
+		private final Sink sink;
+		/** The maximum number of elements that are rendered ahead of the oldest element not passed to the sink. **/
+		private final int window = threads * 4;
+		/** Guards the source and the indices, and is notified when an element is passed to the sink or an error occurs. **/
+		private final Object lock = new Object();
+		/** Guards the sink and the pending output. **/
+		private final Object sinkLock = new Object();
+		private final Map<Long, Pending> pending = new HashMap<Long, Pending>();
+		private long nextIndex;
+		private long delivered;
+		private Throwable failure;
+
+		Run (Iterator<? extends Map<String, ?>> source, Sink sink) {
+			this.source = source;
+			this.sink = sink;
+		}
+
+		void work () {
+			try {
+				TemplateContext context = BatchRenderer.this.context.forkShadowing();
+				Buffer out = new Buffer();
+				while (true) {
+					Map<String, ?> variables;
+					long index;
+					synchronized (lock) {
+						while (ordered && failure == null && nextIndex - delivered >= window)
+							lock.wait();
+						if (failure != null || !source.hasNext()) return;
+						variables = source.next();
+						index = nextIndex++;
+					}
+
+					out.reset();
+					context.push();
+					try {
+						for (Map.Entry<String, ?> variable : variables.entrySet())
+							context.setOnCurrentScope(variable.getKey(), variable.getValue());
+						template.render(context, out);
+					} finally {
+						context.pop();
+					}
+
+					if (ordered)
+						deliver(index, new Pending(variables, out.toByteArray()));
+					else {
+						synchronized (sinkLock) {
+							sink.accept(index, variables, out.getBytes(), out.size());
+						}
+					}
+				}
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/** Passes the output and all pending output following it to the sink, if all output preceding it has been passed. **/
+		private void deliver (long index, Pending output) throws IOException {
+			synchronized (sinkLock) {
+				pending.put(index, output);
+				Pending next;
+				while ((next = pending.remove(delivered)) != null) {
+					sink.accept(delivered, next.variables, next.output, next.output.length);
+					synchronized (lock) {
+						delivered++;
+						lock.notifyAll();
+					}
+				}
+			}
+		}
+
+		void fail (Throwable t) {
+			synchronized (lock) {
+				if (failure == null) failure = t;
+				lock.notifyAll();
+			}
+		}
+
+		/** Rethrows the first error, or returns the number of rendered elements. **/
+		long finish () throws IOException {
+			synchronized (lock) {
+				if (failure instanceof IOException) throw (IOException)failure;
+				if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+				if (failure instanceof java.lang.Error) throw (java.lang.Error)failure;
+				if (failure != null) throw new RuntimeException("Couldn't render batch, " + failure.getMessage(), failure);
+				return nextIndex;
+			}
+		}
+	}
+
+	private static class Pending {
+		final Map<String, ?> variables;
+		final byte[] output;
+
+		Pending (Map<String, ?> variables, byte[] output) {
+			this.variables = variables;
+			this.output = output;
+		}
+	}
+
+	/** A byte array output stream exposing its array, so output that is consumed immediately doesn't have to be copied. Also used
+	 * by {@link SiteGenerator}. **/
+	static class Buffer extends ByteArrayOutputStream {
+		Buffer () {
+			super(2 * 1024);
+		}
+
+		byte[] getBytes () {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+
+package io.marioslab.basis.template;
+
+import java.util.Collections;
+import java.util.Set;
+
+import io.marioslab.basis.template.parsing.DependencyAnalyzer;
+
+/**
+ * <p>
+ * The variables and member paths of a {@link TemplateContext} a template and the templates it includes can read, as returned by
+ * {@link Template#getDependencies()}. Computed statically by the {@link DependencyAnalyzer}, without rendering the template.
+ * </p>
+ *
+ * <p>
+ * A path starts with the name of a context variable, followed by the names of the fields or map entries read from its value,
+ * e.g. <code>user.name</code>. Elements of arrays, lists and maps read via loops or via <code>[]</code> with a key that isn't a
+ * string literal are denoted by <code>[*]</code>, e.g. <code>cart.items[*].price</code>. A path is included if the template
+ * reads the value at the path, which implies reading all prefixes of the path. Values returned by functions and methods are not
+ * tracked, calling a method on a value reads the value as a whole.
+ * </p>
+ **/
+public class Dependencies {
+	private final Set<String> variables;
+	private final Set<String> paths;
+
+	/** Internal. Created by {@link DependencyAnalyzer}. **/
+	public Dependencies (Set<String> variables, Set<String> paths) {
+		this.variables = Collections.unmodifiableSet(variables);
+		this.paths = Collections.unmodifiableSet(paths);
+	}
+
+	/** Returns the names of the context variables the template can read. **/
+	public Set<String> getVariables () {
+		return variables;
+	}
+
+	/** Returns the paths the template can read, see {@link Dependencies}. **/
+	public Set<String> getPaths () {
+		return paths;
+	}
+
+	@Override
+	public String toString () {
+		return paths.toString();
+	}
+}
@@ -0,0 +1,363 @@
+
+package io.marioslab.basis.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import io.marioslab.basis.template.Error.TemplateException;
+import io.marioslab.basis.template.TemplateContext.PrimitiveValue;
+import io.marioslab.basis.template.TemplateLoader.Source;
+import io.marioslab.basis.template.interpreter.AstInterpreter;
+import io.marioslab.basis.template.parsing.Ast.Expression;
+import io.marioslab.basis.template.parsing.Ast.Include;
+import io.marioslab.basis.template.parsing.Ast.Node;
+import io.marioslab.basis.template.parsing.Ast.UnexpectedResultException;
+import io.marioslab.basis.template.parsing.Parser;
+import io.marioslab.basis.template.parsing.Parser.Macros;
+import io.marioslab.basis.template.parsing.Specializer;
+
+/**
+ * <p>
+ * Compiles and evaluates single expressions of the template language outside of a template, e.g. routing rules or feature flags
+ * like <code>user.country == "AT" && user.age >= 18</code>. An expression is written without enclosing <code>{{ }}</code>.
+ * Variables are looked up in the {@link TemplateContext} passed to {@link CompiledExpression#evaluate(TemplateContext)}, and
+ * assignments like <code>a = 1</code> set variables on it. Operations on constant operands are evaluated once when the
+ * expression is compiled.
+ * </p>
+ *
+ * <p>
+ * To evaluate an expression for many rows of values at once, e.g. a pricing rule for all items of a catalog, pass the values of
+ * the variables as columns via a {@link Batch}, see {@link CompiledExpression#evaluate(Batch, double[])}.
+ * </p>
+ *
+ * <p>
+ * Compiled expressions are cached by their source. The cache holds at most {@link #getCacheSize()} expressions, evicting the
+ * least recently used ones. A {@link CompiledExpression} is thread-safe and can be kept and evaluated repeatedly instead of
+ * looking it up in the cache for every evaluation.
+ * </p>
+ **/
+public class Expressions {
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write (int b) throws IOException {
+		}
+	};
+
+	/** The template expressions are evaluated with. It has no macros, so calls only resolve to functions in the context. **/
+	private static final Template TEMPLATE = new Template(new ArrayList<Node>(), new Macros(), new ArrayList<Include>());
+
+	private static int cacheSize = 1024;
+	private static final LinkedHashMap<String, CompiledExpression> cache = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry (Map.Entry<String, CompiledExpression> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	/** Sets the maximum number of compiled expressions cached by {@link #compile(String)}. Defaults to 1024. Setting it to 0
+	 * disables caching. **/
+	public static void setCacheSize (int size) {
+		synchronized (cache) {
+			cacheSize = size;
+			while (cache.size() > size)
+				cache.remove(cache.keySet().iterator().next());
+		}
+	}
+
+	/** Returns the maximum number of compiled expressions cached by {@link #compile(String)}. **/
+	public static int getCacheSize () {
+		synchronized (cache) {
+			return cacheSize;
+		}
+	}
+
+	/** Returns the compiled expression for the source, from the cache if it has been compiled before. Throws a
+	 * {@link io.marioslab.basis.template.Error.TemplateException} if the source is not a valid expression. **/
+	public static CompiledExpression compile (String source) {
+		synchronized (cache) {
+			CompiledExpression expression = cache.get(source);
+			if (expression != null) return expression;
+		}
+		CompiledExpression expression = new CompiledExpression(source,
+			Specializer.prerender(new Parser().parseExpression(new Source("expression", source)), TEMPLATE));
+		synchronized (cache) {
+			if (cacheSize > 0) cache.put(source, expression);
+		}
+		return expression;
+	}
+
+	/** Compiles the source, see {@link #compile(String)}, and evaluates it with the context. **/
+	public static Object evaluate (String source, TemplateContext context) {
+		return compile(source).evaluate(context);
+	}
+
+	/** An expression compiled by {@link Expressions#compile(String)}. **/
+	public static class CompiledExpression {
+		private final String source;
+		private final Expression expression;
+
+		CompiledExpression (String source, Expression expression) {
+			this.source = source;
+			this.expression = expression;
+		}
+
+		/** Returns the source the expression was compiled from. **/
+		public String getSource () {
+			return source;
+		}
+
+		/** Internal. Returns the AST of the expression. **/
+		public Expression getExpression () {
+			return expression;
+		}
+
+		/** Evaluates the expression using the context to resolve variable values, and returns its value. Any error is reported as a
+		 * {@link TemplateException}. **/
+		public Object evaluate (TemplateContext context) {
+			try {
+				return expression.evaluate(TEMPLATE, context, NULL_OUTPUT);
+			} catch (Throwable t) {
+				if (t instanceof TemplateException)
+					throw (TemplateException)t;
+				else {
+					Error.error("Couldn't evaluate expression, " + t.getMessage(), expression.getSpan(), t);
+					return null; // never reached
+				}
+			}
+		}
+
+		/** Evaluates the expression for each row of the batch and stores the values in the result array, which must have at least
+		 * {@link Batch#getSize()} elements. Values of other numeric types are converted to double. **/
+		public void evaluate (Batch batch, double[] result) {
+			batch.evaluate(expression, result, PrimitiveValue.DOUBLE);
+		}
+
+		/** Evaluates the expression for each row of the batch and stores the values in the result array. Values of other integer
+		 * types are converted to long. **/
+		public void evaluate (Batch batch, long[] result) {
+			batch.evaluate(expression, result, PrimitiveValue.LONG);
+		}
+
+		/** Evaluates the expression for each row of the batch and stores the values in the result array. Values of the integer types
+		 * byte and short are converted to int. **/
+		public void evaluate (Batch batch, int[] result) {
+			batch.evaluate(expression, result, PrimitiveValue.INT);
+		}
+
+		/** Evaluates the expression for each row of the batch and stores the values in the result array, e.g. to filter rows. **/
+		public void evaluate (Batch batch, boolean[] result) {
+			batch.evaluate(expression, result, PrimitiveValue.BOOLEAN);
+		}
+
+		/** Evaluates the expression for each row of the batch and stores the values in the result array. **/
+		public void evaluate (Batch batch, Object[] result) {
+			batch.evaluate(expression, result, -1);
+		}
+
+		@Override
+		public String toString () {
+			return source;
+		}
+	}
+
+	/**
+	 * <p>
+	 * The values of the variables of an expression for a number of rows, stored in columns, to evaluate a
+	 * {@link CompiledExpression} for all rows at once. A column is an array holding the value of a variable for each row.
+	 * Elements of primitive arrays are bound to the variable without boxing them. Variables that have the same value for all rows
+	 * are looked up in the context the batch was created with.
+	 * </p>
+	 *
+	 * <p>
+	 * Whether the expression can be evaluated to the primitive type of the result array without boxing is decided on the first
+	 * row. If it can't, e.g. because an int column is multiplied with a double column, all remaining rows are evaluated on the
+	 * generic path and their values converted. If the batch is {@link #parallel(boolean) parallel}, the rows are split into chunks
+	 * that are evaluated concurrently on {@link AstInterpreter#getForkJoinPool()}.
+	 * </p>
+	 **/
+	public static class Batch {
+		private final int size;
+		private final TemplateContext context;
+		private final List<String> names = new ArrayList<String>();
+		private final List<Object> columns = new ArrayList<Object>();
+		private boolean parallel;
+
+		/** Creates a batch of the given number of rows. **/
+		public Batch (int size) {
+			this(size, new TemplateContext());
+		}
+
+		/** Creates a batch of the given number of rows, looking up variables that aren't columns in the context. The context must
+		 * not be modified while the batch is evaluated. **/
+		public Batch (int size, TemplateContext context) {
+			if (size < 0) throw new IllegalArgumentException("size must be >= 0.");
+			this.size = size;
+			this.context = context;
+		}
+
+		/** Sets the values of the variable for each row. The column must be an array of primitives or objects with at least
+		 * {@link #getSize()} elements. **/
+		public Batch column (String name, Object column) {
+			if (column == null || !column.getClass().isArray()) throw new IllegalArgumentException("Column '" + name + "' must be an array.");
+			if (Array.getLength(column) < size) throw new IllegalArgumentException("Column '" + name + "' has less than " + size + " rows.");
+			int index = names.indexOf(name);
+			if (index != -1) {
+				columns.set(index, column);
+			} else {
+				names.add(name);
+				columns.add(column);
+			}
+			return this;
+		}
+
+		/** Sets whether the rows are evaluated concurrently in chunks. The expression must not assign variables then. Defaults to
+		 * false. **/
+		public Batch parallel (boolean parallel) {
+			this.parallel = parallel;
+			return this;
+		}
+
+		/** Returns the number of rows. **/
+		public int getSize () {
+			return size;
+		}
+
+		/** Evaluates the expression for each row, storing the values in the result array. The type is one of the types of
+		 * {@link PrimitiveValue}, or -1 for an object array. **/
+		void evaluate (Expression expression, Object result, int type) {
+			if (Array.getLength(result) < size) throw new IllegalArgumentException("The result array has less than " + size + " elements.");
+			if (size == 0) return;
+			if (!parallel) {
+				context.push();
+				try {
+					evaluateChunk(expression, result, type, 0, size, context);
+				} finally {
+					context.pop();
+				}
+				return;
+			}
+
+			ForkJoinPool pool = AstInterpreter.getForkJoinPool();
+			int numChunks = Math.min(size, pool.getParallelism() * 4);
+			List<ForkJoinTask<?>> chunks = new ArrayList<ForkJoinTask<?>>(numChunks);
+			try {
+				for (int i = 0; i < numChunks; i++) {
+					int start = (int)((long)size * i / numChunks);
+					int end = (int)((long)size * (i + 1) / numChunks);
+					chunks.add(pool.submit( () -> evaluateChunk(expression, result, type, start, end, context.fork())));
+				}
+				for (ForkJoinTask<?> chunk : chunks)
+					chunk.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Error.error("Interrupted while evaluating batch.", expression.getSpan(), e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if (cause instanceof java.lang.Error) throw (java.lang.Error)cause;
+				Error.error("Couldn't evaluate batch, " + cause.getMessage(), expression.getSpan(), cause);
+			} finally {
+				for (ForkJoinTask<?> chunk : chunks)
+					chunk.cancel(false);
+			}
+		}
+
+		private void evaluateChunk (Expression expression, Object result, int type, int start, int end, TemplateContext context) {
+			int numColumns = names.size();
+			String[] names = this.names.toArray(new String[numColumns]);
+			Object[] columns = this.columns.toArray();
+			PrimitiveValue[] values = new PrimitiveValue[numColumns];
+			for (int i = 0; i < numColumns; i++) {
+				Class<?> componentType = columns[i].getClass().getComponentType();
+				if (componentType.isPrimitive()) values[i] = context.setPrimitiveOnCurrentScope(names[i], PrimitiveValue.getType(componentType));
+			}
+
+			boolean specialized = type != -1;
+			try {
+				for (int row = start; row < end; row++) {
+					for (int i = 0; i < numColumns; i++) {
+						PrimitiveValue value = values[i];
+						if (value == null) {
+							context.setOnCurrentScope(names[i], ((Object[])columns[i])[row]);
+							continue;
+						}
+						value.set(columns[i], row);
+						// the holder must be stored again if the expression assigned the variable
+						if (value.isDetached()) {
+							value.attach();
+							context.setOnCurrentScope(names[i], value);
+						}
+					}
+
+					if (specialized) {
+						try {
+							evaluateSpecialized(expression, result, type, row, context);
+							continue;
+						} catch (UnexpectedResultException e) {
+							specialized = false;
+							store(expression, result, type, row, e.getResult());
+							continue;
+						}
+					}
+					store(expression, result, type, row, expression.evaluate(TEMPLATE, context, NULL_OUTPUT));
+				}
+			} catch (IOException e) {
+				Error.error("Couldn't evaluate expression, " + e.getMessage(), expression.getSpan());
+			}
+		}
+
+		private static void evaluateSpecialized (Expression expression, Object result, int type, int row, TemplateContext context) throws IOException {
+			switch (type) {
+			case PrimitiveValue.DOUBLE:
+				((double[])result)[row] = expression.evaluateDouble(TEMPLATE, context, NULL_OUTPUT);
+				break;
+			case PrimitiveValue.LONG:
+				((long[])result)[row] = expression.evaluateLong(TEMPLATE, context, NULL_OUTPUT);
+				break;
+			case PrimitiveValue.INT:
+				((int[])result)[row] = expression.evaluateInt(TEMPLATE, context, NULL_OUTPUT);
+				break;
+			default:
+				((boolean[])result)[row] = expression.evaluateBoolean(TEMPLATE, context, NULL_OUTPUT);
+				break;
+			}
+		}
+
+		/** Converts the value to the type of the result array and stores it, or reports an error if it can't be converted. **/
+		private static void store (Expression expression, Object result, int type, int row, Object value) {
+			switch (type) {
+			case PrimitiveValue.DOUBLE:
+				if (!(value instanceof Number)) Error.error("Expected a number in row " + row + ", got " + value + ".", expression.getSpan());
+				((double[])result)[row] = ((Number)value).doubleValue();
+				break;
+			case PrimitiveValue.LONG:
+				if (!(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte))
+					Error.error("Expected an integer in row " + row + ", got " + value + ".", expression.getSpan());
+				((long[])result)[row] = ((Number)value).longValue();
+				break;
+			case PrimitiveValue.INT:
+				if (!(value instanceof Integer || value instanceof Short || value instanceof Byte))
+					Error.error("Expected an int in row " + row + ", got " + value + ".", expression.getSpan());
+				((int[])result)[row] = ((Number)value).intValue();
+				break;
+			case PrimitiveValue.BOOLEAN:
+				if (!(value instanceof Boolean)) Error.error("Expected a boolean in row " + row + ", got " + value + ".", expression.getSpan());
+				((boolean[])result)[row] = (Boolean)value;
+				break;
+			default:
+				((Object[])result)[row] = value;
+				break;
+			}
+		}
+	}
+}
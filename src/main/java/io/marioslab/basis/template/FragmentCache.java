@@ -0,0 +1,213 @@
+
+package io.marioslab.basis.template;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.marioslab.basis.template.interpreter.AstInterpreter;
+
+/** A fragment cache stores the output of <code>cache key ... end</code> blocks, keyed by the value of the key expression. The
+ * cache used by templates is set via {@link AstInterpreter#setFragmentCache(FragmentCache)}. See {@link BoundedFragmentCache} for
+ * the default in-process implementation. Implementations may be backed by a store shared between processes, and must be
+ * thread-safe. */
+public interface FragmentCache {
+
+	/** Returns the cached output for the key, or null if there is none or if it has expired. **/
+	public byte[] get (Object key);
+
+	/** Stores the output for the key. The output expires after the given number of milliseconds, or never if the time to live is
+	 * zero or less. The output array must not be modified afterwards. **/
+	public void put (Object key, byte[] output, long ttlMillis);
+
+	/** Removes the output for the key. **/
+	public void remove (Object key);
+
+	/** Removes all cached output. **/
+	public void clear ();
+
+	/**
+	 * <p>
+	 * A fragment cache bounded by the total number of bytes of the cached output. If the limit is exceeded, the least recently used
+	 * entries are evicted. Expired entries are removed when they are accessed, or evicted like other entries.
+	 * </p>
+	 *
+	 * <p>
+	 * The cache is split into segments with a lock and a share of the limit each, so concurrent renders only contend for the
+	 * same segment. Output larger than the share of a segment is not cached.
+	 * </p>
+	 **/
+	public static class BoundedFragmentCache implements FragmentCache {
+		/** The estimated number of bytes used by an entry in addition to the output. **/
+		private static final int ENTRY_OVERHEAD = 64;
+
+		private final Segment[] segments;
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong evictions = new AtomicLong();
+
+		/** Creates a cache with 16 segments holding at most the given number of bytes. **/
+		public BoundedFragmentCache (long maxBytes) {
+			this(maxBytes, 16);
+		}
+
+		/** Creates a cache holding at most the given number of bytes. The number of segments is rounded up to a power of two. **/
+		public BoundedFragmentCache (long maxBytes, int segmentCount) {
+			if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be > 0.");
+			if (segmentCount <= 0) throw new IllegalArgumentException("segmentCount must be > 0.");
+			int count = Integer.highestOneBit(segmentCount);
+			if (count < segmentCount) count <<= 1;
+			segments = new Segment[count];
+			for (int i = 0; i < count; i++)
+				segments[i] = new Segment(Math.max(1, maxBytes / count));
+		}
+
+		private Segment getSegment (Object key) {
+			int hash = key.hashCode();
+			hash ^= hash >>> 16;
+			return segments[hash & (segments.length - 1)];
+		}
+
+		@Override
+		public byte[] get (Object key) {
+			byte[] output = getSegment(key).get(key, System.nanoTime());
+			if (output != null)
+				hits.incrementAndGet();
+			else
+				misses.incrementAndGet();
+			return output;
+		}
+
+		@Override
+		public void put (Object key, byte[] output, long ttlMillis) {
+			long expires = ttlMillis > 0 ? System.nanoTime() + ttlMillis * 1000000 : 0;
+			evictions.addAndGet(getSegment(key).put(key, output, expires));
+		}
+
+		@Override
+		public void remove (Object key) {
+			getSegment(key).remove(key);
+		}
+
+		@Override
+		public void clear () {
+			for (Segment segment : segments)
+				segment.clear();
+		}
+
+		/** Returns the number of lookups that returned cached output. **/
+		public long getHits () {
+			return hits.get();
+		}
+
+		/** Returns the number of lookups that found no cached output, or expired output. **/
+		public long getMisses () {
+			return misses.get();
+		}
+
+		/** Returns the number of entries that were evicted to stay within the size limit. **/
+		public long getEvictions () {
+			return evictions.get();
+		}
+
+		/** Returns the estimated number of bytes used by the cached entries. **/
+		public long getSize () {
+			long size = 0;
+			for (Segment segment : segments)
+				size += segment.getSize();
+			return size;
+		}
+
+		/** Returns the number of cached entries, including expired entries that haven't been removed yet. **/
+		public int getEntryCount () {
+			int count = 0;
+			for (Segment segment : segments)
+				count += segment.getEntryCount();
+			return count;
+		}
+
+		/** Resets the hit, miss and eviction counters. **/
+		public void resetStatistics () {
+			hits.set(0);
+			misses.set(0);
+			evictions.set(0);
+		}
+
+		private static class Entry {
+			final byte[] output;
+			final long expires;
+
+			Entry (byte[] output, long expires) {
+				this.output = output;
+				this.expires = expires;
+			}
+
+			int getWeight () {
+				return output.length + ENTRY_OVERHEAD;
+			}
+		}
+
+		private static class Segment {
+			private final long maxBytes;
+			/** The entries in access order, the least recently used entry first. **/
+			private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+			private long size;
+
+			Segment (long maxBytes) {
+				this.maxBytes = maxBytes;
+			}
+
+			synchronized byte[] get (Object key, long now) {
+				Entry entry = entries.get(key);
+				if (entry == null) return null;
+				if (entry.expires != 0 && now - entry.expires >= 0) {
+					entries.remove(key);
+					size -= entry.getWeight();
+					return null;
+				}
+				return entry.output;
+			}
+
+			/** Stores the entry and returns the number of evicted entries. **/
+			synchronized int put (Object key, byte[] output, long expires) {
+				Entry entry = new Entry(output, expires);
+				if (entry.getWeight() > maxBytes) {
+					remove(key);
+					return 0;
+				}
+				Entry previous = entries.put(key, entry);
+				if (previous != null) size -= previous.getWeight();
+				size += entry.getWeight();
+
+				int evicted = 0;
+				Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+				while (size > maxBytes) {
+					Entry eldest = iterator.next().getValue();
+					iterator.remove();
+					size -= eldest.getWeight();
+					evicted++;
+				}
+				return evicted;
+			}
+
+			synchronized void remove (Object key) {
+				Entry entry = entries.remove(key);
+				if (entry != null) size -= entry.getWeight();
+			}
+
+			synchronized void clear () {
+				entries.clear();
+				size = 0;
+			}
+
+			synchronized long getSize () {
+				return size;
+			}
+
+			synchronized int getEntryCount () {
+				return entries.size();
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+
+package io.marioslab.basis.template;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * An immutable set of variables shared by many {@link TemplateContext} instances, e.g. the configuration, helper objects and
+ * message bundles of an application. A frozen context is passed to {@link TemplateContext#TemplateContext(FrozenContext)} and
+ * becomes the bottom layer of the new context, without copying its variables. Variables set on the context shadow the variables
+ * of the frozen context, which is never modified. A frozen context is thread-safe, and can be used by any number of contexts
+ * concurrently.
+ * </p>
+ *
+ * <p>
+ * The variables are stored in an open addressing table. The table is made large enough that each variable gets a slot of its own,
+ * if that is possible with at most 16 slots per variable, so a lookup usually needs a single probe and string comparison.
+ * </p>
+ **/
+public final class FrozenContext {
+	private final String[] names;
+	private final Object[] values;
+	private final int mask;
+	private final Set<String> variableNames;
+
+	/** Creates a frozen context with the variables of the map. Variables with a null value are ignored. The map is copied. **/
+	public FrozenContext (Map<String, ?> variables) {
+		Set<String> variableNames = new HashSet<String>();
+		for (Map.Entry<String, ?> variable : variables.entrySet()) {
+			if (variable.getValue() != null) variableNames.add(variable.getKey());
+		}
+		this.variableNames = Collections.unmodifiableSet(variableNames);
+
+		// grow the table until no two names map to the same slot
+		int capacity = Integer.highestOneBit(Math.max(2, variableNames.size() * 2 - 1)) << 1;
+		while (capacity < variableNames.size() * 16 && !isCollisionFree(variableNames, capacity - 1))
+			capacity <<= 1;
+		names = new String[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (String name : variableNames) {
+			int index = slot(name, mask);
+			while (names[index] != null)
+				index = (index + 1) & mask;
+			names[index] = name;
+			values[index] = variables.get(name);
+		}
+	}
+
+	private static boolean isCollisionFree (Set<String> names, int mask) {
+		boolean[] used = new boolean[mask + 1];
+		for (String name : names) {
+			int index = slot(name, mask);
+			if (used[index]) return false;
+			used[index] = true;
+		}
+		return true;
+	}
+
+	private static int slot (String name, int mask) {
+		int hash = name.hashCode();
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/** Returns the value of the variable with the given name, or null. **/
+	public Object get (String name) {
+		int index = slot(name, mask);
+		while (true) {
+			String other = names[index];
+			if (other == null) return null;
+			if (other == name || other.equals(name)) return values[index];
+			index = (index + 1) & mask;
+		}
+	}
+
+	/** Returns the names of the variables. **/
+	public Set<String> getVariables () {
+		return variableNames;
+	}
+}
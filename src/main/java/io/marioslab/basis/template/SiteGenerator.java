@@ -0,0 +1,488 @@
+
+package io.marioslab.basis.template;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.marioslab.basis.template.TemplateLoader.FileTemplateLoader;
+
+/**
+ * <p>
+ * Generates a static site by rendering a list of {@link Page pages} into files below an output directory, on a number of worker
+ * threads. Each page is rendered with a template loaded via a {@link FileTemplateLoader}, the variables of the page, and the
+ * variables shared by all pages. A template may assign shared variables, which only affects the page it is rendered for.
+ * </p>
+ *
+ * <p>
+ * The generator records the dependencies of each page in a manifest file: the paths and content hashes of the template files it
+ * was rendered from, including templates and files it includes or extends transitively, see
+ * {@link FileTemplateLoader#getSourcePaths(String)}, and a fingerprint of the value of each variable the template can read, see
+ * {@link Template#getDependencies()}. On the next run, a page is only rendered again if its output file is missing, or if any of
+ * its dependencies changed. The output files of pages that are no longer generated are not deleted.
+ * </p>
+ *
+ * <p>
+ * A generator can be used for any number of runs with the same loader. Templates loaded by a previous run are loaded again if any
+ * of their template files changed since, see {@link FileTemplateLoader#invalidate(Set)}. Templates that were loaded
+ * via the loader before the first run are assumed to be up to date.
+ * </p>
+ *
+ * <p>
+ * The manifest is a UTF-8 text file with one tab separated record per line. <code>hash</code> records store the content hash of a
+ * template file. Each <code>page</code> record, storing the output path and the template of a page, is followed by a
+ * <code>source</code> record for each template file and a <code>data</code> record with the fingerprint of each variable the
+ * page depends on:
+ * </p>
+ *
+ * <pre>
+ * # basis-template manifest 1
+ * hash	site/post.bt	5d41402abc4b2a76b9719d911017c592...
+ * hash	site/layout.bt	7d793037a0760186574b0282f2f435e7...
+ * page	blog/hello.html	site/post.bt
+ * source	site/post.bt
+ * source	site/layout.bt
+ * data	post	2c26b46b68ffc68ff99b453c1d304134...
+ * </pre>
+ **/
+public class SiteGenerator {
+	private static final String MANIFEST_HEADER = "# basis-template manifest 1";
+
+	private final FileTemplateLoader loader;
+	private final Path outputDir;
+	private final Path manifestFile;
+	private Map<String, ?> shared = Collections.emptyMap();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Function<Object, String> fingerprint = value -> hash(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+	/** The hashes of the template files the templates loaded by previous runs were compiled from, by path. **/
+	private final Map<String, String> loadedHashes = new HashMap<String, String>();
+
+	/** Creates a generator writing the pages below the output directory, and their dependencies to the manifest file. **/
+	public SiteGenerator (FileTemplateLoader loader, Path outputDir, Path manifestFile) {
+		this.loader = loader;
+		this.outputDir = outputDir;
+		this.manifestFile = manifestFile;
+	}
+
+	/** Sets the variables shared by all pages. Variables of a page take precedence. The map must not be modified while generating
+	 * the site. **/
+	public SiteGenerator shared (Map<String, ?> variables) {
+		this.shared = variables;
+		return this;
+	}
+
+	/** Sets the number of threads rendering pages, including the thread calling {@link #generate(List)}. Defaults to the number of
+	 * available processors. **/
+	public SiteGenerator threads (int threads) {
+		if (threads <= 0) throw new IllegalArgumentException("threads must be > 0.");
+		this.threads = threads;
+		return this;
+	}
+
+	/** Sets the function computing the fingerprint of the value of a variable, which must change if the value changes. Defaults to
+	 * a SHA-256 hash of the value's {@link Object#toString()}, which is sufficient for strings, numbers, and lists and maps of
+	 * them. Values whose string representation doesn't reflect their content cause pages to be rendered again on every run. **/
+	public SiteGenerator fingerprint (Function<Object, String> fingerprint) {
+		this.fingerprint = fingerprint;
+		return this;
+	}
+
+	/** Renders all pages whose output file is missing or whose dependencies changed since the last run, and updates the manifest.
+	 * If a page can't be rendered or written, the remaining pages are not rendered, and the error is rethrown after updating the
+	 * manifest with the pages rendered so far. **/
+	public Summary generate (List<Page> pages) throws IOException {
+		long start = System.nanoTime();
+		Map<String, Entry> previous = readManifest();
+
+		// the loader returns cached templates, so templates loaded by previous runs whose files changed are removed from its cache
+		Map<String, String> sourceHashes = new HashMap<String, String>();
+		Set<String> changed = new HashSet<String>();
+		for (Map.Entry<String, String> loadedHash : loadedHashes.entrySet()) {
+			Path file = Paths.get(loadedHash.getKey());
+			String hash = Files.exists(file) ? hash(Files.readAllBytes(file)) : null;
+			if (hash != null) sourceHashes.put(loadedHash.getKey(), hash);
+			if (!loadedHash.getValue().equals(hash)) changed.add(loadedHash.getKey());
+		}
+		if (!changed.isEmpty()) loader.invalidate(changed);
+		loadedHashes.keySet().removeAll(changed);
+
+		// load the templates and hash their sources up front, the loader isn't meant to compile templates concurrently
+		Map<String, Template> templates = new HashMap<String, Template>();
+		for (Page page : pages) {
+			if (templates.containsKey(page.getTemplate())) continue;
+			templates.put(page.getTemplate(), loader.load(page.getTemplate()));
+			for (String source : loader.getSourcePaths(page.getTemplate())) {
+				if (!sourceHashes.containsKey(source)) sourceHashes.put(source, hash(Files.readAllBytes(Paths.get(source))));
+			}
+		}
+		loadedHashes.putAll(sourceHashes);
+		long loaded = System.nanoTime();
+
+		Run run = new Run(pages, templates, sourceHashes, previous);
+		Thread[] workers = new Thread[Math.min(threads, Math.max(1, pages.size())) - 1];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(run::work, "basis-template-site");
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		run.work();
+		for (Thread worker : workers) {
+			while (true) {
+				try {
+					worker.join();
+					break;
+				} catch (InterruptedException e) {
+					run.fail(new InterruptedIOException("Interrupted while generating site."));
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		long generated = System.nanoTime();
+
+		// keep the entries of pages that weren't processed due to an error, their output files haven't changed
+		Map<String, Entry> entries = new TreeMap<String, Entry>();
+		for (Page page : pages) {
+			Entry entry = run.entries.get(page.getPath());
+			if (entry == null) entry = previous.get(page.getPath());
+			if (entry != null) entries.put(page.getPath(), entry);
+		}
+		writeManifest(entries);
+		long end = System.nanoTime();
+
+		if (run.failure instanceof IOException) throw (IOException)run.failure;
+		if (run.failure instanceof RuntimeException) throw (RuntimeException)run.failure;
+		if (run.failure instanceof java.lang.Error) throw (java.lang.Error)run.failure;
+		if (run.failure != null) throw new RuntimeException("Couldn't generate site, " + run.failure.getMessage(), run.failure);
+		return new Summary(pages.size(), run.rendered.get(), loaded - start, run.checkNanos.get(), run.renderNanos.get(),
+			run.writeNanos.get(), generated - loaded, end - generated, end - start);
+	}
+
+	/** Returns the entries of the manifest by the output path of their page, or an empty map if the manifest doesn't exist or was
+	 * written by an incompatible version. **/
+	private Map<String, Entry> readManifest () throws IOException {
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		if (!Files.exists(manifestFile)) return entries;
+		try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+			if (!MANIFEST_HEADER.equals(reader.readLine())) return entries;
+			Map<String, String> hashes = new HashMap<String, String>();
+			Entry entry = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields[0].equals("hash") && fields.length == 3) {
+					hashes.put(fields[1], fields[2]);
+				} else if (fields[0].equals("page") && fields.length == 3) {
+					entry = new Entry(fields[2]);
+					entries.put(fields[1], entry);
+				} else if (fields[0].equals("source") && fields.length == 2 && entry != null) {
+					entry.sources.put(fields[1], hashes.get(fields[1]));
+				} else if (fields[0].equals("data") && fields.length == 3 && entry != null) {
+					entry.data.put(fields[1], fields[2]);
+				} else {
+					throw new IOException("Invalid manifest record '" + line + "' in " + manifestFile + ".");
+				}
+			}
+		}
+		return entries;
+	}
+
+	/** Writes the manifest to a temporary file first, so an interrupted run doesn't leave a partial manifest. **/
+	private void writeManifest (Map<String, Entry> entries) throws IOException {
+		Map<String, String> hashes = new TreeMap<String, String>();
+		for (Entry entry : entries.values())
+			hashes.putAll(entry.sources);
+
+		Path parent = manifestFile.toAbsolutePath().getParent();
+		if (parent != null) Files.createDirectories(parent);
+		Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(MANIFEST_HEADER + "\n");
+			for (Map.Entry<String, String> hash : hashes.entrySet())
+				writer.write("hash\t" + hash.getKey() + "\t" + hash.getValue() + "\n");
+			for (Map.Entry<String, Entry> page : entries.entrySet()) {
+				Entry entry = page.getValue();
+				writer.write("page\t" + page.getKey() + "\t" + entry.template + "\n");
+				for (String source : entry.sources.keySet())
+					writer.write("source\t" + source + "\n");
+				for (Map.Entry<String, String> data : entry.data.entrySet())
+					writer.write("data\t" + data.getKey() + "\t" + data.getValue() + "\n");
+			}
+		}
+		Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Returns the SHA-256 hash of the bytes as a hex string. **/
+	private static String hash (byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 isn't supported by the JVM.", e);
+		}
+	}
+
+	/** A page to generate, rendered from a template with the given variables into the file at the path, relative to the output
+	 * directory. **/
+	public static class Page {
+		private final String path;
+		private final String template;
+		private final Map<String, ?> variables;
+
+		public Page (String path, String template, Map<String, ?> variables) {
+			if (path.indexOf('\t') != -1 || path.indexOf('\n') != -1) throw new IllegalArgumentException("path must not contain tabs or line breaks.");
+			this.path = path;
+			this.template = template;
+			this.variables = variables;
+		}
+
+		/** Returns the path of the output file, relative to the output directory. **/
+		public String getPath () {
+			return path;
+		}
+
+		/** Returns the path of the template, as passed to {@link FileTemplateLoader#load(String)}. **/
+		public String getTemplate () {
+			return template;
+		}
+
+		/** Returns the variables of the page. **/
+		public Map<String, ?> getVariables () {
+			return variables;
+		}
+	}
+
+	/** The number of rendered pages and the time spent on each phase of a call to {@link SiteGenerator#generate(List)}. The time
+	 * spent checking, rendering and writing pages is summed up over all threads. **/
+	public static class Summary {
+		private final int pages;
+		private final int rendered;
+		private final long loadNanos, checkNanos, renderNanos, writeNanos, generateNanos, manifestNanos, totalNanos;
+
+		Summary (int pages, int rendered, long loadNanos, long checkNanos, long renderNanos, long writeNanos, long generateNanos,
+			long manifestNanos, long totalNanos) {
+			this.pages = pages;
+			this.rendered = rendered;
+			this.loadNanos = loadNanos;
+			this.checkNanos = checkNanos;
+			this.renderNanos = renderNanos;
+			this.writeNanos = writeNanos;
+			this.generateNanos = generateNanos;
+			this.manifestNanos = manifestNanos;
+			this.totalNanos = totalNanos;
+		}
+
+		/** Returns the number of pages. **/
+		public int getPages () {
+			return pages;
+		}
+
+		/** Returns the number of pages that were rendered because they were new or their dependencies changed. **/
+		public int getRendered () {
+			return rendered;
+		}
+
+		/** Returns the number of pages that were up to date. **/
+		public int getSkipped () {
+			return pages - rendered;
+		}
+
+		/** Returns the time spent reading the manifest, loading templates and hashing their sources, in nanoseconds. **/
+		public long getLoadNanos () {
+			return loadNanos;
+		}
+
+		/** Returns the time spent checking whether pages are up to date, summed over all threads, in nanoseconds. **/
+		public long getCheckNanos () {
+			return checkNanos;
+		}
+
+		/** Returns the time spent rendering pages, summed over all threads, in nanoseconds. **/
+		public long getRenderNanos () {
+			return renderNanos;
+		}
+
+		/** Returns the time spent writing pages, summed over all threads, in nanoseconds. **/
+		public long getWriteNanos () {
+			return writeNanos;
+		}
+
+		/** Returns the time between starting and stopping the threads, in nanoseconds. **/
+		public long getGenerateNanos () {
+			return generateNanos;
+		}
+
+		/** Returns the time spent writing the manifest, in nanoseconds. **/
+		public long getManifestNanos () {
+			return manifestNanos;
+		}
+
+		/** Returns the total time, in nanoseconds. **/
+		public long getTotalNanos () {
+			return totalNanos;
+		}
+
+		@Override
+		public String toString () {
+			StringBuilder summary = new StringBuilder();
+			summary.append(String.format("Generated %d pages in %.3f s, %d rendered, %d up to date.\n", pages, totalNanos / 1e9, rendered,
+				getSkipped()));
+			summary.append(String.format("  loading            %10.3f s\n", loadNanos / 1e9));
+			summary.append(String.format("  generating pages   %10.3f s\n", generateNanos / 1e9));
+			summary.append(String.format("    checking         %10.3f s (all threads)\n", checkNanos / 1e9));
+			summary.append(String.format("    rendering        %10.3f s (all threads)\n", renderNanos / 1e9));
+			summary.append(String.format("    writing          %10.3f s (all threads)\n", writeNanos / 1e9));
+			summary.append(String.format("  writing manifest   %10.3f s", manifestNanos / 1e9));
+			return summary.toString();
+		}
+	}
+
+	/** The dependencies of a page: its template, the hashes of its template files by path, in the order returned by
+	 * {@link FileTemplateLoader#getSourcePaths(String)}, and the fingerprints of its variables by name. **/
+	private static class Entry {
+		final String template;
+		final Map<String, String> sources = new LinkedHashMap<String, String>();
+		final Map<String, String> data = new TreeMap<String, String>();
+
+		Entry (String template) {
+			this.template = template;
+		}
+
+		@Override
+		public int hashCode () {
+			return template.hashCode() * 31 + data.hashCode();
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (!(obj instanceof Entry)) return false;
+			Entry other = (Entry)obj;
+			return template.equals(other.template) && sources.equals(other.sources) && data.equals(other.data);
+		}
+	}
+
+	/** The state of a call to {@link SiteGenerator#generate(List)}. **/
+	private class Run {
+		private final List<Page> pages;
+		private final Map<String, Template> templates;
+		private final Map<String, String> sourceHashes;
+		private final Map<String, Entry> previous;
+		private final TemplateContext context = new TemplateContext();
+		private final Map<String, String> sharedFingerprints = new ConcurrentHashMap<String, String>();
+		private final AtomicInteger nextPage = new AtomicInteger();
+		final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		final AtomicInteger rendered = new AtomicInteger();
+		final AtomicLong checkNanos = new AtomicLong(), renderNanos = new AtomicLong(), writeNanos = new AtomicLong();
+		volatile Throwable failure;
+
+		Run (List<Page> pages, Map<String, Template> templates, Map<String, String> sourceHashes, Map<String, Entry> previous) {
+			this.pages = pages;
+			this.templates = templates;
+			this.sourceHashes = sourceHashes;
+			this.previous = previous;
+			for (Map.Entry<String, ?> variable : shared.entrySet())
+				context.set(variable.getKey(), variable.getValue());
+		}
+
+		void work () {
+			try {
+				TemplateContext context = this.context.forkShadowing();
+				BatchRenderer.Buffer out = new BatchRenderer.Buffer();
+				int index;
+				while (failure == null && (index = nextPage.getAndIncrement()) < pages.size()) {
+					Page page = pages.get(index);
+					Template template = templates.get(page.getTemplate());
+					Path output = outputDir.resolve(page.getPath());
+
+					long start = System.nanoTime();
+					Entry entry = getEntry(page, template);
+					boolean upToDate = entry.equals(previous.get(page.getPath())) && Files.exists(output);
+					long checked = System.nanoTime();
+					checkNanos.addAndGet(checked - start);
+					if (upToDate) {
+						entries.put(page.getPath(), entry);
+						continue;
+					}
+
+					out.reset();
+					context.push();
+					try {
+						for (Map.Entry<String, ?> variable : page.getVariables().entrySet())
+							context.setOnCurrentScope(variable.getKey(), variable.getValue());
+						template.render(context, out);
+					} finally {
+						context.pop();
+					}
+					long renderedTime = System.nanoTime();
+					renderNanos.addAndGet(renderedTime - checked);
+
+					write(output, out);
+					writeNanos.addAndGet(System.nanoTime() - renderedTime);
+					entries.put(page.getPath(), entry);
+					rendered.incrementAndGet();
+				}
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/** Returns the current dependencies of the page. **/
+		private Entry getEntry (Page page, Template template) {
+			Entry entry = new Entry(page.getTemplate());
+			for (String source : loader.getSourcePaths(page.getTemplate()))
+				entry.sources.put(source, sourceHashes.get(source));
+			for (String name : new TreeSet<String>(template.getDependencies().getVariables())) {
+				if (page.getVariables().containsKey(name)) {
+					Object value = page.getVariables().get(name);
+					if (value != null) entry.data.put(name, fingerprint.apply(value));
+				} else if (shared.get(name) != null) {
+					entry.data.put(name, sharedFingerprints.computeIfAbsent(name, key -> fingerprint.apply(shared.get(key))));
+				}
+			}
+			return entry;
+		}
+
+		private void write (Path output, BatchRenderer.Buffer out) throws IOException {
+			Path parent = output.getParent();
+			if (parent != null) Files.createDirectories(parent);
+			try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(out.getBytes(), 0, out.size());
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		}
+
+		void fail (Throwable t) {
+			synchronized (this) {
+				if (failure == null) failure = t;
+			}
+		}
+	}
+}
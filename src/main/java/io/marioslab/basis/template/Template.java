@@ -5,15 +5,24 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.marioslab.basis.template.interpreter.AstInterpreter;
 import io.marioslab.basis.template.parsing.Ast;
+import io.marioslab.basis.template.parsing.Ast.Block;
+import io.marioslab.basis.template.parsing.Ast.FlattenedInclude;
 import io.marioslab.basis.template.parsing.Ast.Include;
 import io.marioslab.basis.template.parsing.Ast.Macro;
 import io.marioslab.basis.template.parsing.Ast.Node;
+import io.marioslab.basis.template.parsing.AstWalker;
+import io.marioslab.basis.template.parsing.CallBinder;
+import io.marioslab.basis.template.parsing.DependencyAnalyzer;
 import io.marioslab.basis.template.parsing.Parser;
 import io.marioslab.basis.template.parsing.Parser.Macros;
+import io.marioslab.basis.template.parsing.Specializer;
 
 /** A template is loaded by a {@link TemplateLoader} from a file marked up with the basis-template language. The template can be
  * rendered to a {@link String} or {@link OutputStream} by calling one of the <code>render()</code> methods. The
@@ -23,6 +32,9 @@ public class Template {
 	private final List<Node> nodes;
 	private final Macros macros;
 	private final List<Include> includes;
+	private volatile Dependencies dependencies;
+	private volatile Map<String, Block> blocks;
+	private final Map<Map<String, Object>, Template> specializations = new ConcurrentHashMap<Map<String, Object>, Template>();
 
 	/** Internal. Created by {@link Parser}. **/
 	public Template (List<Node> nodes, Macros macros, List<Include> includes) {
@@ -50,6 +62,37 @@ public class Template {
 		return includes;
 	}
 
+	/** Returns the variables and member paths of the context this template and the templates it includes can read, e.g. to
+	 * fetch only the data a template needs, or to validate a context before rendering. Computed by the
+	 * {@link DependencyAnalyzer} on the first call, without rendering the template. **/
+	public Dependencies getDependencies () {
+		Dependencies dependencies = this.dependencies;
+		if (dependencies == null) this.dependencies = dependencies = DependencyAnalyzer.analyze(this);
+		return dependencies;
+	}
+
+	/** Returns a template that renders the same output as this template, given a context that contains the variables of the
+	 * constants map, and which has been partially evaluated with these variables fixed to their values. Conditions depending only
+	 * on the constants are evaluated once, dead branches are removed, and constant output is merged with the surrounding text.
+	 * The returned template must be rendered with a context that contains the remaining variables, the constants don't need to be
+	 * set on it.
+	 *
+	 * <p>
+	 * The result is cached per constants map, as determined by {@link Map#equals(Object)}. Use this for values that are fixed
+	 * for a large number of renderings, like configuration, feature flags or the strings of a locale. The values must not change
+	 * after the template has been specialized. See {@link Specializer}.
+	 * </p> **/
+	public Template specialize (Map<String, Object> constants) {
+		Template template = specializations.get(constants);
+		if (template != null) return template;
+		Map<String, Object> key = new HashMap<String, Object>(constants);
+		return specializations.computeIfAbsent(key, k -> {
+			Template specialized = Specializer.specialize(this, k);
+			CallBinder.bind(specialized);
+			return specialized;
+		});
+	}
+
 	/** Renders the template using the TemplateContext to resolve variable values referenced in the template. **/
 	public String render (TemplateContext context) {
 		ByteArrayOutputStream out = new ByteArrayOutputStream(2 * 1024);
@@ -70,6 +113,62 @@ public class Template {
 		return AstInterpreter.interpret(this, context, out);
 	}
 
+	/** Renders only the top-level macro or the block with the given name to a {@link String}, see
+	 * {@link #renderFragment(String, TemplateContext, OutputStream)}. **/
+	public String renderFragment (String name, TemplateContext context) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(2 * 1024);
+		renderFragment(name, context, out);
+		try {
+			out.close();
+			return new String(out.toByteArray(), "UTF-8");
+		} catch (IOException e) {
+			Error.error("Couldn't render template to string, " + e.getMessage(), nodes.get(0).getSpan());
+			return null; // never reached
+		}
+	}
+
+	/** Renders only the top-level macro or the block with the given name to the OutputStream as UTF-8, e.g. to respond to a
+	 * request for a part of a page, skipping the rest of the template. A macro takes precedence over a block of the same name.
+	 *
+	 * <p>
+	 * The arguments of a macro are the values of the context variables named like the arguments, or null if the context doesn't
+	 * define them. As for any other call, the macro body only sees its arguments and the macros included via
+	 * <code>include "path" as alias</code>. Returns the return value of the macro.
+	 * </p>
+	 *
+	 * <p>
+	 * The body of a block is rendered with the context, as if the template was rendered, but without evaluating the statements
+	 * around the block first. Variables set by enclosing statements, like loop variables, must be set on the context, included
+	 * macros are available under their alias. Variables assigned by the block are not kept in the context. Blocks overridden by an
+	 * extending template render the overriding body. Returns null.
+	 * </p>
+	 *
+	 * Throws an {@link IllegalArgumentException} if the template has no macro or block of that name. **/
+	public Object renderFragment (String name, TemplateContext context, OutputStream out) {
+		Macro macro = macros.get(name);
+		if (macro != null) return AstInterpreter.interpretMacro(this, macro, context, out);
+		Block block = getBlocks().get(name);
+		if (block == null) throw new IllegalArgumentException("Template has no macro or block named '" + name + "'.");
+		return AstInterpreter.interpretBlock(this, block, context, out);
+	}
+
+	/** Returns the blocks of this template by name, including nested blocks, but not blocks of included templates. **/
+	private Map<String, Block> getBlocks () {
+		Map<String, Block> blocks = this.blocks;
+		if (blocks == null) {
+			Map<String, Block> found = new HashMap<String, Block>();
+			new AstWalker() {
+				@Override
+				protected boolean enter (Node node) {
+					if (node instanceof Block) found.putIfAbsent(((Block)node).getName().getText(), (Block)node);
+					return !(node instanceof Macro) && !(node instanceof FlattenedInclude);
+				}
+			}.walk(nodes);
+			this.blocks = blocks = found;
+		}
+		return blocks;
+	}
+
 	/** Evaluates this template using the TemplateContext to resolve variable values referenced in the template. Returns any value
 	 * returned by the template, or null. **/
 	public Object evaluate (TemplateContext context) {
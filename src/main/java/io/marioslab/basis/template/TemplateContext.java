@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import io.marioslab.basis.template.interpreter.AstInterpreter;
 
@@ -18,7 +19,8 @@ import io.marioslab.basis.template.interpreter.AstInterpreter;
  *
  * <p>
  * Internally, a template context is a stack of these mappings, similar to scopes in a programming language, and used as such by
- * the {@link AstInterpreter}.
+ * the {@link AstInterpreter}. Below the stack, a context may have a {@link FrozenContext} holding variables shared with other
+ * contexts, see {@link #TemplateContext(FrozenContext)}.
  * </p>
  */
 public class TemplateContext {
@@ -28,55 +30,235 @@ public class TemplateContext {
 	 * generating garbage. **/
 	private final List<Map<String, Object>> freeScopes = new ArrayList<Map<String, Object>>();
 
+	/** The context this context was forked from via {@link #fork()}, or null. **/
+	private final TemplateContext parent;
+
+	/** Whether templates may assign variables of the parent, see {@link #forkShadowing()}. **/
+	private final boolean shadowing;
+
+	/** The variables below the scopes, shared with other contexts, or null. **/
+	private final FrozenContext frozen;
+
+	/** The pool this context was acquired from, or null. Set by {@link TemplateContextPool}. **/
+	TemplateContextPool pool;
+
+	/** Whether to flush the output stream before waiting for a future, see {@link #setFlushBeforeAwait(boolean)}. **/
+	private boolean flushBeforeAwait;
+
+	/** Whether the context was released to its pool and must not be used. **/
+	boolean released;
+
+	/** Scopes that held more variables are not reused when popped, as clearing a map doesn't shrink it. Set by
+	 * {@link TemplateContextPool}. **/
+	int maxScopeSize = Integer.MAX_VALUE;
+
 	public TemplateContext () {
+		this(null, null, false);
+	}
+
+	/** Creates a context on top of the frozen context. Variables of the frozen context are looked up if they are not defined in
+	 * the context itself, and are shadowed when a variable of the same name is set. The frozen context is not copied. **/
+	public TemplateContext (FrozenContext frozen) {
+		this(null, frozen, false);
+	}
+
+	private TemplateContext (TemplateContext parent, FrozenContext frozen, boolean shadowing) {
+		this.parent = parent;
+		this.frozen = frozen;
+		this.shadowing = shadowing;
 		push();
 	}
 
+	/** Internal. Returns a new context which sees all variables of this context without copying them. Variables set on the forked
+	 * context are stored in the forked context only, shadowing variables of the same name in this context. This context must not
+	 * be modified while the forked context is in use. Multiple forked contexts may be used concurrently, each by a single thread.
+	 * Used by parallel for loops. **/
+	public TemplateContext fork () {
+		checkInUse();
+		return new TemplateContext(this, frozen, false);
+	}
+
+	/** Like {@link #fork()}, but templates may assign variables of this context. The new value is stored in the forked context,
+	 * shadowing the variable, as if the template was rendered with a context of its own holding the variables of this context.
+	 * Used by {@link BatchRenderer} and {@link SiteGenerator} for the context of each worker. **/
+	TemplateContext forkShadowing () {
+		checkInUse();
+		return new TemplateContext(this, frozen, true);
+	}
+
+	/** Internal. Returns a new context with the current values of all variables of this context, which are copied. Unlike with
+	 * {@link #fork()}, this context may be modified while the snapshot is in use. Variables set on the snapshot are stored in the
+	 * snapshot only, and {@link #isShared(String)} returns true for all variables copied from this context. Used by async
+	 * blocks. **/
+	public TemplateContext snapshot () {
+		checkInUse();
+		// the frozen context is immutable and shared instead of copied
+		TemplateContext copy = new TemplateContext(frozen);
+		copy.flushBeforeAwait = isFlushBeforeAwait();
+		Map<String, Object> scope = copy.scopes.get(0);
+		for (String name : getVariables()) {
+			// lazy values are shared with the snapshot instead of being resolved
+			Object value = find(name);
+			if (value instanceof PrimitiveValue) value = ((PrimitiveValue)value).getValue();
+			if (value != null) scope.put(name, value);
+		}
+		return copy.fork();
+	}
+
+	/** Internal. Returns whether the variable is not defined in this context itself, but in the context it was forked from. Such
+	 * variables must not be assigned by templates, see {@link #fork()}. **/
+	public boolean isShared (String name) {
+		if (parent == null || shadowing) return false;
+		for (int i = scopes.size() - 1; i >= 0; i--) {
+			if (scopes.get(i).get(name) != null) return false;
+		}
+		return parent.find(name) != null;
+	}
+
 	/** Sets the value of the variable with the given name. If the variable already exists in one of the scopes, that variable is
 	 * set. Otherwise the variable is set on the last pushed scope. */
 	public TemplateContext set (String name, Object value) {
+		checkInUse();
 		for (int i = scopes.size() - 1; i >= 0; i--) {
 			Map<String, Object> ctx = scopes.get(i);
 			if (ctx.isEmpty()) continue;
 			if (ctx.containsKey(name)) {
-				ctx.put(name, value);
+				put(ctx, name, value);
 				return this;
 			}
 		}
 
-		scopes.get(scopes.size() - 1).put(name, value);
+		put(scopes.get(scopes.size() - 1), name, value);
 		return this;
 	}
 
+	/** Sets the variable with the given name to a value that is computed by the supplier when the variable is first accessed.
+	 * The computed value is memoized, the supplier is called at most once. Otherwise behaves like
+	 * {@link #set(String, Object)}. See {@link #getUntouchedLazyValues()}. **/
+	public TemplateContext setLazy (String name, Supplier<?> supplier) {
+		return set(name, new LazyValue(supplier));
+	}
+
+	/** Returns the names of the variables set via {@link #setLazy(String, Supplier)} whose value has not been computed, because
+	 * they have not been accessed since they were set. Call this after rendering to find variables a template doesn't use. **/
+	public Set<String> getUntouchedLazyValues () {
+		Set<String> names = new HashSet<String>();
+		for (int i = 0, n = scopes.size(); i < n; i++) {
+			for (Map.Entry<String, Object> entry : scopes.get(i).entrySet()) {
+				if (entry.getValue() instanceof LazyValue && !((LazyValue)entry.getValue()).isResolved()) names.add(entry.getKey());
+			}
+		}
+		return names;
+	}
+
 	/** Sets the value of the variable with the given name on the last pushed scope **/
 	public TemplateContext setOnCurrentScope (String name, Object value) {
-		scopes.get(scopes.size() - 1).put(name, value);
+		checkInUse();
+		put(scopes.get(scopes.size() - 1), name, value);
 		return this;
 	}
 
+	private static void put (Map<String, Object> scope, String name, Object value) {
+		Object oldValue = scope.put(name, value);
+		if (oldValue instanceof PrimitiveValue && oldValue != value) ((PrimitiveValue)oldValue).detached = true;
+	}
+
+	/** Internal. Creates a {@link PrimitiveValue} of the given type, and stores it under the given name on the last pushed scope.
+	 * The value of the variable can then be updated via the returned holder, without storing it in the scope again. **/
+	public PrimitiveValue setPrimitiveOnCurrentScope (String name, int type) {
+		checkInUse();
+		PrimitiveValue value = new PrimitiveValue(type);
+		put(scopes.get(scopes.size() - 1), name, value);
+		return value;
+	}
+
 	/** Internal. Returns the value of the variable with the given name, walking the scope stack from top to bottom, similar to how
 	 * scopes in programming languages are searched for variables. */
 	public Object get (String name) {
+		Object value = lookup(name);
+		if (value instanceof PrimitiveValue) return ((PrimitiveValue)value).getValue();
+		return value;
+	}
+
+	/** Internal. Like {@link #get(String)}, but returns {@link PrimitiveValue} holders as is instead of boxing their value. **/
+	public Object lookup (String name) {
+		Object value = find(name);
+		if (value instanceof LazyValue) return ((LazyValue)value).get();
+		return value;
+	}
+
+	/** Internal. Like {@link #lookup(String)}, but doesn't resolve variables set via {@link #setLazy(String, Supplier)}. Used to
+	 * scan the variables of a context without computing lazy values. **/
+	public Object find (String name) {
+		checkInUse();
 		for (int i = scopes.size() - 1; i >= 0; i--) {
 			Map<String, Object> ctx = scopes.get(i);
 			if (ctx.isEmpty()) continue;
 			Object value = ctx.get(name);
 			if (value != null) return value;
 		}
-		return null;
+		if (parent != null) return parent.find(name);
+		return frozen != null ? frozen.get(name) : null;
+	}
+
+	/** Sets whether to flush the output stream before waiting for a {@link java.util.concurrent.Future} stored in the context, or
+	 * in a field or map accessed by a template, that has not completed yet. Enables sending the output rendered so far, e.g. the
+	 * head of a page, to the client while the data for the rest of the page is still being fetched. Defaults to false. Forked
+	 * contexts use the setting of the context they were forked from. **/
+	public TemplateContext setFlushBeforeAwait (boolean flush) {
+		flushBeforeAwait = flush;
+		return this;
+	}
+
+	/** Returns whether to flush the output stream before waiting for a future that has not completed yet. **/
+	public boolean isFlushBeforeAwait () {
+		return flushBeforeAwait || (parent != null && parent.isFlushBeforeAwait());
 	}
 
-	/** Internal. Returns all variables currently defined in this context. */
+	/** Returns the frozen context below the scopes of this context, or null. **/
+	public FrozenContext getFrozenContext () {
+		return frozen;
+	}
+
+	/** Internal. Returns all variables currently defined in this context, not including the variables of the frozen context. */
 	public Set<String> getVariables () {
-		Set<String> variables = new HashSet<String>();
+		Set<String> variables = parent != null ? parent.getVariables() : new HashSet<String>();
 		for (int i = 0, n = scopes.size(); i < n; i++) {
 			variables.addAll(scopes.get(i).keySet());
 		}
 		return variables;
 	}
 
+	/** Internal. Removes all variables and scopes, leaving the context as if it was newly created. The frozen context is kept.
+	 * Used to reuse the contexts of includes. **/
+	public void clear () {
+		while (scopes.size() > 1)
+			pop();
+		scopes.get(0).clear();
+	}
+
+	/** Removes all variables and scopes like {@link #clear()}. Scopes that held more than {@link #maxScopeSize} variables are
+	 * replaced, and at most the given number of unused scopes are kept. Used by {@link TemplateContextPool}. **/
+	void reset (int maxFreeScopes) {
+		while (scopes.size() > 1)
+			pop();
+		Map<String, Object> scope = scopes.get(0);
+		if (scope.size() > maxScopeSize)
+			scopes.set(0, new HashMap<String, Object>());
+		else
+			scope.clear();
+		flushBeforeAwait = false;
+		while (freeScopes.size() > maxFreeScopes)
+			freeScopes.remove(freeScopes.size() - 1);
+	}
+
+	private void checkInUse () {
+		if (released) throw new IllegalStateException("The context was used after it was released to its pool.");
+	}
+
 	/** Internal. Pushes a new "scope" onto the stack. **/
 	public void push () {
+		checkInUse();
 		Map<String, Object> newScope = freeScopes.size() > 0 ? freeScopes.remove(freeScopes.size() - 1) : new HashMap<String, Object>();
 		scopes.add(newScope);
 	}
@@ -84,7 +266,168 @@ public class TemplateContext {
 	/** Internal. Pops the top of the "scope" stack. **/
 	public void pop () {
 		Map<String, Object> oldScope = scopes.remove(scopes.size() - 1);
+		if (oldScope.size() > maxScopeSize) return;
 		oldScope.clear();
 		freeScopes.add(oldScope);
 	}
+
+	/** Internal. A mutable holder for a primitive variable value, used by for loops to update the loop variables on each iteration
+	 * without boxing the values or storing them in the scope again. {@link TemplateContext#get(String)} returns the boxed value
+	 * of the holder. If the variable is assigned a new value via {@link TemplateContext#set(String, Object)}, the holder is
+	 * marked as detached, and must be stored in the scope again by its owner if it wants to continue using it. **/
+	public static final class PrimitiveValue {
+		public static final int BOOLEAN = 0, CHAR = 1, BYTE = 2, SHORT = 3, INT = 4, LONG = 5, FLOAT = 6, DOUBLE = 7;
+
+		private final int type;
+		private long longValue;
+		private double doubleValue;
+		private boolean detached;
+
+		PrimitiveValue (int type) {
+			this.type = type;
+		}
+
+		/** Returns the type of the primitive value, one of the constants defined in this class, corresponding to the given
+		 * primitive class, or -1 if the class is not a primitive type. **/
+		public static int getType (Class<?> primitiveType) {
+			if (primitiveType == int.class) return INT;
+			if (primitiveType == long.class) return LONG;
+			if (primitiveType == double.class) return DOUBLE;
+			if (primitiveType == float.class) return FLOAT;
+			if (primitiveType == boolean.class) return BOOLEAN;
+			if (primitiveType == char.class) return CHAR;
+			if (primitiveType == short.class) return SHORT;
+			if (primitiveType == byte.class) return BYTE;
+			return -1;
+		}
+
+		public int getType () {
+			return type;
+		}
+
+		public boolean getBoolean () {
+			return longValue != 0;
+		}
+
+		public int getInt () {
+			return (int)longValue;
+		}
+
+		public long getLong () {
+			return longValue;
+		}
+
+		public double getDouble () {
+			return doubleValue;
+		}
+
+		public void setInt (int value) {
+			longValue = value;
+		}
+
+		public void setLong (long value) {
+			longValue = value;
+		}
+
+		public void setDouble (double value) {
+			doubleValue = value;
+		}
+
+		/** Sets the value to the element at the given index of the array, which must be an array of the primitive type of this
+		 * holder. **/
+		public void set (Object array, int index) {
+			switch (type) {
+			case BOOLEAN:
+				longValue = ((boolean[])array)[index] ? 1 : 0;
+				break;
+			case CHAR:
+				longValue = ((char[])array)[index];
+				break;
+			case BYTE:
+				longValue = ((byte[])array)[index];
+				break;
+			case SHORT:
+				longValue = ((short[])array)[index];
+				break;
+			case INT:
+				longValue = ((int[])array)[index];
+				break;
+			case LONG:
+				longValue = ((long[])array)[index];
+				break;
+			case FLOAT:
+				doubleValue = ((float[])array)[index];
+				break;
+			default:
+				doubleValue = ((double[])array)[index];
+				break;
+			}
+		}
+
+		/** Returns the boxed value. **/
+		public Object getValue () {
+			switch (type) {
+			case BOOLEAN:
+				return longValue != 0;
+			case CHAR:
+				return (char)longValue;
+			case BYTE:
+				return (byte)longValue;
+			case SHORT:
+				return (short)longValue;
+			case INT:
+				return (int)longValue;
+			case LONG:
+				return longValue;
+			case FLOAT:
+				return (float)doubleValue;
+			default:
+				return doubleValue;
+			}
+		}
+
+		/** Returns whether the variable this holder was stored under has since been assigned another value. **/
+		public boolean isDetached () {
+			return detached;
+		}
+
+		/** Clears the detached flag. The caller must store the holder in the scope again. **/
+		public void attach () {
+			detached = false;
+		}
+
+		@Override
+		public String toString () {
+			return String.valueOf(getValue());
+		}
+	}
+
+	/** A value computed on first access by a supplier, see {@link TemplateContext#setLazy(String, Supplier)}. May be resolved
+	 * concurrently by parallel for loops and async blocks. **/
+	private static final class LazyValue {
+		private Supplier<?> supplier;
+		private volatile boolean resolved;
+		private Object value;
+
+		LazyValue (Supplier<?> supplier) {
+			this.supplier = supplier;
+		}
+
+		Object get () {
+			if (!resolved) {
+				synchronized (this) {
+					if (!resolved) {
+						value = supplier.get();
+						supplier = null;
+						resolved = true;
+					}
+				}
+			}
+			return value;
+		}
+
+		boolean isResolved () {
+			return resolved;
+		}
+	}
 }
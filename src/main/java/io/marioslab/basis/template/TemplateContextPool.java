@@ -0,0 +1,122 @@
+
+package io.marioslab.basis.template;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>
+ * A thread-safe pool of {@link TemplateContext} instances, so rendering a template doesn't allocate a new context and scope maps
+ * each time. Acquire a context, render with it and release it when done:
+ * </p>
+ *
+ * <pre>
+ * TemplateContext context = pool.acquire();
+ * try {
+ * 	template.render(context.set("user", user), out);
+ * } finally {
+ * 	pool.release(context);
+ * }
+ * </pre>
+ *
+ * <p>
+ * Releasing a context removes all its variables and scopes, so no values are kept alive by the pool. Scope maps that held more
+ * than {@link #setMaxScopeSize(int) a number of variables} are replaced, as clearing a map doesn't shrink it. A released context
+ * throws an {@link IllegalStateException} when it is used, until it is acquired again. In {@link #setDebug(boolean) debug mode},
+ * released contexts are never handed out again, so every use of a context after releasing it is detected.
+ * </p>
+ *
+ * <p>
+ * Contexts may be created on top of a {@link FrozenContext} holding the variables shared by all renders.
+ * </p>
+ **/
+public class TemplateContextPool {
+	/** The maximum number of unused scopes a pooled context keeps. **/
+	private static final int MAX_FREE_SCOPES = 16;
+
+	private final FrozenContext frozen;
+	private final ArrayDeque<TemplateContext> contexts = new ArrayDeque<TemplateContext>();
+	private int maxContexts = Runtime.getRuntime().availableProcessors() * 4;
+	private volatile int maxScopeSize = 64;
+	private volatile boolean debug;
+
+	public TemplateContextPool () {
+		this(null);
+	}
+
+	/** Creates a pool handing out contexts on top of the frozen context. **/
+	public TemplateContextPool (FrozenContext frozen) {
+		this.frozen = frozen;
+	}
+
+	/** Returns an empty context, reusing a released context if available. **/
+	public TemplateContext acquire () {
+		TemplateContext context;
+		synchronized (contexts) {
+			context = contexts.pollLast();
+		}
+		if (context == null) {
+			context = new TemplateContext(frozen);
+			context.pool = this;
+		}
+		context.maxScopeSize = getMaxScopeSize();
+		context.released = false;
+		return context;
+	}
+
+	/** Clears the context and returns it to the pool. The context must have been acquired from this pool, and must not be used
+	 * afterwards. **/
+	public void release (TemplateContext context) {
+		if (context.pool != this) throw new IllegalArgumentException("The context wasn't acquired from this pool.");
+		if (context.released) throw new IllegalStateException("The context has already been released.");
+		context.reset(MAX_FREE_SCOPES);
+		context.released = true;
+		if (isDebug()) return;
+		synchronized (contexts) {
+			if (contexts.size() < maxContexts) contexts.addLast(context);
+		}
+	}
+
+	/** Returns the number of contexts in the pool. **/
+	public int getSize () {
+		synchronized (contexts) {
+			return contexts.size();
+		}
+	}
+
+	/** Sets the maximum number of released contexts kept by the pool. Defaults to four times the number of processors. **/
+	public void setMaxContexts (int maxContexts) {
+		synchronized (contexts) {
+			this.maxContexts = maxContexts;
+			while (contexts.size() > maxContexts)
+				contexts.pollFirst();
+		}
+	}
+
+	/** Returns the maximum number of released contexts kept by the pool. **/
+	public int getMaxContexts () {
+		synchronized (contexts) {
+			return maxContexts;
+		}
+	}
+
+	/** Sets the maximum number of variables a scope of a context may have held to be reused. Defaults to 64. **/
+	public void setMaxScopeSize (int maxScopeSize) {
+		this.maxScopeSize = maxScopeSize;
+	}
+
+	/** Returns the maximum number of variables a scope of a context may have held to be reused. **/
+	public int getMaxScopeSize () {
+		return maxScopeSize;
+	}
+
+	/** Sets whether released contexts are discarded instead of being reused, so that any use of a context after releasing it
+	 * throws an {@link IllegalStateException}. Defaults to false. **/
+	public void setDebug (boolean debug) {
+		this.debug = debug;
+	}
+
+	/** Returns whether released contexts are discarded instead of being reused. **/
+	public boolean isDebug () {
+		return debug;
+	}
+}
@@ -6,14 +6,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import io.marioslab.basis.template.parsing.Ast.Include;
 import io.marioslab.basis.template.parsing.Ast.IncludeRaw;
+import io.marioslab.basis.template.parsing.CallBinder;
 import io.marioslab.basis.template.parsing.Parser;
 import io.marioslab.basis.template.parsing.Parser.ParserResult;
+import io.marioslab.basis.template.parsing.Specializer;
 import io.marioslab.basis.template.parsing.Span;
 
 /** A template loader loads a {@link Template} from a path, and recursively loads other templates the template may reference. See
@@ -72,9 +79,13 @@ public interface TemplateLoader {
 	}
 
 	/** Base class for other {@link TemplateLoader} implementations that caches templates and recursively loads other templates
-	 * referenced by a template via an include statement. */
+	 * referenced by a template via an include or extends statement. The blocks of an extended template are replaced by the blocks
+	 * of the extending template when it is loaded. Output of a template that doesn't depend on the context, like the output
+	 * of included templates consisting only of text, is pre-rendered when the template is loaded, see {@link Specializer}. */
 	public abstract class CachingTemplateLoader implements TemplateLoader {
 		Map<String, Template> templates = new ConcurrentHashMap<String, Template>();
+		/** The paths of the templates and raw files a template was loaded from directly, by the path of the template. **/
+		Map<String, List<String>> sourcePaths = new ConcurrentHashMap<String, List<String>>();
 
 		@Override
 		public Template load (String path) {
@@ -85,9 +96,49 @@ public interface TemplateLoader {
 			return template;
 		}
 
+		/** Returns the paths of the sources the template loaded from the path was compiled from, i.e. the path itself and the paths
+		 * of all templates it includes or extends and all files it includes raw, transitively. Returns an empty set if the template
+		 * hasn't been loaded. Used to find the templates affected by a change to a source. **/
+		public Set<String> getSourcePaths (String path) {
+			Set<String> paths = new LinkedHashSet<String>();
+			addSourcePaths(path, paths);
+			return paths;
+		}
+
+		/** Removes the templates compiled from any of the sources with the given paths from the cache, so they are compiled again
+		 * when they are loaded the next time, e.g. after the sources changed. Templates including or extending such a template are
+		 * removed as well. **/
+		public void invalidate (Set<String> changedPaths) {
+			List<String> stale = new ArrayList<String>();
+			for (String path : templates.keySet()) {
+				for (String sourcePath : getSourcePaths(path)) {
+					if (changedPaths.contains(sourcePath)) {
+						stale.add(path);
+						break;
+					}
+				}
+			}
+			for (String path : stale) {
+				templates.remove(path);
+				sourcePaths.remove(path);
+			}
+		}
+
+		private void addSourcePaths (String path, Set<String> paths) {
+			List<String> direct = sourcePaths.get(path);
+			if (direct == null || !paths.add(path)) return;
+			for (String directPath : direct) {
+				if (sourcePaths.containsKey(directPath))
+					addSourcePaths(directPath, paths);
+				else
+					paths.add(directPath);
+			}
+		}
+
 		protected Template compileTemplate (Source source) {
 			// Parse the template
 			ParserResult result = new Parser().parse(source);
+			List<String> direct = new ArrayList<String>();
 
 			// resolve includes and macros
 			String rootDir = null;
@@ -99,6 +150,7 @@ public interface TemplateLoader {
 			for (Include include : result.getIncludes()) {
 				String includePath = include.getPath().getText();
 				try {
+					direct.add(rootDir + includePath.substring(1, includePath.length() - 1));
 					Template template = load(rootDir + includePath.substring(1, includePath.length() - 1));
 					include.setTemplate(template);
 				} catch (Throwable t) {
@@ -110,6 +162,7 @@ public interface TemplateLoader {
 			for (IncludeRaw rawInclude : result.getRawIncludes()) {
 				String includePath = rawInclude.getPath().getText();
 				try {
+					direct.add(rootDir + includePath.substring(1, includePath.length() - 1));
 					Source content = loadSource(rootDir + includePath.substring(1, includePath.length() - 1));
 					rawInclude.setContent(content.content.getBytes("UTF-8"));
 				} catch (Throwable t) {
@@ -118,7 +171,25 @@ public interface TemplateLoader {
 				}
 			}
 
-			return new Template(result.getNodes(), result.getMacros(), result.getIncludes());
+			// pre-render all output that doesn't depend on the context, resolving the blocks of an extended template, then bind
+			// calls to macros
+			Template template = new Template(result.getNodes(), result.getMacros(), result.getIncludes());
+			Span extendedPath = result.getExtendedPath();
+			if (extendedPath != null) {
+				Template extended = null;
+				try {
+					direct.add(rootDir + extendedPath.getText().substring(1, extendedPath.getText().length() - 1));
+					extended = load(rootDir + extendedPath.getText().substring(1, extendedPath.getText().length() - 1));
+				} catch (Throwable t) {
+					io.marioslab.basis.template.Error.error("Couldn't load extended template '" + extendedPath.getText() + "'.", extendedPath, t);
+				}
+				template = Specializer.extend(extended, template);
+			} else {
+				template = Specializer.prerender(template);
+			}
+			CallBinder.bind(template);
+			sourcePaths.put(source.getPath(), Collections.unmodifiableList(direct));
+			return template;
 		}
 
 		protected abstract Source loadSource (String path);
@@ -164,6 +235,7 @@ public interface TemplateLoader {
 		/** Set the path and content of a template to be loaded with a call to {@link #load(String)}. **/
 		public MapTemplateLoader set (String path, String template) {
 			super.templates.remove(path);
+			super.sourcePaths.remove(path);
 			templates.put(path, new Source(path, template));
 			return this;
 		}
@@ -3,14 +3,25 @@ package io.marioslab.basis.template.interpreter;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import io.marioslab.basis.template.Error.TemplateException;
+import io.marioslab.basis.template.FragmentCache;
+import io.marioslab.basis.template.FragmentCache.BoundedFragmentCache;
 import io.marioslab.basis.template.Template;
 import io.marioslab.basis.template.TemplateContext;
 import io.marioslab.basis.template.parsing.Ast;
+import io.marioslab.basis.template.parsing.Ast.AsyncBlock;
+import io.marioslab.basis.template.parsing.Ast.Block;
 import io.marioslab.basis.template.parsing.Ast.Break;
 import io.marioslab.basis.template.parsing.Ast.Continue;
+import io.marioslab.basis.template.parsing.Ast.Include;
+import io.marioslab.basis.template.parsing.Ast.Macro;
+import io.marioslab.basis.template.parsing.Ast.MemoizedCall;
 import io.marioslab.basis.template.parsing.Ast.Node;
 import io.marioslab.basis.template.parsing.Ast.Return;
 import io.marioslab.basis.template.parsing.Ast.Return.ReturnValue;
@@ -29,9 +40,66 @@ import io.marioslab.basis.template.parsing.Ast.Return.ReturnValue;
  * </p>
  **/
 public class AstInterpreter {
+	private static ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+	private static Executor asyncExecutor;
+	private static FragmentCache fragmentCache;
+
+	/** Sets the pool used to render the iterations of parallel for loops, e.g. <code>for parallel row in rows</code>. Defaults to
+	 * {@link ForkJoinPool#commonPool()}. **/
+	public synchronized static void setForkJoinPool (ForkJoinPool pool) {
+		forkJoinPool = pool;
+	}
+
+	/** Returns the pool used to render the iterations of parallel for loops. **/
+	public synchronized static ForkJoinPool getForkJoinPool () {
+		return forkJoinPool;
+	}
+
+	/** Sets the executor used to render async blocks, e.g. <code>async ... end</code> or <code>include async "path"</code>. Async
+	 * blocks may wait for nested async blocks, so the executor must not run out of threads while blocks are pending. Defaults to
+	 * an executor starting a virtual thread per block if supported by the JVM, or an unbounded pool of daemon threads otherwise. **/
+	public synchronized static void setAsyncExecutor (Executor executor) {
+		asyncExecutor = executor;
+	}
+
+	/** Returns the executor used to render async blocks. **/
+	public synchronized static Executor getAsyncExecutor () {
+		if (asyncExecutor == null) asyncExecutor = createDefaultAsyncExecutor();
+		return asyncExecutor;
+	}
+
+	private static Executor createDefaultAsyncExecutor () {
+		try {
+			return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "basis-template-async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/** Sets the cache storing the output of cache blocks, e.g. <code>cache "tile" + id ... end</code>. Defaults to a
+	 * {@link BoundedFragmentCache} holding at most 32 MB of output. **/
+	public synchronized static void setFragmentCache (FragmentCache cache) {
+		fragmentCache = cache;
+	}
+
+	/** Returns the cache storing the output of cache blocks. **/
+	public synchronized static FragmentCache getFragmentCache () {
+		if (fragmentCache == null) fragmentCache = new BoundedFragmentCache(32 * 1024 * 1024);
+		return fragmentCache;
+	}
+
 	public static Object interpret (Template template, TemplateContext context, OutputStream out) {
+		return interpret(template, template.getNodes(), context, out);
+	}
+
+	/** Interprets the nodes of the template. Returns the return value of a return statement, or null. **/
+	public static Object interpret (Template template, List<Node> nodes, TemplateContext context, OutputStream out) {
 		try {
-			Object result = interpretNodeList(template.getNodes(), template, context, out);
+			Object result = interpretNodeList(nodes, template, context, out);
 			if (result == Return.RETURN_SENTINEL) {
 				return ((ReturnValue)result).getValue();
 			} else {
@@ -41,7 +109,7 @@ public class AstInterpreter {
 			if (t instanceof TemplateException)
 				throw (TemplateException)t;
 			else {
-				io.marioslab.basis.template.Error.error("Couldn't interpret node list due to I/O error, " + t.getMessage(), template.getNodes().get(0).getSpan());
+				io.marioslab.basis.template.Error.error("Couldn't interpret node list due to I/O error, " + t.getMessage(), nodes.get(0).getSpan());
 				return null; // never reached
 			}
 		} finally {
@@ -50,9 +118,63 @@ public class AstInterpreter {
 		}
 	}
 
+	/** Interprets the block of the template on a new scope of the context, as done by
+	 * {@link Template#renderFragment(String, TemplateContext, OutputStream)}. Macros included by the template via
+	 * <code>include "path" as alias</code> are set on the scope under their alias. **/
+	public static Object interpretBlock (Template template, Block block, TemplateContext context, OutputStream out) {
+		context.push();
+		try {
+			setIncludedMacros(template, context);
+			return interpret(template, Collections.singletonList(block), context, out);
+		} finally {
+			context.pop();
+		}
+	}
+
+	/** Calls the macro of the template, taking the arguments from the variables of the context named like the arguments of the
+	 * macro, as done by {@link Template#renderFragment(String, TemplateContext, OutputStream)}. Macros included by the template via
+	 * <code>include "path" as alias</code> are available to the macro under their alias. Returns the return value of the macro. **/
+	public static Object interpretMacro (Template template, Macro macro, TemplateContext context, OutputStream out) {
+		TemplateContext macroContext = new TemplateContext();
+		macroContext.setFlushBeforeAwait(context.isFlushBeforeAwait());
+		setIncludedMacros(template, macroContext);
+		Object[] arguments = new Object[macro.getArgumentNames().size()];
+		for (int i = 0; i < arguments.length; i++) {
+			String name = macro.getArgumentNames().get(i).getText();
+			arguments[i] = context.get(name);
+			macroContext.set(name, arguments[i]);
+		}
+
+		try {
+			MemoizedCall memoized = macro.getMemoizedCall(arguments);
+			if (memoized != null) {
+				out.write(memoized.getOutput());
+				return memoized.getReturnValue();
+			}
+			return macro.invoke(macroContext, arguments, out);
+		} catch (Throwable t) {
+			if (t instanceof TemplateException)
+				throw (TemplateException)t;
+			else {
+				io.marioslab.basis.template.Error.error("Couldn't interpret macro due to I/O error, " + t.getMessage(), macro.getSpan());
+				return null; // never reached
+			}
+		} finally {
+			Return.RETURN_SENTINEL.setValue(null);
+		}
+	}
+
+	private static void setIncludedMacros (Template template, TemplateContext context) {
+		for (Include include : template.getIncludes()) {
+			if (include.isMacrosOnly() && include.getTemplate() != null)
+				context.setOnCurrentScope(include.getAlias().getText(), include.getTemplate().getMacros());
+		}
+	}
+
 	public static Object interpretNodeList (List<Node> nodes, Template template, TemplateContext context, OutputStream out) throws IOException {
 		for (int i = 0, n = nodes.size(); i < n; i++) {
 			Node node = nodes.get(i);
+			if (node instanceof AsyncBlock && !(out instanceof SplicingOutputStream)) return interpretNodeListSpliced(nodes.subList(i, n), template, context, out);
 			Object value = node.evaluate(template, context, out);
 			if (value != null) {
 				if (value == Break.BREAK_SENTINEL || value == Continue.CONTINUE_SENTINEL || value == Return.RETURN_SENTINEL)
@@ -63,4 +185,19 @@ public class AstInterpreter {
 		}
 		return null;
 	}
+
+	/** Interprets the nodes starting with an async block, splicing the output of async blocks into the output of the other nodes
+	 * in order. Waits for all async blocks to complete before returning. **/
+	private static Object interpretNodeListSpliced (List<Node> nodes, Template template, TemplateContext context, OutputStream out) throws IOException {
+		SplicingOutputStream splicer = new SplicingOutputStream(out);
+		boolean finished = false;
+		try {
+			Object result = interpretNodeList(nodes, template, context, splicer);
+			splicer.finish();
+			finished = true;
+			return result;
+		} finally {
+			if (!finished) splicer.cancel();
+		}
+	}
 }
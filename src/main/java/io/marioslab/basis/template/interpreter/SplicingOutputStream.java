@@ -0,0 +1,111 @@
+
+package io.marioslab.basis.template.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** Internal. An output stream that splices the output of concurrently rendered async blocks into the output of the rest of a
+ * template in document order. As long as no async block is pending, bytes are written through to the underlying stream. Once an
+ * async block has been spliced in via {@link #splice(Future)}, subsequent bytes are buffered until all async blocks before them
+ * have completed. {@link #finish()} must be called to wait for all pending async blocks and write out the remaining output. **/
+public class SplicingOutputStream extends OutputStream {
+	private final OutputStream out;
+
+	/** The pending segments in document order, either {@link Future} instances of async blocks or {@link ByteArrayOutputStream}
+	 * instances buffering the output following an async block. **/
+	private final ArrayDeque<Object> segments = new ArrayDeque<Object>();
+
+	/** The buffer at the tail of the segments bytes are currently written to, or null. **/
+	private ByteArrayOutputStream buffer;
+
+	public SplicingOutputStream (OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write (int b) throws IOException {
+		if (segments.isEmpty())
+			out.write(b);
+		else
+			getBuffer().write(b);
+	}
+
+	@Override
+	public void write (byte[] b, int off, int len) throws IOException {
+		if (segments.isEmpty())
+			out.write(b, off, len);
+		else
+			getBuffer().write(b, off, len);
+	}
+
+	private ByteArrayOutputStream getBuffer () {
+		if (buffer == null) {
+			buffer = new ByteArrayOutputStream();
+			segments.add(buffer);
+		}
+		return buffer;
+	}
+
+	/** Appends the output of an async block at the current position. Writes out all segments at the head of the stream that have
+	 * already completed. **/
+	public void splice (Future<ByteArrayOutputStream> asyncOutput) throws IOException {
+		segments.add(asyncOutput);
+		buffer = null;
+		drain(false);
+	}
+
+	/** Waits for all pending async blocks to complete and writes out the remaining output in order. **/
+	public void finish () throws IOException {
+		drain(true);
+	}
+
+	/** Cancels all pending async blocks and discards the buffered output. **/
+	public void cancel () {
+		for (Object segment : segments) {
+			if (segment instanceof Future) ((Future<?>)segment).cancel(true);
+		}
+		segments.clear();
+		buffer = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void drain (boolean wait) throws IOException {
+		while (!segments.isEmpty()) {
+			Object segment = segments.peek();
+			if (segment instanceof Future) {
+				Future<ByteArrayOutputStream> future = (Future<ByteArrayOutputStream>)segment;
+				if (!wait && !future.isDone()) return;
+				get(future).writeTo(out);
+			} else {
+				if (segment == buffer) buffer = null;
+				((ByteArrayOutputStream)segment).writeTo(out);
+			}
+			segments.poll();
+		}
+	}
+
+	private static ByteArrayOutputStream get (Future<ByteArrayOutputStream> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for async block.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof java.lang.Error) throw (java.lang.Error)cause;
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	public void flush () throws IOException {
+		if (segments.isEmpty()) out.flush();
+	}
+}
@@ -1,24 +1,45 @@
 
 package io.marioslab.basis.template.parsing;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.BaseStream;
+import java.util.stream.IntStream;
 
 import io.marioslab.basis.template.Error;
 import io.marioslab.basis.template.Error.TemplateException;
+import io.marioslab.basis.template.FragmentCache;
 import io.marioslab.basis.template.Template;
 import io.marioslab.basis.template.TemplateContext;
+import io.marioslab.basis.template.TemplateContext.PrimitiveValue;
 import io.marioslab.basis.template.TemplateLoader.Source;
 import io.marioslab.basis.template.interpreter.AstInterpreter;
 import io.marioslab.basis.template.interpreter.Reflection;
+import io.marioslab.basis.template.interpreter.SplicingOutputStream;
 import io.marioslab.basis.template.parsing.Ast.Return.ReturnValue;
 import io.marioslab.basis.template.parsing.Parser.Macros;
 
@@ -73,6 +94,13 @@ public abstract class Ast {
 			}
 		}
 
+		/** Internal. Creates a text node emitting the given UTF-8 bytes, e.g. output computed when a template is specialized, see
+		 * {@link Template#specialize(Map)}. **/
+		public Text (Span span, byte[] bytes) {
+			super(span);
+			this.bytes = bytes;
+		}
+
 		/** Returns the UTF-8 representation of this text node. **/
 		public byte[] getBytes () {
 			return bytes;
@@ -86,11 +114,69 @@ public abstract class Ast {
 	}
 
 	/** All expressions are subclasses of this node type. Expressions are separated into unary operations (!, -), binary operations
-	 * (+, -, *, /, etc.) and ternary operations (?:). */
+	 * (+, -, *, /, etc.) and ternary operations (?:).
+	 *
+	 * <p>
+	 * Besides the generic {@link #evaluate(Template, TemplateContext, OutputStream)} method, expressions offer specialized
+	 * evaluation methods for boolean, int, long and double values. Expressions override these to compute their value without
+	 * boxing it, e.g. when an arithmetic operation is nested inside a comparison. The specialized methods do not perform any type
+	 * coercion. If the value of the expression does not have exactly the requested type, an {@link UnexpectedResultException}
+	 * carrying the value is thrown, and the caller continues on the generic path, applying the usual coercion rules.
+	 * </p> */
 	public abstract static class Expression extends Node {
 		public Expression (Span span) {
 			super(span);
 		}
+
+		/** Evaluates the expression to a boolean. Throws an {@link UnexpectedResultException} if the value is not a
+		 * {@link Boolean}. **/
+		public boolean evaluateBoolean (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = evaluate(template, context, out);
+			if (value instanceof Boolean) return (Boolean)value;
+			throw new UnexpectedResultException(value);
+		}
+
+		/** Evaluates the expression to an int. Throws an {@link UnexpectedResultException} if the value is not an
+		 * {@link Integer}. **/
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = evaluate(template, context, out);
+			if (value instanceof Integer) return (Integer)value;
+			throw new UnexpectedResultException(value);
+		}
+
+		/** Evaluates the expression to a long. Throws an {@link UnexpectedResultException} if the value is not a {@link Long}.
+		 * **/
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = evaluate(template, context, out);
+			if (value instanceof Long) return (Long)value;
+			throw new UnexpectedResultException(value);
+		}
+
+		/** Evaluates the expression to a double. Throws an {@link UnexpectedResultException} if the value is not a
+		 * {@link Double}. **/
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = evaluate(template, context, out);
+			if (value instanceof Double) return (Double)value;
+			throw new UnexpectedResultException(value);
+		}
+	}
+
+	/** Thrown by the specialized evaluation methods of {@link Expression} if the value of an expression does not have the
+	 * requested type. Carries the already computed value, so the caller can continue with it on the generic path without
+	 * evaluating the expression a second time. Does not capture a stack trace, as it is used for control flow. **/
+	public static class UnexpectedResultException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final Object result;
+
+		public UnexpectedResultException (Object result) {
+			super(null, null, false, false);
+			this.result = result;
+		}
+
+		/** Returns the value the expression evaluated to. **/
+		public Object getResult () {
+			return result;
+		}
 	}
 
 	/** An unary operation node represents a logical or numerical negation. **/
@@ -117,6 +203,12 @@ public abstract class Ast {
 			this.operand = operand;
 		}
 
+		public UnaryOperation (Span span, UnaryOperator operator, Expression operand) {
+			super(span);
+			this.operator = operator;
+			this.operand = operand;
+		}
+
 		public UnaryOperator getOperator () {
 			return operator;
 		}
@@ -125,10 +217,7 @@ public abstract class Ast {
 			return operand;
 		}
 
-		@Override
-		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
-			Object operand = getOperand().evaluate(template, context, out);
-
+		private Object evaluateOperator (Object operand) {
 			if (getOperator() == UnaryOperator.Negate) {
 				if (operand instanceof Integer)
 					return -(Integer)operand;
@@ -146,18 +235,122 @@ public abstract class Ast {
 					Error.error("Operand of operator '" + getOperator().name() + "' must be a number, got " + operand, getSpan());
 					return null; // never reached
 				}
-			} else if (getOperator() == UnaryOperator.Not) {
-				if (!(operand instanceof Boolean)) Error.error("Operand of operator '" + getOperator().name() + "' must be a boolean", getSpan());
-				return !(Boolean)operand;
 			} else {
 				return operand;
 			}
 		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (getOperator() == UnaryOperator.Not) return evaluateBoolean(template, context, out);
+			return evaluateOperator(getOperand().evaluate(template, context, out));
+		}
+
+		@Override
+		public boolean evaluateBoolean (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (getOperator() != UnaryOperator.Not) return super.evaluateBoolean(template, context, out);
+			try {
+				return !getOperand().evaluateBoolean(template, context, out);
+			} catch (UnexpectedResultException e) {
+				Error.error("Operand of operator '" + getOperator().name() + "' must be a boolean", getSpan());
+				return false; // never reached
+			}
+		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (getOperator() == UnaryOperator.Not) return super.evaluateInt(template, context, out);
+			int value;
+			try {
+				value = getOperand().evaluateInt(template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectInt(evaluateOperator(e.getResult()));
+			}
+			return getOperator() == UnaryOperator.Negate ? -value : value;
+		}
+
+		@Override
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (getOperator() == UnaryOperator.Not) return super.evaluateLong(template, context, out);
+			long value;
+			try {
+				value = getOperand().evaluateLong(template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectLong(evaluateOperator(e.getResult()));
+			}
+			return getOperator() == UnaryOperator.Negate ? -value : value;
+		}
+
+		@Override
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (getOperator() == UnaryOperator.Not) return super.evaluateDouble(template, context, out);
+			double value;
+			try {
+				value = getOperand().evaluateDouble(template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectDouble(evaluateOperator(e.getResult()));
+			}
+			return getOperator() == UnaryOperator.Negate ? -value : value;
+		}
+	}
+
+	/** Evaluates the condition of an if or while statement, reporting an error if it doesn't evaluate to a boolean. **/
+	private static boolean evaluateCondition (Expression condition, Template template, TemplateContext context, OutputStream out) throws IOException {
+		try {
+			return condition.evaluateBoolean(template, context, out);
+		} catch (UnexpectedResultException e) {
+			Error.error("Expected a condition evaluating to a boolean, got " + e.getResult(), condition.getSpan());
+			return false; // never reached
+		}
+	}
+
+	/** Waits for the future to complete and returns its result. Flushes the output stream before blocking if
+	 * {@link TemplateContext#isFlushBeforeAwait()} returns true. Reports an error if the future completed exceptionally. **/
+	private static Object await (Future<?> future, Span span, TemplateContext context, OutputStream out) throws IOException {
+		if (!future.isDone() && context.isFlushBeforeAwait()) out.flush();
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Error.error("Interrupted while waiting for asynchronous value.", span, e);
+		} catch (ExecutionException e) {
+			Error.error("Couldn't resolve asynchronous value, " + e.getCause().getMessage(), span, e.getCause());
+		} catch (CancellationException e) {
+			Error.error("Asynchronous value was cancelled.", span, e);
+		}
+		return null; // never reached
+	}
+
+	private static boolean expectBoolean (Object value) {
+		if (value instanceof Boolean) return (Boolean)value;
+		throw new UnexpectedResultException(value);
+	}
+
+	private static int expectInt (Object value) {
+		if (value instanceof Integer) return (Integer)value;
+		throw new UnexpectedResultException(value);
+	}
+
+	private static long expectLong (Object value) {
+		if (value instanceof Long) return (Long)value;
+		throw new UnexpectedResultException(value);
+	}
+
+	private static double expectDouble (Object value) {
+		if (value instanceof Double) return (Double)value;
+		throw new UnexpectedResultException(value);
 	}
 
 	/** A binary operation represents arithmetic operators, like addition or division, comparison operators, like less than or
-	 * equals, logical operators, like and, or an assignment. **/
+	 * equals, logical operators, like and, or an assignment.
+	 *
+	 * <p>
+	 * Arithmetic and comparison operations record the types of their operands the first time they are evaluated. If both operands
+	 * were int, long or double values, subsequent evaluations fetch the operands via the specialized evaluation methods of
+	 * {@link Expression} and compute the result without boxing or type dispatch. If an operand later evaluates to a value of a
+	 * different type, the operation permanently falls back to the generic, coercing implementation. **/
 	public static class BinaryOperation extends Expression {
+		private static final int UNINITIALIZED = 0, INT = 1, LONG = 2, DOUBLE = 3, GENERIC = 4;
 
 		public static enum BinaryOperator {
 			Addition, Subtraction, Multiplication, Division, Modulo, Equal, NotEqual, Less, LessEqual, Greater, GreaterEqual, And, Or, Xor, Assignment;
@@ -187,6 +380,10 @@ public abstract class Ast {
 		private final BinaryOperator operator;
 		private final Expression rightOperand;
 
+		/** The operand types observed on first evaluation, left type in the upper, right type in the lower 4 bits. Written
+		 * without synchronization, as every specialized evaluation checks the actual operand types anyway. **/
+		private int operandTypes = UNINITIALIZED;
+
 		public BinaryOperation (Expression leftOperand, Token operator, Expression rightOperand) {
 			super(operator.getSpan());
 			this.leftOperand = leftOperand;
@@ -194,6 +391,13 @@ public abstract class Ast {
 			this.rightOperand = rightOperand;
 		}
 
+		public BinaryOperation (Span span, Expression leftOperand, BinaryOperator operator, Expression rightOperand) {
+			super(span);
+			this.leftOperand = leftOperand;
+			this.operator = operator;
+			this.rightOperand = rightOperand;
+		}
+
 		public Expression getLeftOperand () {
 			return leftOperand;
 		}
@@ -371,28 +575,6 @@ public abstract class Ast {
 			}
 		}
 
-		private Object evaluateAnd (Object left, Template template, TemplateContext context, OutputStream out) throws IOException {
-			if (!(left instanceof Boolean)) Error.error("Left operand must be a boolean, got " + left + ".", getLeftOperand().getSpan());
-			if (!(Boolean)left) return false;
-			Object right = getRightOperand().evaluate(template, context, out);
-			if (!(right instanceof Boolean)) Error.error("Right operand must be a boolean, got " + right + ".", getRightOperand().getSpan());
-			return (Boolean)left && (Boolean)right;
-		}
-
-		private Object evaluateOr (Object left, Template template, TemplateContext context, OutputStream out) throws IOException {
-			if (!(left instanceof Boolean)) Error.error("Left operand must be a boolean, got " + left + ".", getLeftOperand().getSpan());
-			if ((Boolean)left) return true;
-			Object right = getRightOperand().evaluate(template, context, out);
-			if (!(right instanceof Boolean)) Error.error("Right operand must be a boolean, got " + right + ".", getRightOperand().getSpan());
-			return (Boolean)left || (Boolean)right;
-		}
-
-		private Object evaluateXor (Object left, Object right) {
-			if (!(left instanceof Boolean)) Error.error("Left operand must be a boolean, got " + left + ".", getLeftOperand().getSpan());
-			if (!(right instanceof Boolean)) Error.error("Right operand must be a boolean, got " + right + ".", getRightOperand().getSpan());
-			return (Boolean)left ^ (Boolean)right;
-		}
-
 		private Object evaluateEqual (Object left, Object right) {
 			if (left != null) return left.equals(right);
 			if (right != null) return right.equals(left);
@@ -403,18 +585,9 @@ public abstract class Ast {
 			return !(Boolean)evaluateEqual(left, right);
 		}
 
-		@Override
-		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
-			if (getOperator() == BinaryOperator.Assignment) {
-				if (!(getLeftOperand() instanceof VariableAccess)) Error.error("Can only assign to top-level variables in context.", getLeftOperand().getSpan());
-				Object value = getRightOperand().evaluate(template, context, out);
-				context.set(((VariableAccess)getLeftOperand()).getVariableName().getText(), value);
-				return null;
-			}
-
-			Object left = getLeftOperand().evaluate(template, context, out);
-			Object right = getOperator() == BinaryOperator.And || getOperator() == BinaryOperator.Or ? null : getRightOperand().evaluate(template, context, out);
-
+		/** Applies the operator to the operand values following the coercion rules of the language. Not used for assignments
+		 * and the logical operators. **/
+		private Object evaluateOperator (Object left, Object right) {
 			switch (getOperator()) {
 			case Addition:
 				return evaluateAddition(left, right);
@@ -438,15 +611,289 @@ public abstract class Ast {
 				return evaluateEqual(left, right);
 			case NotEqual:
 				return evaluateNotEqual(left, right);
+			default:
+				Error.error("Binary operator " + getOperator().name() + " not implemented", getSpan());
+				return null;
+			}
+		}
+
+		private boolean isArithmetic () {
+			BinaryOperator op = getOperator();
+			return op == BinaryOperator.Addition || op == BinaryOperator.Subtraction || op == BinaryOperator.Multiplication || op == BinaryOperator.Division
+				|| op == BinaryOperator.Modulo;
+		}
+
+		private boolean isComparison () {
+			BinaryOperator op = getOperator();
+			return op == BinaryOperator.Less || op == BinaryOperator.LessEqual || op == BinaryOperator.Greater || op == BinaryOperator.GreaterEqual
+				|| op == BinaryOperator.Equal || op == BinaryOperator.NotEqual;
+		}
+
+		private static int getType (Object value) {
+			if (value instanceof Integer) return INT;
+			if (value instanceof Long) return LONG;
+			if (value instanceof Double) return DOUBLE;
+			return GENERIC;
+		}
+
+		/** Returns the operand types to specialize on given the first operand values, or GENERIC if the operation can not be
+		 * specialized. Equality is only specialized for integral operands of the same type, as equals() returns false for
+		 * values of different boxed types. **/
+		private int getOperandTypes (Object left, Object right) {
+			int leftType = getType(left), rightType = getType(right);
+			if (leftType == GENERIC || rightType == GENERIC) return GENERIC;
+			if (getOperator() == BinaryOperator.Equal || getOperator() == BinaryOperator.NotEqual) {
+				if (leftType != rightType || leftType == DOUBLE) return GENERIC;
+			}
+			return (leftType << 4) | rightType;
+		}
+
+		/** Returns the type both operands are widened to, given the specialized operand types. **/
+		private static int getWidenedType (int operandTypes) {
+			return Math.max(operandTypes >> 4, operandTypes & 0xf);
+		}
+
+		private static long evaluateLong (Expression operand, int type, Template template, TemplateContext context, OutputStream out) throws IOException {
+			return type == INT ? operand.evaluateInt(template, context, out) : operand.evaluateLong(template, context, out);
+		}
+
+		private static double evaluateDouble (Expression operand, int type, Template template, TemplateContext context, OutputStream out)
+			throws IOException {
+			if (type == INT) return operand.evaluateInt(template, context, out);
+			if (type == LONG) return operand.evaluateLong(template, context, out);
+			return operand.evaluateDouble(template, context, out);
+		}
+
+		/** Boxes a widened operand value back to the type it was evaluated as. **/
+		private static Object boxOperand (long value, int type) {
+			return type == INT ? (Object)(int)value : (Object)value;
+		}
+
+		/** Boxes a widened operand value back to the type it was evaluated as. **/
+		private static Object boxOperand (double value, int type) {
+			if (type == INT) return (int)value;
+			if (type == LONG) return (long)value;
+			return value;
+		}
+
+		/** Called if an operand of a specialized operation evaluated to a value of an unexpected type. Permanently switches this
+		 * node to the generic implementation and completes the evaluation with the already computed left operand value. **/
+		private Object deoptimize (Object left, Template template, TemplateContext context, OutputStream out) throws IOException {
+			operandTypes = GENERIC;
+			return evaluateOperator(left, getRightOperand().evaluate(template, context, out));
+		}
+
+		/** See {@link #deoptimize(Object, Template, TemplateContext, OutputStream)}, called if the right operand had an unexpected
+		 * type. **/
+		private Object deoptimize (Object left, Object right) {
+			operandTypes = GENERIC;
+			return evaluateOperator(left, right);
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			switch (getOperator()) {
+			case Assignment:
+				if (!(getLeftOperand() instanceof VariableAccess)) Error.error("Can only assign to top-level variables in context.", getLeftOperand().getSpan());
+				String name = ((VariableAccess)getLeftOperand()).getVariableName().getText();
+				if (context.isShared(name))
+					Error.error("Can not assign to variable '" + name + "' defined outside of a parallel for loop or async block.", getLeftOperand().getSpan());
+				Object value = getRightOperand().evaluate(template, context, out);
+				context.set(name, value);
+				return null;
 			case And:
-				return evaluateAnd(left, template, context, out);
 			case Or:
-				return evaluateOr(left, template, context, out);
 			case Xor:
-				return evaluateXor(left, right);
+				return evaluateBoolean(template, context, out);
 			default:
-				Error.error("Binary operator " + getOperator().name() + " not implemented", getSpan());
-				return null;
+				break;
+			}
+
+			int types = operandTypes;
+			if (types != UNINITIALIZED && types != GENERIC) {
+				try {
+					if (isComparison()) return evaluateBoolean(template, context, out);
+					int type = getWidenedType(types);
+					if (type == INT) return evaluateInt(template, context, out);
+					if (type == LONG) return evaluateLong(template, context, out);
+					return evaluateDouble(template, context, out);
+				} catch (UnexpectedResultException e) {
+					// the operation was deoptimized and yielded a value of another type
+					return e.getResult();
+				}
+			}
+
+			Object left = getLeftOperand().evaluate(template, context, out);
+			Object right = getRightOperand().evaluate(template, context, out);
+			if (types == UNINITIALIZED) operandTypes = getOperandTypes(left, right);
+			return evaluateOperator(left, right);
+		}
+
+		@Override
+		public boolean evaluateBoolean (Template template, TemplateContext context, OutputStream out) throws IOException {
+			BinaryOperator op = getOperator();
+			if (op == BinaryOperator.And || op == BinaryOperator.Or || op == BinaryOperator.Xor) {
+				boolean left = false;
+				try {
+					left = getLeftOperand().evaluateBoolean(template, context, out);
+				} catch (UnexpectedResultException e) {
+					Error.error("Left operand must be a boolean, got " + e.getResult() + ".", getLeftOperand().getSpan());
+				}
+				if (op == BinaryOperator.And && !left) return false;
+				if (op == BinaryOperator.Or && left) return true;
+				boolean right = false;
+				try {
+					right = getRightOperand().evaluateBoolean(template, context, out);
+				} catch (UnexpectedResultException e) {
+					Error.error("Right operand must be a boolean, got " + e.getResult() + ".", getRightOperand().getSpan());
+				}
+				return op == BinaryOperator.Xor ? left ^ right : right;
+			}
+
+			int types = operandTypes;
+			if (types == UNINITIALIZED || types == GENERIC || !isComparison()) return super.evaluateBoolean(template, context, out);
+
+			int type = getWidenedType(types);
+			if (type == DOUBLE) {
+				double left, right;
+				try {
+					left = evaluateDouble(getLeftOperand(), types >> 4, template, context, out);
+				} catch (UnexpectedResultException e) {
+					return expectBoolean(deoptimize(e.getResult(), template, context, out));
+				}
+				try {
+					right = evaluateDouble(getRightOperand(), types & 0xf, template, context, out);
+				} catch (UnexpectedResultException e) {
+					return expectBoolean(deoptimize(boxOperand(left, types >> 4), e.getResult()));
+				}
+				switch (op) {
+				case Less:
+					return left < right;
+				case LessEqual:
+					return left <= right;
+				case Greater:
+					return left > right;
+				default:
+					return left >= right;
+				}
+			} else {
+				long left, right;
+				try {
+					left = evaluateLong(getLeftOperand(), types >> 4, template, context, out);
+				} catch (UnexpectedResultException e) {
+					return expectBoolean(deoptimize(e.getResult(), template, context, out));
+				}
+				try {
+					right = evaluateLong(getRightOperand(), types & 0xf, template, context, out);
+				} catch (UnexpectedResultException e) {
+					return expectBoolean(deoptimize(boxOperand(left, types >> 4), e.getResult()));
+				}
+				switch (op) {
+				case Less:
+					return left < right;
+				case LessEqual:
+					return left <= right;
+				case Greater:
+					return left > right;
+				case GreaterEqual:
+					return left >= right;
+				case Equal:
+					return left == right;
+				default:
+					return left != right;
+				}
+			}
+		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			int types = operandTypes;
+			if (types != ((INT << 4) | INT) || !isArithmetic()) return super.evaluateInt(template, context, out);
+
+			int left, right;
+			try {
+				left = getLeftOperand().evaluateInt(template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectInt(deoptimize(e.getResult(), template, context, out));
+			}
+			try {
+				right = getRightOperand().evaluateInt(template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectInt(deoptimize(left, e.getResult()));
+			}
+			switch (getOperator()) {
+			case Addition:
+				return left + right;
+			case Subtraction:
+				return left - right;
+			case Multiplication:
+				return left * right;
+			case Division:
+				return left / right;
+			default:
+				return left % right;
+			}
+		}
+
+		@Override
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			int types = operandTypes;
+			if (types == UNINITIALIZED || types == GENERIC || getWidenedType(types) != LONG || !isArithmetic())
+				return super.evaluateLong(template, context, out);
+
+			long left, right;
+			try {
+				left = evaluateLong(getLeftOperand(), types >> 4, template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectLong(deoptimize(e.getResult(), template, context, out));
+			}
+			try {
+				right = evaluateLong(getRightOperand(), types & 0xf, template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectLong(deoptimize(boxOperand(left, types >> 4), e.getResult()));
+			}
+			switch (getOperator()) {
+			case Addition:
+				return left + right;
+			case Subtraction:
+				return left - right;
+			case Multiplication:
+				return left * right;
+			case Division:
+				return left / right;
+			default:
+				return left % right;
+			}
+		}
+
+		@Override
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			int types = operandTypes;
+			if (types == UNINITIALIZED || types == GENERIC || getWidenedType(types) != DOUBLE || !isArithmetic())
+				return super.evaluateDouble(template, context, out);
+
+			double left, right;
+			try {
+				left = evaluateDouble(getLeftOperand(), types >> 4, template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectDouble(deoptimize(e.getResult(), template, context, out));
+			}
+			try {
+				right = evaluateDouble(getRightOperand(), types & 0xf, template, context, out);
+			} catch (UnexpectedResultException e) {
+				return expectDouble(deoptimize(boxOperand(left, types >> 4), e.getResult()));
+			}
+			switch (getOperator()) {
+			case Addition:
+				return left + right;
+			case Subtraction:
+				return left - right;
+			case Multiplication:
+				return left * right;
+			case Division:
+				return left / right;
+			default:
+				return left % right;
 			}
 		}
 	}
@@ -478,9 +925,41 @@ public abstract class Ast {
 
 		@Override
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
-			Object condition = getCondition().evaluate(template, context, out);
-			if (!(condition instanceof Boolean)) Error.error("Condition of ternary operator must be a boolean, got " + condition + ".", getSpan());
-			return ((Boolean)condition) ? getTrueExpression().evaluate(template, context, out) : getFalseExpression().evaluate(template, context, out);
+			return evaluateCondition(template, context, out) ? getTrueExpression().evaluate(template, context, out)
+				: getFalseExpression().evaluate(template, context, out);
+		}
+
+		private boolean evaluateCondition (Template template, TemplateContext context, OutputStream out) throws IOException {
+			try {
+				return getCondition().evaluateBoolean(template, context, out);
+			} catch (UnexpectedResultException e) {
+				Error.error("Condition of ternary operator must be a boolean, got " + e.getResult() + ".", getSpan());
+				return false; // never reached
+			}
+		}
+
+		@Override
+		public boolean evaluateBoolean (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return evaluateCondition(template, context, out) ? getTrueExpression().evaluateBoolean(template, context, out)
+				: getFalseExpression().evaluateBoolean(template, context, out);
+		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return evaluateCondition(template, context, out) ? getTrueExpression().evaluateInt(template, context, out)
+				: getFalseExpression().evaluateInt(template, context, out);
+		}
+
+		@Override
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return evaluateCondition(template, context, out) ? getTrueExpression().evaluateLong(template, context, out)
+				: getFalseExpression().evaluateLong(template, context, out);
+		}
+
+		@Override
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return evaluateCondition(template, context, out) ? getTrueExpression().evaluateDouble(template, context, out)
+				: getFalseExpression().evaluateDouble(template, context, out);
 		}
 	}
 
@@ -513,6 +992,11 @@ public abstract class Ast {
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			return value;
 		}
+
+		@Override
+		public boolean evaluateBoolean (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return value;
+		}
 	}
 
 	/** A double precision floating point literal. Must be marked with the <code>d</code> suffix, e.g. "1.0d". **/
@@ -532,6 +1016,11 @@ public abstract class Ast {
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			return value;
 		}
+
+		@Override
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return value;
+		}
 	}
 
 	/** A single precision floating point literla. May be optionally marked with the <code>f</code> suffix, e.g. "1.0f". **/
@@ -610,6 +1099,11 @@ public abstract class Ast {
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			return value;
 		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return value;
+		}
 	}
 
 	/** A long integer literal. Must be marked with the <code>l</code> suffix, e.g. "123l". **/
@@ -629,6 +1123,11 @@ public abstract class Ast {
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			return value;
 		}
+
+		@Override
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return value;
+		}
 	}
 
 	/** A character literal, enclosed in single quotes. Supports escape sequences \n, \r,\t, \' and \\. **/
@@ -712,6 +1211,26 @@ public abstract class Ast {
 		}
 	}
 
+	/** Represents a value that is known when the template is loaded or specialized, e.g. a context variable fixed by
+	 * {@link Template#specialize(Map)}, or the result of an operation on such values. Evaluates to the same value every time. **/
+	public static class Constant extends Expression {
+		private final Object value;
+
+		public Constant (Span span, Object value) {
+			super(span);
+			this.value = value;
+		}
+
+		public Object getValue () {
+			return value;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return value;
+		}
+	}
+
 	/** Represents a top-level variable access by name. E.g. in the expression "a + 1", <code>a</code> would be encoded as a
 	 * VariableAccess node. Variables can be both read (in expressions) and written to (in assignments). Variable values are looked
 	 * up and written to a {@link TemplateContext}. **/
@@ -724,24 +1243,82 @@ public abstract class Ast {
 			return getSpan();
 		}
 
+		/** Returns the value of the variable. If the value is a {@link Future}, waits for it to complete and returns its
+		 * result. **/
 		@Override
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			Object value = context.get(getSpan().getText());
 			if (value == null) Error.error("Couldn't find variable '" + getSpan().getText() + "' in context.", getSpan());
+			if (value instanceof Future) return await((Future<?>)value, getSpan(), context, out);
 			return value;
 		}
-	}
-
-	/** Represents a map or array element access of the form <code>mapOrArray[keyOrIndex]</code>. Maps and arrays may only be read
-	 * from. **/
-	public static class MapOrArrayAccess extends Expression {
-		private final Expression mapOrArray;
-		private final Expression keyOrIndex;
 
-		public MapOrArrayAccess (Span span, Expression mapOrArray, Expression keyOrIndex) {
-			super(span);
-			this.mapOrArray = mapOrArray;
-			this.keyOrIndex = keyOrIndex;
+		/** Looks up the variable without boxing the value of {@link PrimitiveValue} holders. Returns the holder, if the value has
+		 * the expected type. **/
+		private Object lookup (TemplateContext context, int expectedType, OutputStream out) throws IOException {
+			Object value = context.lookup(getSpan().getText());
+			if (value == null) Error.error("Couldn't find variable '" + getSpan().getText() + "' in context.", getSpan());
+			if (value instanceof PrimitiveValue) {
+				PrimitiveValue primitive = (PrimitiveValue)value;
+				if (primitive.getType() != expectedType) throw new UnexpectedResultException(primitive.getValue());
+			}
+			// the result of a future is checked against the expected type by the caller like any other value
+			if (value instanceof Future) value = await((Future<?>)value, getSpan(), context, out);
+			return value;
+		}
+
+		@Override
+		public boolean evaluateBoolean (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = lookup(context, PrimitiveValue.BOOLEAN, out);
+			if (value instanceof PrimitiveValue) return ((PrimitiveValue)value).getBoolean();
+			return expectBoolean(value);
+		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = lookup(context, PrimitiveValue.INT, out);
+			if (value instanceof PrimitiveValue) return ((PrimitiveValue)value).getInt();
+			return expectInt(value);
+		}
+
+		@Override
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = lookup(context, PrimitiveValue.LONG, out);
+			if (value instanceof PrimitiveValue) return ((PrimitiveValue)value).getLong();
+			return expectLong(value);
+		}
+
+		@Override
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = lookup(context, PrimitiveValue.DOUBLE, out);
+			if (value instanceof PrimitiveValue) return ((PrimitiveValue)value).getDouble();
+			return expectDouble(value);
+		}
+	}
+
+	/** Represents a map or array element access of the form <code>mapOrArray[keyOrIndex]</code>. Maps and arrays may only be read
+	 * from.
+	 *
+	 * <p>
+	 * The first time the node is evaluated, it specializes itself to the class of the map, list or array it was given, e.g. to
+	 * read elements from an <code>int[]</code> directly. Subsequent evaluations only check that the receiver still has that
+	 * class. If the check fails, the node specializes itself again, up to {@link #MAX_SPECIALIZATIONS} times, after which it
+	 * settles on the generic implementation handling all receiver types. A receiver no specialized implementation exists for, like
+	 * a <code>float[]</code>, settles the node on the generic implementation right away.
+	 * </p> **/
+	public static class MapOrArrayAccess extends Expression {
+		/** The number of times a node may specialize itself before falling back to the generic implementation. **/
+		public static final int MAX_SPECIALIZATIONS = 4;
+
+		private final Expression mapOrArray;
+		private final Expression keyOrIndex;
+		private ElementAccess access;
+		private int specializations;
+
+		public MapOrArrayAccess (Span span, Expression mapOrArray, Expression keyOrIndex) {
+			super(span);
+			this.mapOrArray = mapOrArray;
+			this.keyOrIndex = keyOrIndex;
 		}
 
 		/** Returns an expression that must evaluate to a map or array. **/
@@ -754,27 +1331,51 @@ public abstract class Ast {
 			return keyOrIndex;
 		}
 
-		@SuppressWarnings("rawtypes")
-		@Override
-		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+		private Object evaluateMapOrArray (Template template, TemplateContext context, OutputStream out) throws IOException {
 			Object mapOrArray = getMapOrArray().evaluate(template, context, out);
 			if (mapOrArray == null) Error.error("Couldn't find map or array in context.", getSpan());
+			return mapOrArray;
+		}
+
+		private Object evaluateKeyOrIndex (Template template, TemplateContext context, OutputStream out) throws IOException {
 			Object keyOrIndex = getKeyOrIndex().evaluate(template, context, out);
 			if (keyOrIndex == null) Error.error("Couldn't evaluate key or index.", getKeyOrIndex().getSpan());
+			return keyOrIndex;
+		}
+
+		private int getIndex (Object keyOrIndex, String type) {
+			if (!(keyOrIndex instanceof Number)) {
+				Error.error(type + " index must be an integer, but was " + keyOrIndex.getClass().getSimpleName(), getKeyOrIndex().getSpan());
+			}
+			return ((Number)keyOrIndex).intValue();
+		}
+
+		/** Returns the element access for the receiver, specializing this node if the current element access doesn't accept the
+		 * receiver. **/
+		private ElementAccess getAccess (Object mapOrArray) {
+			ElementAccess access = this.access;
+			if (access != null && access.accepts(mapOrArray)) return access;
+
+			if (specializations >= MAX_SPECIALIZATIONS) {
+				access = GenericElementAccess.INSTANCE;
+			} else {
+				// receivers without a specialized access, e.g. float[], settle the node on the generic access as well, so it isn't
+				// probed again on every evaluation
+				access = ElementAccess.create(mapOrArray);
+				specializations++;
+			}
+			this.access = access;
+			return access;
+		}
 
+		@SuppressWarnings("rawtypes")
+		private Object evaluateGeneric (Object mapOrArray, Object keyOrIndex) {
 			if (mapOrArray instanceof Map) {
 				return ((Map)mapOrArray).get(keyOrIndex);
 			} else if (mapOrArray instanceof List) {
-				if (!(keyOrIndex instanceof Number)) {
-					Error.error("List index must be an integer, but was " + keyOrIndex.getClass().getSimpleName(), getKeyOrIndex().getSpan());
-				}
-				int index = ((Number)keyOrIndex).intValue();
-				return ((List)mapOrArray).get(index);
+				return ((List)mapOrArray).get(getIndex(keyOrIndex, "List"));
 			} else {
-				if (!(keyOrIndex instanceof Number)) {
-					Error.error("Array index must be an integer, but was " + keyOrIndex.getClass().getSimpleName(), getKeyOrIndex().getSpan());
-				}
-				int index = ((Number)keyOrIndex).intValue();
+				int index = getIndex(keyOrIndex, "Array");
 				if (mapOrArray instanceof int[])
 					return ((int[])mapOrArray)[index];
 				else if (mapOrArray instanceof float[])
@@ -793,14 +1394,200 @@ public abstract class Ast {
 					return ((Object[])mapOrArray)[index];
 			}
 		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object mapOrArray = evaluateMapOrArray(template, context, out);
+			Object keyOrIndex = evaluateKeyOrIndex(template, context, out);
+			return getAccess(mapOrArray).get(this, mapOrArray, keyOrIndex);
+		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object mapOrArray = evaluateMapOrArray(template, context, out);
+			Object keyOrIndex = evaluateKeyOrIndex(template, context, out);
+			return getAccess(mapOrArray).getInt(this, mapOrArray, keyOrIndex);
+		}
+
+		@Override
+		public long evaluateLong (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object mapOrArray = evaluateMapOrArray(template, context, out);
+			Object keyOrIndex = evaluateKeyOrIndex(template, context, out);
+			return getAccess(mapOrArray).getLong(this, mapOrArray, keyOrIndex);
+		}
+
+		@Override
+		public double evaluateDouble (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object mapOrArray = evaluateMapOrArray(template, context, out);
+			Object keyOrIndex = evaluateKeyOrIndex(template, context, out);
+			return getAccess(mapOrArray).getDouble(this, mapOrArray, keyOrIndex);
+		}
+
+		/** Reads an element from a map, list or array. Specialized subclasses only accept receivers of a single class. Instances
+		 * are immutable and may be shared by multiple threads evaluating the same node. **/
+		private abstract static class ElementAccess {
+			/** Returns the specialized element access for the class of the receiver, or the generic element access if the receiver
+			 * type is not supported. **/
+			static ElementAccess create (Object mapOrArray) {
+				Class<?> cls = mapOrArray.getClass();
+				if (mapOrArray instanceof Map) return new MapGet(cls);
+				if (mapOrArray instanceof List) return new ListGet(cls);
+				if (cls == int[].class) return IntArrayGet.INSTANCE;
+				if (cls == long[].class) return LongArrayGet.INSTANCE;
+				if (cls == double[].class) return DoubleArrayGet.INSTANCE;
+				if (mapOrArray instanceof Object[]) return new ObjectArrayGet(cls);
+				return GenericElementAccess.INSTANCE;
+			}
+
+			abstract boolean accepts (Object mapOrArray);
+
+			abstract Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex);
+
+			int getInt (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return expectInt(get(node, mapOrArray, keyOrIndex));
+			}
+
+			long getLong (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return expectLong(get(node, mapOrArray, keyOrIndex));
+			}
+
+			double getDouble (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return expectDouble(get(node, mapOrArray, keyOrIndex));
+			}
+		}
+
+		/** Element access for receivers of exactly the given class. **/
+		private abstract static class GuardedElementAccess extends ElementAccess {
+			private final Class<?> receiverClass;
+
+			GuardedElementAccess (Class<?> receiverClass) {
+				this.receiverClass = receiverClass;
+			}
+
+			@Override
+			boolean accepts (Object mapOrArray) {
+				return mapOrArray.getClass() == receiverClass;
+			}
+		}
+
+		private static class GenericElementAccess extends ElementAccess {
+			static final GenericElementAccess INSTANCE = new GenericElementAccess();
+
+			@Override
+			boolean accepts (Object mapOrArray) {
+				return true;
+			}
+
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return node.evaluateGeneric(mapOrArray, keyOrIndex);
+			}
+		}
+
+		private static class MapGet extends GuardedElementAccess {
+			MapGet (Class<?> receiverClass) {
+				super(receiverClass);
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((Map)mapOrArray).get(keyOrIndex);
+			}
+		}
+
+		private static class ListGet extends GuardedElementAccess {
+			ListGet (Class<?> receiverClass) {
+				super(receiverClass);
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((List)mapOrArray).get(node.getIndex(keyOrIndex, "List"));
+			}
+		}
+
+		private static class ObjectArrayGet extends GuardedElementAccess {
+			ObjectArrayGet (Class<?> receiverClass) {
+				super(receiverClass);
+			}
+
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((Object[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+		}
+
+		private static class IntArrayGet extends GuardedElementAccess {
+			static final IntArrayGet INSTANCE = new IntArrayGet();
+
+			IntArrayGet () {
+				super(int[].class);
+			}
+
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((int[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+
+			@Override
+			int getInt (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((int[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+		}
+
+		private static class LongArrayGet extends GuardedElementAccess {
+			static final LongArrayGet INSTANCE = new LongArrayGet();
+
+			LongArrayGet () {
+				super(long[].class);
+			}
+
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((long[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+
+			@Override
+			long getLong (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((long[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+		}
+
+		private static class DoubleArrayGet extends GuardedElementAccess {
+			static final DoubleArrayGet INSTANCE = new DoubleArrayGet();
+
+			DoubleArrayGet () {
+				super(double[].class);
+			}
+
+			@Override
+			Object get (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((double[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+
+			@Override
+			double getDouble (MapOrArrayAccess node, Object mapOrArray, Object keyOrIndex) {
+				return ((double[])mapOrArray)[node.getIndex(keyOrIndex, "Array")];
+			}
+		}
 	}
 
 	/** Represents an access of a member (field or method or entry in a map) of the form <code>object.member</code>. Members may
-	 * only be read from. **/
+	 * only be read from.
+	 *
+	 * <p>
+	 * Like {@link MapOrArrayAccess}, the node specializes itself to the class of the object it was given the first time it is
+	 * evaluated, into an array length read, a map lookup, or a read of the field resolved via {@link Reflection}, guarded by a
+	 * check of the object's class.
+	 * </p> **/
 	public static class MemberAccess extends Expression {
 		private final Expression object;
 		private final Span name;
 		private Object cachedMember;
+		private MemberGet access;
+		private int specializations;
 
 		public MemberAccess (Expression object, Span name) {
 			super(name);
@@ -832,12 +1619,47 @@ public abstract class Ast {
 			this.cachedMember = cachedMember;
 		}
 
-		@SuppressWarnings("rawtypes")
-		@Override
-		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+		private Object evaluateObject (Template template, TemplateContext context, OutputStream out) throws IOException {
 			Object object = getObject().evaluate(template, context, out);
 			if (object == null) Error.error("Couldn't find object in context.", getSpan());
+			return object;
+		}
+
+		private Object getField (Object object) {
+			Object field = Reflection.getInstance().getField(object, getName().getText());
+			if (field == null) {
+				Error.error("Couldn't find field '" + getName().getText() + "' for object of type '" + object.getClass().getSimpleName() + "'.", getSpan());
+			}
+			return field;
+		}
 
+		/** Returns the member access for the object, specializing this node if the current member access doesn't accept the
+		 * object. **/
+		private MemberGet getAccess (Object object) {
+			MemberGet access = this.access;
+			if (access != null && access.accepts(object)) return access;
+
+			if (specializations >= MapOrArrayAccess.MAX_SPECIALIZATIONS) {
+				access = GenericMemberGet.INSTANCE;
+			} else {
+				Class<?> cls = object.getClass();
+				if (cls.isArray() && getName().getText().equals("length"))
+					access = new ArrayLength(cls);
+				else if (object instanceof Map)
+					access = new MapGet(cls);
+				else {
+					Object field = getField(object);
+					setCachedMember(field);
+					access = new FieldGet(cls, field);
+				}
+				specializations++;
+			}
+			this.access = access;
+			return access;
+		}
+
+		@SuppressWarnings("rawtypes")
+		private Object evaluateGeneric (Object object) {
 			// special case for array.length
 			if (object.getClass().isArray() && getName().getText().equals("length")) {
 				return Array.getLength(object);
@@ -858,13 +1680,110 @@ public abstract class Ast {
 				}
 			}
 
-			field = Reflection.getInstance().getField(object, getName().getText());
-			if (field == null) {
-				Error.error("Couldn't find field '" + getName().getText() + "' for object of type '" + object.getClass().getSimpleName() + "'.", getSpan());
-			}
+			field = getField(object);
 			setCachedMember(field);
 			return Reflection.getInstance().getFieldValue(object, field);
 		}
+
+		/** Returns the value of the member. If the value is a {@link Future}, waits for it to complete and returns its result. **/
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object object = evaluateObject(template, context, out);
+			Object value = getAccess(object).get(this, object);
+			if (value instanceof Future) return await((Future<?>)value, getSpan(), context, out);
+			return value;
+		}
+
+		@Override
+		public int evaluateInt (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object object = evaluateObject(template, context, out);
+			try {
+				return getAccess(object).getInt(this, object);
+			} catch (UnexpectedResultException e) {
+				if (e.getResult() instanceof Future) return expectInt(await((Future<?>)e.getResult(), getSpan(), context, out));
+				throw e;
+			}
+		}
+
+		/** Reads a member of an object. Specialized subclasses only accept objects of a single class. Instances are immutable and
+		 * may be shared by multiple threads evaluating the same node. **/
+		private abstract static class MemberGet {
+			private final Class<?> receiverClass;
+
+			MemberGet (Class<?> receiverClass) {
+				this.receiverClass = receiverClass;
+			}
+
+			boolean accepts (Object object) {
+				return object.getClass() == receiverClass;
+			}
+
+			abstract Object get (MemberAccess node, Object object);
+
+			int getInt (MemberAccess node, Object object) {
+				return expectInt(get(node, object));
+			}
+		}
+
+		private static class GenericMemberGet extends MemberGet {
+			static final GenericMemberGet INSTANCE = new GenericMemberGet();
+
+			GenericMemberGet () {
+				super(null);
+			}
+
+			@Override
+			boolean accepts (Object object) {
+				return true;
+			}
+
+			@Override
+			Object get (MemberAccess node, Object object) {
+				return node.evaluateGeneric(object);
+			}
+		}
+
+		private static class ArrayLength extends MemberGet {
+			ArrayLength (Class<?> receiverClass) {
+				super(receiverClass);
+			}
+
+			@Override
+			Object get (MemberAccess node, Object object) {
+				return getInt(node, object);
+			}
+
+			@Override
+			int getInt (MemberAccess node, Object object) {
+				return object instanceof Object[] ? ((Object[])object).length : Array.getLength(object);
+			}
+		}
+
+		private static class MapGet extends MemberGet {
+			MapGet (Class<?> receiverClass) {
+				super(receiverClass);
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			Object get (MemberAccess node, Object object) {
+				return ((Map)object).get(node.getName().getText());
+			}
+		}
+
+		private static class FieldGet extends MemberGet {
+			private final Object field;
+
+			FieldGet (Class<?> receiverClass, Object field) {
+				super(receiverClass);
+				this.field = field;
+			}
+
+			@Override
+			Object get (MemberAccess node, Object object) {
+				return Reflection.getInstance().getFieldValue(object, field);
+			}
+		}
 	}
 
 	/** Represents a call to a top-level function. A function may either be a {@link FunctionalInterface} stored in a
@@ -874,6 +1793,7 @@ public abstract class Ast {
 		private final List<Expression> arguments;
 		private Object cachedFunction;
 		private final ThreadLocal<Object[]> cachedArguments;
+		private Macro boundMacro;
 
 		public FunctionCall (Span span, Expression function, List<Expression> arguments) {
 			super(span);
@@ -905,6 +1825,18 @@ public abstract class Ast {
 			this.cachedFunction = cachedFunction;
 		}
 
+		/** Returns the macro of the template the function name was bound to when the template was loaded, or null. See
+		 * {@link #setBoundMacro(Macro)}. **/
+		public Macro getBoundMacro () {
+			return boundMacro;
+		}
+
+		/** Internal. Binds the call to the macro of the template with the function name, see {@link CallBinder}. The macro is called
+		 * without looking it up by name, unless the context defines a variable of the same name, which takes precedence. **/
+		public void setBoundMacro (Macro boundMacro) {
+			this.boundMacro = boundMacro;
+		}
+
 		/** Returns a scratch buffer to store arguments in when calling the function in {@link AstInterpreter}. Avoids generating
 		 * garbage. **/
 		public Object[] getCachedArguments () {
@@ -967,17 +1899,22 @@ public abstract class Ast {
 				} else {
 					// Check if this is a call to a macro defined in this template
 					if (getFunction() instanceof VariableAccess) {
-						String functionName = ((VariableAccess)getFunction()).getVariableName().getText();
-						Macros macros = template.getMacros();
-						Macro macro = macros.get(functionName);
+						Macro macro = boundMacro;
+						if (macro == null) macro = template.getMacros().get(((VariableAccess)getFunction()).getVariableName().getText());
 						if (macro != null) {
 							if (macro.getArgumentNames().size() != arguments.size())
 								Error.error("Expected " + macro.getArgumentNames().size() + " arguments, got " + arguments.size(), getSpan());
+							MemoizedCall memoized = macro.getMemoizedCall(argumentValues);
+							if (memoized != null) {
+								out.write(memoized.getOutput());
+								return memoized.getReturnValue();
+							}
 							TemplateContext macroContext = macro.getMacroContext();
+							macroContext.setFlushBeforeAwait(context.isFlushBeforeAwait());
 
 							// Set all included macros on the macro's context
 							for (String variable : context.getVariables()) {
-								Object value = context.get(variable);
+								Object value = context.find(variable);
 								if (value instanceof Macros) macroContext.set(variable, value);
 							}
 
@@ -988,11 +1925,7 @@ public abstract class Ast {
 								macroContext.set(name, arg);
 							}
 
-							Object retVal = AstInterpreter.interpretNodeList(macro.getBody(), macro.getTemplate(), macroContext, out);
-							if (retVal == Return.RETURN_SENTINEL)
-								return ((ReturnValue)retVal).getValue();
-							else
-								return null;
+							return macro.invoke(macroContext, argumentValues, out);
 						}
 					}
 					Error.error("Couldn't find function.", getSpan());
@@ -1004,12 +1937,103 @@ public abstract class Ast {
 		}
 	}
 
+	/** Internal. Replaces a call to a macro of the template in statement position, whose output was computed when the template was
+	 * loaded as the macro's arguments are constant and its body only depends on them. Emits the output, unless the context
+	 * defines a variable named like the macro, which takes precedence over the macro, in which case the call is evaluated. **/
+	public static class PrerenderedCall extends Node {
+		private final FunctionCall call;
+		private final String name;
+		private final byte[] bytes;
+
+		public PrerenderedCall (FunctionCall call, byte[] bytes) {
+			super(call.getSpan());
+			this.call = call;
+			this.name = ((VariableAccess)call.getFunction()).getVariableName().getText();
+			this.bytes = bytes;
+		}
+
+		/** Returns the call to the macro. **/
+		public FunctionCall getCall () {
+			return call;
+		}
+
+		/** Returns the UTF-8 encoded output of the call. **/
+		public byte[] getBytes () {
+			return bytes;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (context.get(name) != null) return call.evaluate(template, context, out);
+			out.write(bytes);
+			return null;
+		}
+	}
+
+	/** Internal. A call to a macro whose body was inlined at the call site when the template was loaded, see {@link Specializer}.
+	 * The body is evaluated in a new scope of the calling context holding the arguments, instead of in a separate macro context.
+	 * The original call is evaluated instead if the function name, or the alias of the included macros, doesn't resolve to the
+	 * macro when the call is evaluated, e.g. because the context defines a variable of the same name. **/
+	public static class InlinedMacroCall extends Expression {
+		private final Expression call;
+		private final String name;
+		private final Macros macros;
+		private final Macro macro;
+		private final List<Expression> arguments;
+		private final String[] argumentNames;
+
+		/** Creates an inlined call. For a {@link FunctionCall}, the name must not resolve to a variable. For a {@link MethodCall},
+		 * the name must resolve to the given macros. **/
+		public InlinedMacroCall (Expression call, String name, Macros macros, Macro macro, List<Expression> arguments) {
+			super(call.getSpan());
+			this.call = call;
+			this.name = name;
+			this.macros = macros;
+			this.macro = macro;
+			this.arguments = arguments;
+			this.argumentNames = new String[arguments.size()];
+			for (int i = 0; i < argumentNames.length; i++)
+				argumentNames[i] = macro.getArgumentNames().get(i).getText();
+		}
+
+		/** Returns the original {@link FunctionCall} or {@link MethodCall}. **/
+		public Expression getCall () {
+			return call;
+		}
+
+		public Macro getMacro () {
+			return macro;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object function = context.get(name);
+			if (macros == null ? function != null : function != macros) return call.evaluate(template, context, out);
+
+			Object[] values = new Object[argumentNames.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = arguments.get(i).evaluate(template, context, out);
+
+			context.push();
+			try {
+				for (int i = 0; i < values.length; i++)
+					context.setOnCurrentScope(argumentNames[i], values[i]);
+				AstInterpreter.interpretNodeList(macro.getBody(), macro.getTemplate(), context, out);
+			} finally {
+				context.pop();
+			}
+			return null;
+		}
+	}
+
 	/** Represents a call to a method of the form <code>object.method(a, b, c)</code>. **/
 	public static class MethodCall extends Expression {
 		private final MemberAccess method;
 		private final List<Expression> arguments;
 		private Object cachedMethod;
 		private final ThreadLocal<Object[]> cachedArguments;
+		private Macros boundMacros;
+		private Macro boundMacro;
 
 		public MethodCall (Span span, MemberAccess method, List<Expression> arguments) {
 			super(span);
@@ -1046,6 +2070,19 @@ public abstract class Ast {
 			this.cachedMethod = cachedMethod;
 		}
 
+		/** Returns the macro the call was bound to when the template was loaded, or null. See
+		 * {@link #setBoundMacro(Macros, Macro)}. **/
+		public Macro getBoundMacro () {
+			return boundMacro;
+		}
+
+		/** Internal. Binds the call to a macro included via <code>include "path" as alias</code>, see {@link CallBinder}. If the
+		 * object the method is called on evaluates to the given macros, the macro is called without looking it up by name. **/
+		public void setBoundMacro (Macros boundMacros, Macro boundMacro) {
+			this.boundMacro = boundMacro;
+			this.boundMacros = boundMacros;
+		}
+
 		/** Returns a scratch buffer to store arguments in when calling the function in {@link AstInterpreter}. Avoids generating
 		 * garbage. **/
 		public Object[] getCachedArguments () {
@@ -1080,16 +2117,21 @@ public abstract class Ast {
 				// if the object we call the method on is a Macros instance, lookup the macro by name
 				// and execute its node list
 				if (object instanceof Macros) {
-					Macros macros = (Macros)object;
-					Macro macro = macros.get(getMethod().getName().getText());
+					Macro macro = object == boundMacros ? boundMacro : ((Macros)object).get(getMethod().getName().getText());
 					if (macro != null) {
 						if (macro.getArgumentNames().size() != arguments.size())
 							Error.error("Expected " + macro.getArgumentNames().size() + " arguments, got " + arguments.size(), getSpan());
+						MemoizedCall memoized = macro.getMemoizedCall(argumentValues);
+						if (memoized != null) {
+							out.write(memoized.getOutput());
+							return memoized.getReturnValue();
+						}
 						TemplateContext macroContext = macro.getMacroContext();
+						macroContext.setFlushBeforeAwait(context.isFlushBeforeAwait());
 
 						// Set all included macros on the macro's context
 						for (String variable : context.getVariables()) {
-							Object value = context.get(variable);
+							Object value = context.find(variable);
 							if (value instanceof Macros) macroContext.set(variable, value);
 						}
 
@@ -1099,11 +2141,7 @@ public abstract class Ast {
 							String name = macro.getArgumentNames().get(i).getText();
 							macroContext.set(name, arg);
 						}
-						Object result = AstInterpreter.interpretNodeList(macro.getBody(), macro.getTemplate(), macroContext, out);
-						if (result == Return.RETURN_SENTINEL)
-							return ((ReturnValue)result).getValue();
-						else
-							return null;
+						return macro.invoke(macroContext, argumentValues, out);
 					}
 				}
 
@@ -1151,15 +2189,45 @@ public abstract class Ast {
 		}
 	}
 
-	/** Represents a map literal of the form <code>{ key: value, key2: value, ... }</code> which can be nested. */
+	/** Returns whether the expression is a literal, or a map or list literal only consisting of literals. Such an expression
+	 * evaluates to the same value every time, so it can be evaluated once when the template is loaded. **/
+	static boolean isConstant (Expression expression) {
+		if (expression instanceof NullLiteral || expression instanceof BooleanLiteral || expression instanceof DoubleLiteral
+			|| expression instanceof FloatLiteral || expression instanceof ByteLiteral || expression instanceof ShortLiteral
+			|| expression instanceof IntegerLiteral || expression instanceof LongLiteral || expression instanceof CharacterLiteral
+			|| expression instanceof StringLiteral || expression instanceof Constant) return true;
+		if (expression instanceof MapLiteral) return ((MapLiteral)expression).isConstant();
+		if (expression instanceof ListLiteral) return ((ListLiteral)expression).isConstant();
+		return false;
+	}
+
+	/** Represents a map literal of the form <code>{ key: value, key2: value, ... }</code> which can be nested. If it has values
+	 * and all values are literals, the map is built once when the template is loaded, and every evaluation returns the same unmodifiable instance.
+	 * Otherwise a new map is created on each evaluation. */
 	public static class MapLiteral extends Expression {
 		private final List<Span> keys;
 		private final List<Expression> values;
+		private final Map<String, Object> constantValue;
 
 		public MapLiteral (Span span, List<Span> keys, List<Expression> values) {
 			super(span);
 			this.keys = keys;
 			this.values = values;
+
+			// empty literals are commonly used as accumulators, and building them is cheap
+			boolean isConstant = !values.isEmpty();
+			for (int i = 0, n = values.size(); i < n; i++) {
+				if (!Ast.isConstant(values.get(i))) {
+					isConstant = false;
+					break;
+				}
+			}
+			try {
+				this.constantValue = isConstant ? Collections.unmodifiableMap(evaluateMap(null, null, null)) : null;
+			} catch (IOException e) {
+				Error.error("Couldn't evaluate constant map literal.", span, e);
+				throw new RuntimeException(""); // never reached
+			}
 		}
 
 		public List<Span> getKeys () {
@@ -1170,38 +2238,79 @@ public abstract class Ast {
 			return values;
 		}
 
-		@Override
-		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
-			Map<String, Object> map = new HashMap<>();
+		/** Returns whether all values of this map literal are literals. In that case {@link #evaluate(Template, TemplateContext, OutputStream)}
+		 * returns the same unmodifiable map on every evaluation. **/
+		public boolean isConstant () {
+			return constantValue != null;
+		}
+
+		private Map<String, Object> evaluateMap (Template template, TemplateContext context, OutputStream out) throws IOException {
+			// size the map so it never needs to rehash while being filled
+			Map<String, Object> map = new HashMap<>((int)(keys.size() / 0.75f) + 1);
 			for (int i = 0, n = keys.size(); i < n; i++) {
 				Object value = values.get(i).evaluate(template, context, out);
 				map.put(keys.get(i).getText(), value);
 			}
 			return map;
 		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (constantValue != null) return constantValue;
+			return evaluateMap(template, context, out);
+		}
 	}
 
-	/** Represents a list literal of the form <code>[ value, value2, value3, ...]</code> which can be nested. */
+	/** Represents a list literal of the form <code>[ value, value2, value3, ...]</code> which can be nested. If it has values
+	 * and all values are literals, the list is built once when the template is loaded, and every evaluation returns the same unmodifiable instance.
+	 * Otherwise a new list is created on each evaluation. */
 	public static class ListLiteral extends Expression {
 		public final List<Expression> values;
+		private final List<Object> constantValue;
 
 		public ListLiteral (Span span, List<Expression> values) {
 			super(span);
 			this.values = values;
-		}
 
-		public List<Expression> getValues () {
-			return values;
-		}
+			// empty literals are commonly used as accumulators, and building them is cheap
+			boolean isConstant = !values.isEmpty();
+			for (int i = 0, n = values.size(); i < n; i++) {
+				if (!Ast.isConstant(values.get(i))) {
+					isConstant = false;
+					break;
+				}
+			}
+			try {
+				this.constantValue = isConstant ? Collections.unmodifiableList(evaluateList(null, null, null)) : null;
+			} catch (IOException e) {
+				Error.error("Couldn't evaluate constant list literal.", span, e);
+				throw new RuntimeException(""); // never reached
+			}
+		}
 
-		@Override
-		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
-			List<Object> list = new ArrayList<>();
+		public List<Expression> getValues () {
+			return values;
+		}
+
+		/** Returns whether all values of this list literal are literals. In that case
+		 * {@link #evaluate(Template, TemplateContext, OutputStream)} returns the same unmodifiable list on every evaluation. **/
+		public boolean isConstant () {
+			return constantValue != null;
+		}
+
+		private List<Object> evaluateList (Template template, TemplateContext context, OutputStream out) throws IOException {
+			List<Object> list = new ArrayList<>(values.size());
 			for (int i = 0, n = values.size(); i < n; i++) {
 				list.add(values.get(i).evaluate(template, context, out));
 			}
 			return list;
 		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (constantValue != null) return constantValue;
+			return evaluateList(template, context, out);
+		}
 	}
 
 	/** Represents an if statement of the form <code>if condition trueBlock elseif condition ... else falseBlock end</code>. Elseif
@@ -1238,9 +2347,7 @@ public abstract class Ast {
 
 		@Override
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
-			Object condition = getCondition().evaluate(template, context, out);
-			if (!(condition instanceof Boolean)) Error.error("Expected a condition evaluating to a boolean, got " + condition, getCondition().getSpan());
-			if ((Boolean)condition) {
+			if (evaluateCondition(getCondition(), template, context, out)) {
 				context.push();
 				Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getTrueBlock(), template, context, out);
 				context.pop();
@@ -1249,10 +2356,7 @@ public abstract class Ast {
 
 			if (getElseIfs().size() > 0) {
 				for (IfStatement elseIf : getElseIfs()) {
-					condition = elseIf.getCondition().evaluate(template, context, out);
-					if (!(condition instanceof Boolean))
-						Error.error("Expected a condition evaluating to a boolean, got " + condition, elseIf.getCondition().getSpan());
-					if ((Boolean)condition) {
+					if (evaluateCondition(elseIf.getCondition(), template, context, out)) {
 						context.push();
 						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(elseIf.getTrueBlock(), template, context, out);
 						context.pop();
@@ -1339,18 +2443,34 @@ public abstract class Ast {
 
 	/** Represents a for statement of the form <code>for value in mapOrArray ... end</code> or
 	 * <code>for keyOrIndex, value in mapOrArray ... end</code>. The later form will store the key or index of the current
-	 * iteration in the specified variable. */
+	 * iteration in the specified variable. A for statement of the form <code>for value in start..end step step ... end</code>
+	 * iterates over an integer range, using a primitive counter. Elements of primitive arrays and range values are stored in the
+	 * scope via {@link PrimitiveValue} holders instead of being boxed. Streams and spliterators are iterated lazily, streams are
+	 * closed when the loop exits. */
 	public static class ForStatement extends Node {
 		private final Span indexOrKeyName;
 		private final Span valueName;
 		private final Expression mapOrArray;
+		private final Expression rangeEnd;
+		private final Expression rangeStep;
+		private final boolean parallel;
 		private final List<Node> body;
 
 		public ForStatement (Span span, Span indexOrKeyName, Span valueName, Expression mapOrArray, List<Node> body) {
+			this(span, indexOrKeyName, valueName, mapOrArray, null, null, false, body);
+		}
+
+		/** Creates a for statement. If rangeEnd is not null, the statement iterates over the integers from mapOrArray to
+		 * rangeEnd, inclusive, with the optional rangeStep. If parallel is true, the iterations are rendered concurrently. **/
+		public ForStatement (Span span, Span indexOrKeyName, Span valueName, Expression mapOrArray, Expression rangeEnd, Expression rangeStep,
+			boolean parallel, List<Node> body) {
 			super(span);
 			this.indexOrKeyName = indexOrKeyName;
 			this.valueName = valueName;
 			this.mapOrArray = mapOrArray;
+			this.rangeEnd = rangeEnd;
+			this.rangeStep = rangeStep;
+			this.parallel = parallel;
 			this.body = body;
 		}
 
@@ -1363,21 +2483,278 @@ public abstract class Ast {
 			return valueName;
 		}
 
+		/** Returns the expression evaluating to the map or array to iterate over, or the start of the range if this is a range
+		 * loop. **/
 		public Expression getMapOrArray () {
 			return mapOrArray;
 		}
 
+		/** Returns the expression evaluating to the inclusive end of the range, or null if this is not a range loop. **/
+		public Expression getRangeEnd () {
+			return rangeEnd;
+		}
+
+		/** Returns the expression evaluating to the step of the range, or null if no step was given. **/
+		public Expression getRangeStep () {
+			return rangeStep;
+		}
+
+		/** Returns whether this is a parallel for loop of the form <code>for parallel value in mapOrArray ... end</code>. **/
+		public boolean isParallel () {
+			return parallel;
+		}
+
 		public List<Node> getBody () {
 			return body;
 		}
 
+		private static Object evaluateRangeBound (Expression bound, Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object value = bound.evaluate(template, context, out);
+			if (!(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte))
+				Error.error("Expected an integer range bound, got " + value + ".", bound.getSpan());
+			return value;
+		}
+
+		/** Stores the holder in the current scope again if the loop body assigned another value to its variable. **/
+		private static void attach (PrimitiveValue value, Span name, TemplateContext context) {
+			if (value.isDetached()) {
+				value.attach();
+				context.setOnCurrentScope(name.getText(), value);
+			}
+		}
+
+		/** Iterates over the range with a primitive counter, stored in the scope via a {@link PrimitiveValue} holder. The counter
+		 * is an int, unless any of the bounds or the step is a long. **/
+		private Object evaluateRange (Object start, Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object end = evaluateRangeBound(getRangeEnd(), template, context, out);
+			Object step = getRangeStep() != null ? evaluateRangeBound(getRangeStep(), template, context, out) : null;
+			boolean isLong = start instanceof Long || end instanceof Long || step instanceof Long;
+
+			long from = ((Number)start).longValue();
+			long to = ((Number)end).longValue();
+			long by = step != null ? ((Number)step).longValue() : (from <= to ? 1 : -1);
+			if (by == 0) Error.error("The step of a range must not be 0.", getRangeStep().getSpan());
+			if (by > 0 ? from > to : from < to) return null;
+			if (isParallel()) return evaluateParallel(new Range(from, to, by, isLong, getSpan()), null, template, context, out);
+
+			context.push();
+			PrimitiveValue value = context.setPrimitiveOnCurrentScope(getValueName().getText(), isLong ? PrimitiveValue.LONG : PrimitiveValue.INT);
+			PrimitiveValue index = getIndexOrKeyName() != null ? context.setPrimitiveOnCurrentScope(getIndexOrKeyName().getText(), PrimitiveValue.INT) : null;
+			for (long i = from, j = 0;; i += by, j++) {
+				value.setLong(isLong ? i : (int)i);
+				attach(value, getValueName(), context);
+				if (index != null) {
+					index.setInt((int)j);
+					attach(index, getIndexOrKeyName(), context);
+				}
+				Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
+				if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
+					break;
+				}
+				if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
+					context.pop();
+					return breakOrContinueOrReturn;
+				}
+				// the distance to the end of the range is computed unsigned, so the counter can't overflow
+				if (by > 0 ? Long.compareUnsigned(to - i, by) < 0 : Long.compareUnsigned(i - to, -by) < 0) break;
+			}
+			context.pop();
+			return null;
+		}
+
+		/** Iterates over an array of primitives. The elements and the index are stored in the scope via {@link PrimitiveValue}
+		 * holders instead of being boxed. **/
+		private Object evaluatePrimitiveArray (Object array, Template template, TemplateContext context, OutputStream out) throws IOException {
+			context.push();
+			PrimitiveValue value = context.setPrimitiveOnCurrentScope(getValueName().getText(),
+				PrimitiveValue.getType(array.getClass().getComponentType()));
+			PrimitiveValue index = getIndexOrKeyName() != null ? context.setPrimitiveOnCurrentScope(getIndexOrKeyName().getText(), PrimitiveValue.INT) : null;
+			for (int i = 0, n = Array.getLength(array); i < n; i++) {
+				value.set(array, i);
+				attach(value, getValueName(), context);
+				if (index != null) {
+					index.setInt(i);
+					attach(index, getIndexOrKeyName(), context);
+				}
+				Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
+				if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
+					break;
+				}
+				if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
+					context.pop();
+					return breakOrContinueOrReturn;
+				}
+			}
+			context.pop();
+			return null;
+		}
+
+		/** Iterates over the elements of the iterator lazily. Elements of primitive iterators, as returned by {@link IntStream} and
+		 * similar, are stored via {@link PrimitiveValue} holders. The index, if any, is the number of elements seen so far. **/
+		@SuppressWarnings("rawtypes")
+		private Object evaluateIterator (Iterator iter, Template template, TemplateContext context, OutputStream out) throws IOException {
+			context.push();
+			String valueName = getValueName().getText();
+			PrimitiveValue value = null;
+			if (iter instanceof PrimitiveIterator.OfInt)
+				value = context.setPrimitiveOnCurrentScope(valueName, PrimitiveValue.INT);
+			else if (iter instanceof PrimitiveIterator.OfLong)
+				value = context.setPrimitiveOnCurrentScope(valueName, PrimitiveValue.LONG);
+			else if (iter instanceof PrimitiveIterator.OfDouble) value = context.setPrimitiveOnCurrentScope(valueName, PrimitiveValue.DOUBLE);
+			PrimitiveValue index = getIndexOrKeyName() != null ? context.setPrimitiveOnCurrentScope(getIndexOrKeyName().getText(), PrimitiveValue.INT) : null;
+
+			for (int i = 0; iter.hasNext(); i++) {
+				if (value == null)
+					context.setOnCurrentScope(valueName, iter.next());
+				else {
+					if (iter instanceof PrimitiveIterator.OfInt)
+						value.setInt(((PrimitiveIterator.OfInt)iter).nextInt());
+					else if (iter instanceof PrimitiveIterator.OfLong)
+						value.setLong(((PrimitiveIterator.OfLong)iter).nextLong());
+					else
+						value.setDouble(((PrimitiveIterator.OfDouble)iter).nextDouble());
+					attach(value, getValueName(), context);
+				}
+				if (index != null) {
+					index.setInt(i);
+					attach(index, getIndexOrKeyName(), context);
+				}
+				Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
+				if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
+					break;
+				}
+				if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
+					context.pop();
+					return breakOrContinueOrReturn;
+				}
+			}
+			context.pop();
+			return null;
+		}
+
+		/** Returns the elements to iterate over in a parallel for loop as a random access list. Lazy sources, like iterators and
+		 * streams, are collected into a list first. For maps, the values are returned and the keys are added to the given list. **/
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		private List<Object> getParallelElements (Object mapOrArray, List<Object> keys) {
+			if (mapOrArray instanceof Map) {
+				List<Object> values = new ArrayList<Object>(((Map)mapOrArray).size());
+				for (Object entry : ((Map)mapOrArray).entrySet()) {
+					keys.add(((Entry)entry).getKey());
+					values.add(((Entry)entry).getValue());
+				}
+				return values;
+			} else if (mapOrArray instanceof List && mapOrArray instanceof RandomAccess) {
+				return (List<Object>)mapOrArray;
+			} else if (mapOrArray.getClass().isArray()) {
+				final Object array = mapOrArray;
+				return new AbstractList<Object>() {
+					@Override
+					public Object get (int index) {
+						return Array.get(array, index);
+					}
+
+					@Override
+					public int size () {
+						return Array.getLength(array);
+					}
+				};
+			}
+
+			Iterator iter;
+			if (mapOrArray instanceof Iterable)
+				iter = ((Iterable)mapOrArray).iterator();
+			else if (mapOrArray instanceof Iterator)
+				iter = (Iterator)mapOrArray;
+			else if (mapOrArray instanceof BaseStream)
+				iter = ((BaseStream)mapOrArray).iterator();
+			else if (mapOrArray instanceof Spliterator)
+				iter = Spliterators.iterator((Spliterator<?>)mapOrArray);
+			else {
+				Error.error("Expected a map, an array, an iterable, a stream or a spliterator, got " + mapOrArray, getMapOrArray().getSpan());
+				return null; // never reached
+			}
+			try {
+				List<Object> values = new ArrayList<Object>();
+				while (iter.hasNext())
+					values.add(iter.next());
+				return values;
+			} finally {
+				if (mapOrArray instanceof BaseStream) ((BaseStream)mapOrArray).close();
+			}
+		}
+
+		/** Renders the iterations of the loop concurrently on the {@link AstInterpreter#getForkJoinPool() fork join pool}. The
+		 * elements are split into consecutive chunks, each chunk is rendered into its own buffer using a
+		 * {@link TemplateContext#fork() fork} of the context, and the buffers are written to the output stream in order. The index
+		 * variable is the element's position, or the key for maps. The parser ensures the body contains no break or return
+		 * statements affecting the loop, and no assignments to variables defined outside of the loop. **/
+		private Object evaluateParallel (List<Object> values, List<Object> keys, Template template, TemplateContext context, OutputStream out)
+			throws IOException {
+			int size = values.size();
+			if (size == 0) return null;
+			ForkJoinPool pool = AstInterpreter.getForkJoinPool();
+			int numChunks = Math.min(size, pool.getParallelism() * 4);
+			List<ForkJoinTask<ByteArrayOutputStream>> chunks = new ArrayList<ForkJoinTask<ByteArrayOutputStream>>(numChunks);
+			try {
+				for (int i = 0; i < numChunks; i++) {
+					int start = (int)((long)size * i / numChunks);
+					int end = (int)((long)size * (i + 1) / numChunks);
+					chunks.add(pool.submit( () -> evaluateChunk(values, keys, start, end, template, context.fork())));
+				}
+				for (ForkJoinTask<ByteArrayOutputStream> chunk : chunks)
+					chunk.get().writeTo(out);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Error.error("Interrupted while rendering parallel for loop.", getSpan(), e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if (cause instanceof java.lang.Error) throw (java.lang.Error)cause;
+				if (cause instanceof IOException) throw (IOException)cause;
+				Error.error("Couldn't render parallel for loop, " + cause.getMessage(), getSpan(), cause);
+			} finally {
+				for (ForkJoinTask<ByteArrayOutputStream> chunk : chunks)
+					chunk.cancel(false);
+			}
+			return null;
+		}
+
+		private ByteArrayOutputStream evaluateChunk (List<Object> values, List<Object> keys, int start, int end, Template template,
+			TemplateContext context) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			String valueName = getValueName().getText();
+			String indexOrKeyName = getIndexOrKeyName() != null ? getIndexOrKeyName().getText() : null;
+			try {
+				for (int i = start; i < end; i++) {
+					// variables assigned in the body are local to an iteration
+					context.push();
+					if (indexOrKeyName != null) context.setOnCurrentScope(indexOrKeyName, keys != null ? keys.get(i) : i);
+					context.setOnCurrentScope(valueName, values.get(i));
+					AstInterpreter.interpretNodeList(getBody(), template, context, out);
+					context.pop();
+				}
+			} finally {
+				// clear out RETURN_SENTINEL as it uses a ThreadLocal and would leak memory otherwise
+				Return.RETURN_SENTINEL.setValue(null);
+			}
+			return out;
+		}
+
 		@SuppressWarnings("rawtypes")
 		@Override
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			if (getRangeEnd() != null) return evaluateRange(evaluateRangeBound(getMapOrArray(), template, context, out), template, context, out);
+
 			Object mapOrArray = getMapOrArray().evaluate(template, context, out);
 			if (mapOrArray == null) Error.error("Expected a map or array, got null.", getMapOrArray().getSpan());
 			String valueName = getValueName().getText();
 
+			if (isParallel()) {
+				List<Object> keys = new ArrayList<Object>();
+				List<Object> values = getParallelElements(mapOrArray, keys);
+				return evaluateParallel(values, mapOrArray instanceof Map ? keys : null, template, context, out);
+			}
+
 			if (mapOrArray instanceof Map) {
 				Map map = (Map)mapOrArray;
 				if (getIndexOrKeyName() != null) {
@@ -1466,270 +2843,27 @@ public abstract class Ast {
 					}
 					context.pop();
 				}
-			} else if (mapOrArray instanceof int[]) {
-				int[] array = (int[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof float[]) {
-				float[] array = (float[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof double[]) {
-				double[] array = (double[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof boolean[]) {
-				boolean[] array = (boolean[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof char[]) {
-				char[] array = (char[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof short[]) {
-				short[] array = (short[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof byte[]) {
-				byte[] array = (byte[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				}
-			} else if (mapOrArray instanceof long[]) {
-				long[] array = (long[])mapOrArray;
-				if (getIndexOrKeyName() != null) {
-					context.push();
-					String keyName = getIndexOrKeyName().getText();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(keyName, i);
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
-				} else {
-					context.push();
-					for (int i = 0, n = array.length; i < n; i++) {
-						context.setOnCurrentScope(valueName, array[i]);
-						Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
-						if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
-							break;
-						}
-						if (breakOrContinueOrReturn == Return.RETURN_SENTINEL) {
-							context.pop();
-							return breakOrContinueOrReturn;
-						}
-					}
-					context.pop();
+			} else if (mapOrArray instanceof BaseStream) {
+				// streams are consumed lazily and closed when the loop exits, including on break, return or an exception
+				BaseStream stream = (BaseStream)mapOrArray;
+				try {
+					return evaluateIterator(stream.iterator(), template, context, out);
+				} finally {
+					stream.close();
 				}
+			} else if (mapOrArray instanceof Spliterator) {
+				Iterator iter;
+				if (mapOrArray instanceof Spliterator.OfInt)
+					iter = Spliterators.iterator((Spliterator.OfInt)mapOrArray);
+				else if (mapOrArray instanceof Spliterator.OfLong)
+					iter = Spliterators.iterator((Spliterator.OfLong)mapOrArray);
+				else if (mapOrArray instanceof Spliterator.OfDouble)
+					iter = Spliterators.iterator((Spliterator.OfDouble)mapOrArray);
+				else
+					iter = Spliterators.iterator((Spliterator<?>)mapOrArray);
+				return evaluateIterator(iter, template, context, out);
+			} else if (mapOrArray.getClass().isArray() && mapOrArray.getClass().getComponentType().isPrimitive()) {
+				return evaluatePrimitiveArray(mapOrArray, template, context, out);
 			} else if (mapOrArray instanceof Object[]) {
 				Object[] array = (Object[])mapOrArray;
 				if (getIndexOrKeyName() != null) {
@@ -1764,10 +2898,38 @@ public abstract class Ast {
 					context.pop();
 				}
 			} else {
-				Error.error("Expected a map, an array or an iterable, got " + mapOrArray, getMapOrArray().getSpan());
+				Error.error("Expected a map, an array, an iterable, a stream or a spliterator, got " + mapOrArray, getMapOrArray().getSpan());
 			}
 			return null;
 		}
+
+		/** The values of a range as a random access list, used by parallel for loops. **/
+		private static class Range extends AbstractList<Object> implements RandomAccess {
+			private final long from;
+			private final long step;
+			private final boolean isLong;
+			private final int size;
+
+			Range (long from, long to, long step, boolean isLong, Span span) {
+				this.from = from;
+				this.step = step;
+				this.isLong = isLong;
+				long size = Long.divideUnsigned(step > 0 ? to - from : from - to, step > 0 ? step : -step) + 1;
+				if (size <= 0 || size > Integer.MAX_VALUE) Error.error("Range of parallel for loop has too many elements.", span);
+				this.size = (int)size;
+			}
+
+			@Override
+			public Object get (int index) {
+				long value = from + step * index;
+				return isLong ? (Object)value : (Object)(int)value;
+			}
+
+			@Override
+			public int size () {
+				return size;
+			}
+		}
 	}
 
 	/** Represents a while statement of the form <code>while condition ... end</code>. **/
@@ -1793,9 +2955,7 @@ public abstract class Ast {
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			context.push();
 			while (true) {
-				Object condition = getCondition().evaluate(template, context, out);
-				if (!(condition instanceof Boolean)) Error.error("Expected a condition evaluating to a boolean, got " + condition, getCondition().getSpan());
-				if (!((Boolean)condition)) break;
+				if (!evaluateCondition(getCondition(), template, context, out)) break;
 				Object breakOrContinueOrReturn = AstInterpreter.interpretNodeList(getBody(), template, context, out);
 				if (breakOrContinueOrReturn == Break.BREAK_SENTINEL) {
 					break;
@@ -1813,17 +2973,35 @@ public abstract class Ast {
 	/** Represents a macro of the form macro(arg1, arg2, arg3) ... end. Macros allow specifying re-usable template blocks that can
 	 * be "called" from other sections in the current template, or templates including the template. */
 	public static class Macro extends Node {
+		/** The maximum number of calls with distinct arguments a memoized macro stores the result of. **/
+		public static final int MEMOIZED_CALLS = 1024;
+
 		private final Span name;
 		private final List<Span> argumentNames;
 		private final List<Node> body;
-		private final TemplateContext macroContext = new TemplateContext();
+		private final ThreadLocal<TemplateContext> macroContext = new ThreadLocal<TemplateContext>();
 		private Template template;
+		private final boolean memoized;
+		private final Map<List<Object>, MemoizedCall> memoizedCalls;
 
 		public Macro (Span span, Span name, List<Span> argumentNames, List<Node> body) {
+			this(span, name, argumentNames, body, false);
+		}
+
+		/** Creates a macro. If memoized is true, the output and return value of a call are stored and reused for subsequent calls
+		 * with equal arguments, see {@link #invoke(TemplateContext, Object[], OutputStream)}. **/
+		public Macro (Span span, Span name, List<Span> argumentNames, List<Node> body, boolean memoized) {
 			super(span);
 			this.name = name;
 			this.argumentNames = argumentNames;
 			this.body = body;
+			this.memoized = memoized;
+			this.memoizedCalls = !memoized ? null : new LinkedHashMap<List<Object>, MemoizedCall>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry (Map.Entry<List<Object>, MemoizedCall> eldest) {
+					return size() > MEMOIZED_CALLS;
+				}
+			};
 		}
 
 		public Span getName () {
@@ -1838,8 +3016,14 @@ public abstract class Ast {
 			return body;
 		}
 
+		/** Returns the context used to evaluate the macro body on the calling thread. **/
 		public TemplateContext getMacroContext () {
-			return macroContext;
+			TemplateContext context = macroContext.get();
+			if (context == null) {
+				context = new TemplateContext();
+				macroContext.set(context);
+			}
+			return context;
 		}
 
 		public void setTemplate (Template template) {
@@ -1851,12 +3035,64 @@ public abstract class Ast {
 			return template;
 		}
 
+		/** Returns whether the macro was declared as <code>macro memo name(args)</code>, see {@link #getMemoizedCall(Object[])}. **/
+		public boolean isMemoized () {
+			return memoized;
+		}
+
+		/** Returns the stored result of a previous call of this memoized macro with equal arguments, or null. Always returns null if
+		 * the macro isn't memoized. **/
+		public MemoizedCall getMemoizedCall (Object[] arguments) {
+			if (!memoized) return null;
+			synchronized (memoizedCalls) {
+				return memoizedCalls.get(Arrays.asList(arguments));
+			}
+		}
+
+		/** Evaluates the body of the macro on the given macro context, which must have been set up with the arguments and included
+		 * macros by the caller, and returns the return value. The output and return value of a memoized macro are stored for the
+		 * arguments. **/
+		public Object invoke (TemplateContext macroContext, Object[] arguments, OutputStream out) throws IOException {
+			if (!memoized) {
+				Object result = AstInterpreter.interpretNodeList(getBody(), getTemplate(), macroContext, out);
+				return result == Return.RETURN_SENTINEL ? ((ReturnValue)result).getValue() : null;
+			}
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			Object result = AstInterpreter.interpretNodeList(getBody(), getTemplate(), macroContext, buffer);
+			MemoizedCall call = new MemoizedCall(buffer.toByteArray(), result == Return.RETURN_SENTINEL ? ((ReturnValue)result).getValue() : null);
+			synchronized (memoizedCalls) {
+				memoizedCalls.put(Arrays.asList(arguments.clone()), call);
+			}
+			out.write(call.getOutput());
+			return call.getReturnValue();
+		}
+
 		@Override
 		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
 			return null;
 		}
 	}
 
+	/** The stored output and return value of a call to a memoized {@link Macro}. **/
+	public static class MemoizedCall {
+		private final byte[] output;
+		private final Object returnValue;
+
+		public MemoizedCall (byte[] output, Object returnValue) {
+			this.output = output;
+			this.returnValue = returnValue;
+		}
+
+		public byte[] getOutput () {
+			return output;
+		}
+
+		public Object getReturnValue () {
+			return returnValue;
+		}
+	}
+
 	/** Represents an include statement of the form <code>include "path"</code>, which includes the template verbatim, or
 	 * <code>include "path" as alias</code>, which includes only the macros and makes them accessible under the alias, e.g.
 	 * <code>alias.myMacro(a, b, c)</code>, or <code>include "path" with (key: value, key2: value)</code>, which includes the
@@ -1868,12 +3104,30 @@ public abstract class Ast {
 		private final boolean macrosOnly;
 		private final Span alias;
 
+		/** The names and value expressions of the context, set on the context of the included template by index. **/
+		private final String[] contextNames;
+		private final Expression[] contextValues;
+
+		/** A context of the included template per thread, reused by subsequent evaluations on the thread. **/
+		private final ThreadLocal<TemplateContext> pooledContext = new ThreadLocal<TemplateContext>();
+
 		public Include (Span span, Span path, Map<Span, Expression> context, boolean macrosOnly, Span alias) {
 			super(span);
 			this.path = path;
 			this.context = context;
 			this.macrosOnly = macrosOnly;
 			this.alias = alias;
+
+			int size = context != null ? context.size() : 0;
+			contextNames = new String[size];
+			contextValues = new Expression[size];
+			if (context != null) {
+				int i = 0;
+				for (Map.Entry<Span, Expression> entry : context.entrySet()) {
+					contextNames[i] = entry.getKey().getText();
+					contextValues[i++] = entry.getValue();
+				}
+			}
 		}
 
 		public Span getPath () {
@@ -1912,13 +3166,21 @@ public abstract class Ast {
 					if (getContext().isEmpty()) {
 						AstInterpreter.interpretNodeList(other.getNodes(), other, context, out);
 					} else {
-						TemplateContext otherContext = new TemplateContext();
-						for (Span span : getContext().keySet()) {
-							String key = span.getText();
-							Object value = getContext().get(span).evaluate(template, context, out);
-							otherContext.set(key, value);
+						// the pooled context is taken while in use, a nested evaluation on the same thread creates a new context
+						TemplateContext otherContext = pooledContext.get();
+						if (otherContext != null)
+							pooledContext.set(null);
+						else
+							otherContext = new TemplateContext();
+						otherContext.setFlushBeforeAwait(context.isFlushBeforeAwait());
+						try {
+							for (int i = 0; i < contextNames.length; i++)
+								otherContext.setOnCurrentScope(contextNames[i], contextValues[i].evaluate(template, context, out));
+							AstInterpreter.interpretNodeList(other.getNodes(), other, otherContext, out);
+						} finally {
+							otherContext.clear();
+							pooledContext.set(otherContext);
 						}
-						AstInterpreter.interpretNodeList(other.getNodes(), other, otherContext, out);
 					}
 				} else {
 					context.set(getAlias().getText(), getTemplate().getMacros());
@@ -1930,6 +3192,80 @@ public abstract class Ast {
 		}
 	}
 
+	/** Internal. The nodes of a template included without a context, flattened into the including template when it was loaded, see
+	 * {@link Specializer}. The text of the included template is merged with the text of the including template, the other nodes
+	 * are grouped into flattened includes. The nodes are evaluated on the context of the including template, and errors are
+	 * reported like errors of an {@link Include}. **/
+	public static class FlattenedInclude extends Node {
+		private final Template template;
+		private final List<Node> nodes;
+
+		public FlattenedInclude (Span span, Template template, List<Node> nodes) {
+			super(span);
+			this.template = template;
+			this.nodes = nodes;
+		}
+
+		/** Returns the included template the nodes belong to. **/
+		public Template getTemplate () {
+			return template;
+		}
+
+		public List<Node> getNodes () {
+			return nodes;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			try {
+				AstInterpreter.interpretNodeList(nodes, this.template, context, out);
+			} catch (TemplateException e) {
+				Error.error("Error in included file.", this.getSpan(), e);
+			}
+			return null;
+		}
+	}
+
+	/** Represents a block of the form <code>block name ... end</code>. A template starting with <code>extends "path"</code>
+	 * overrides the blocks of the extended template with its blocks of the same name. The overrides are resolved when the
+	 * template is loaded, see {@link Specializer#extend(Template, Template)}. The body of an overriding block is evaluated with the
+	 * template it was defined in, so it can call the macros of that template. Blocks don't introduce a scope of their own. **/
+	public static class Block extends Node {
+		private final Span name;
+		private final List<Node> body;
+		private final Template template;
+
+		public Block (Span span, Span name, List<Node> body) {
+			this(span, name, body, null);
+		}
+
+		public Block (Span span, Span name, List<Node> body, Template template) {
+			super(span);
+			this.name = name;
+			this.body = body;
+			this.template = template;
+		}
+
+		public Span getName () {
+			return name;
+		}
+
+		public List<Node> getBody () {
+			return body;
+		}
+
+		/** Returns the template the body was defined in if the block overrides a block of an extended template, or null if the
+		 * body belongs to the template the block is evaluated with. **/
+		public Template getTemplate () {
+			return template;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			return AstInterpreter.interpretNodeList(body, this.template != null ? this.template : template, context, out);
+		}
+	}
+
 	/** Represents an include statement of the form <code>include raw "path"</code>, which includes the file verbatim. */
 	public static class IncludeRaw extends Node {
 		private final Span path;
@@ -1959,4 +3295,115 @@ public abstract class Ast {
 			return null;
 		}
 	}
+
+	/** Represents an async block of the form <code>async ... end</code>, or an include statement of the form
+	 * <code>include async "path"</code>, in which case the body consists of the {@link Include}. The body is rendered concurrently
+	 * to the rest of the template on the executor returned by {@link AstInterpreter#getAsyncExecutor()}, with a snapshot of the
+	 * context, and its output is spliced into the output of the template in document order by a {@link SplicingOutputStream}. **/
+	public static class AsyncBlock extends Node {
+		private final List<Node> body;
+
+		public AsyncBlock (Span span, List<Node> body) {
+			super(span);
+			this.body = body;
+		}
+
+		public List<Node> getBody () {
+			return body;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			// AstInterpreter#interpretNodeList() sets up the splicing stream, render synchronously if evaluated otherwise
+			if (!(out instanceof SplicingOutputStream)) return AstInterpreter.interpretNodeList(getBody(), template, context, out);
+
+			TemplateContext snapshot = context.snapshot();
+			FutureTask<ByteArrayOutputStream> task = new FutureTask<ByteArrayOutputStream>( () -> evaluateBody(template, snapshot));
+			try {
+				AstInterpreter.getAsyncExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
+			((SplicingOutputStream)out).splice(task);
+			return null;
+		}
+
+		private ByteArrayOutputStream evaluateBody (Template template, TemplateContext context) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				AstInterpreter.interpretNodeList(getBody(), template, context, out);
+			} finally {
+				// clear out RETURN_SENTINEL as it uses a ThreadLocal and would leak memory otherwise
+				Return.RETURN_SENTINEL.setValue(null);
+			}
+			return out;
+		}
+	}
+
+	/** Represents a cache block of the form <code>cache key ttl seconds ... end</code>, with an optional time to live. The
+	 * output of the body is rendered once per value of the key and stored in the {@link AstInterpreter#getFragmentCache()}.
+	 * Subsequent evaluations with an equal key write the stored output instead of evaluating the body. **/
+	public static class CacheBlock extends Node {
+		private final Expression key;
+		private final Expression timeToLive;
+		private final List<Node> body;
+
+		public CacheBlock (Span span, Expression key, Expression timeToLive, List<Node> body) {
+			super(span);
+			this.key = key;
+			this.timeToLive = timeToLive;
+			this.body = body;
+		}
+
+		/** Returns the expression evaluating to the key the output is cached under. **/
+		public Expression getKey () {
+			return key;
+		}
+
+		/** Returns the expression evaluating to the number of seconds the output is cached for, or null if it doesn't expire. **/
+		public Expression getTimeToLive () {
+			return timeToLive;
+		}
+
+		public List<Node> getBody () {
+			return body;
+		}
+
+		@Override
+		public Object evaluate (Template template, TemplateContext context, OutputStream out) throws IOException {
+			Object key = getKey().evaluate(template, context, out);
+			if (key == null) Error.error("Expected a cache key, got null.", getKey().getSpan());
+			long ttlMillis = 0;
+			if (getTimeToLive() != null) {
+				Object ttl = getTimeToLive().evaluate(template, context, out);
+				if (!(ttl instanceof Number)) Error.error("Expected a time to live in seconds, got " + ttl + ".", getTimeToLive().getSpan());
+				ttlMillis = (long)(((Number)ttl).doubleValue() * 1000);
+				// a time to live of zero or less disables caching
+				if (ttlMillis <= 0) {
+					evaluateBody(template, context, out);
+					return null;
+				}
+			}
+
+			FragmentCache cache = AstInterpreter.getFragmentCache();
+			byte[] output = cache.get(key);
+			if (output == null) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				evaluateBody(template, context, buffer);
+				output = buffer.toByteArray();
+				cache.put(key, output, ttlMillis);
+			}
+			out.write(output);
+			return null;
+		}
+
+		private void evaluateBody (Template template, TemplateContext context, OutputStream out) throws IOException {
+			context.push();
+			try {
+				AstInterpreter.interpretNodeList(getBody(), template, context, out);
+			} finally {
+				context.pop();
+			}
+		}
+	}
 }
@@ -0,0 +1,134 @@
+
+package io.marioslab.basis.template.parsing;
+
+import java.util.List;
+
+import io.marioslab.basis.template.parsing.Ast.AsyncBlock;
+import io.marioslab.basis.template.parsing.Ast.BinaryOperation;
+import io.marioslab.basis.template.parsing.Ast.Block;
+import io.marioslab.basis.template.parsing.Ast.CacheBlock;
+import io.marioslab.basis.template.parsing.Ast.FlattenedInclude;
+import io.marioslab.basis.template.parsing.Ast.ForStatement;
+import io.marioslab.basis.template.parsing.Ast.FunctionCall;
+import io.marioslab.basis.template.parsing.Ast.IfStatement;
+import io.marioslab.basis.template.parsing.Ast.Include;
+import io.marioslab.basis.template.parsing.Ast.InlinedMacroCall;
+import io.marioslab.basis.template.parsing.Ast.ListLiteral;
+import io.marioslab.basis.template.parsing.Ast.Macro;
+import io.marioslab.basis.template.parsing.Ast.MapLiteral;
+import io.marioslab.basis.template.parsing.Ast.MapOrArrayAccess;
+import io.marioslab.basis.template.parsing.Ast.MemberAccess;
+import io.marioslab.basis.template.parsing.Ast.MethodCall;
+import io.marioslab.basis.template.parsing.Ast.Node;
+import io.marioslab.basis.template.parsing.Ast.PrerenderedCall;
+import io.marioslab.basis.template.parsing.Ast.Return;
+import io.marioslab.basis.template.parsing.Ast.TernaryOperation;
+import io.marioslab.basis.template.parsing.Ast.UnaryOperation;
+import io.marioslab.basis.template.parsing.Ast.WhileStatement;
+
+/** Walks an AST depth-first, visiting the children of a node in evaluation order. Subclasses override {@link #enter(Node)} to
+ * inspect a node and decide whether its children should be walked, and {@link #exit(Node)} to be notified once all children of a
+ * node have been walked. The bodies of {@link Macro} nodes are walked like any other children, the templates referenced by
+ * {@link Include} nodes are not. **/
+public class AstWalker {
+
+	/** Walks the given nodes in order. **/
+	public void walk (List<? extends Node> nodes) {
+		for (int i = 0, n = nodes.size(); i < n; i++) {
+			walk(nodes.get(i));
+		}
+	}
+
+	/** Walks the node and its children. Does nothing if the node is null. **/
+	public void walk (Node node) {
+		if (node == null) return;
+		if (!enter(node)) return;
+		walkChildren(node);
+		exit(node);
+	}
+
+	/** Called before the children of the node are walked. Returns whether the children should be walked. If false is returned,
+	 * {@link #exit(Node)} is not called for the node. **/
+	protected boolean enter (Node node) {
+		return true;
+	}
+
+	/** Called after the children of the node have been walked. **/
+	protected void exit (Node node) {
+	}
+
+	/** Walks the children of the node. **/
+	protected void walkChildren (Node node) {
+		if (node instanceof UnaryOperation) {
+			walk(((UnaryOperation)node).getOperand());
+		} else if (node instanceof BinaryOperation) {
+			BinaryOperation op = (BinaryOperation)node;
+			walk(op.getLeftOperand());
+			walk(op.getRightOperand());
+		} else if (node instanceof TernaryOperation) {
+			TernaryOperation op = (TernaryOperation)node;
+			walk(op.getCondition());
+			walk(op.getTrueExpression());
+			walk(op.getFalseExpression());
+		} else if (node instanceof MapOrArrayAccess) {
+			MapOrArrayAccess access = (MapOrArrayAccess)node;
+			walk(access.getMapOrArray());
+			walk(access.getKeyOrIndex());
+		} else if (node instanceof MemberAccess) {
+			walk(((MemberAccess)node).getObject());
+		} else if (node instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall)node;
+			walk(call.getFunction());
+			walk(call.getArguments());
+		} else if (node instanceof InlinedMacroCall) {
+			walk(((InlinedMacroCall)node).getCall());
+		} else if (node instanceof PrerenderedCall) {
+			walk(((PrerenderedCall)node).getCall());
+		} else if (node instanceof MethodCall) {
+			MethodCall call = (MethodCall)node;
+			walk(call.getMethod());
+			walk(call.getArguments());
+		} else if (node instanceof MapLiteral) {
+			walk(((MapLiteral)node).getValues());
+		} else if (node instanceof ListLiteral) {
+			walk(((ListLiteral)node).getValues());
+		} else if (node instanceof IfStatement) {
+			IfStatement statement = (IfStatement)node;
+			walk(statement.getCondition());
+			walk(statement.getTrueBlock());
+			walk(statement.getElseIfs());
+			walk(statement.getFalseBlock());
+		} else if (node instanceof ForStatement) {
+			ForStatement statement = (ForStatement)node;
+			walk(statement.getMapOrArray());
+			walk(statement.getRangeEnd());
+			walk(statement.getRangeStep());
+			walk(statement.getBody());
+		} else if (node instanceof WhileStatement) {
+			WhileStatement statement = (WhileStatement)node;
+			walk(statement.getCondition());
+			walk(statement.getBody());
+		} else if (node instanceof Return) {
+			walk(((Return)node).getReturnValue());
+		} else if (node instanceof AsyncBlock) {
+			walk(((AsyncBlock)node).getBody());
+		} else if (node instanceof CacheBlock) {
+			CacheBlock block = (CacheBlock)node;
+			walk(block.getKey());
+			walk(block.getTimeToLive());
+			walk(block.getBody());
+		} else if (node instanceof Block) {
+			walk(((Block)node).getBody());
+		} else if (node instanceof Macro) {
+			walk(((Macro)node).getBody());
+		} else if (node instanceof FlattenedInclude) {
+			walk(((FlattenedInclude)node).getNodes());
+		} else if (node instanceof Include) {
+			Include include = (Include)node;
+			if (include.getContext() != null) {
+				for (Node value : include.getContext().values())
+					walk(value);
+			}
+		}
+	}
+}
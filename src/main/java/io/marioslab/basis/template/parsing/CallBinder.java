@@ -0,0 +1,83 @@
+
+package io.marioslab.basis.template.parsing;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.marioslab.basis.template.Template;
+import io.marioslab.basis.template.parsing.Ast.Block;
+import io.marioslab.basis.template.parsing.Ast.FlattenedInclude;
+import io.marioslab.basis.template.parsing.Ast.FunctionCall;
+import io.marioslab.basis.template.parsing.Ast.Include;
+import io.marioslab.basis.template.parsing.Ast.Macro;
+import io.marioslab.basis.template.parsing.Ast.MethodCall;
+import io.marioslab.basis.template.parsing.Ast.Node;
+import io.marioslab.basis.template.parsing.Ast.VariableAccess;
+import io.marioslab.basis.template.parsing.Parser.Macros;
+
+/** Binds calls to macros to their target when a template is loaded, so they don't have to be looked up by name on every call.
+ * A call <code>name(...)</code> is bound to the macro of the template with that name, see
+ * {@link FunctionCall#setBoundMacro(Macro)}. As before, a context variable of the same name takes precedence over the macro. A
+ * call <code>alias.name(...)</code> is bound to the macro of the template included via <code>include "path" as alias</code>,
+ * see {@link MethodCall#setBoundMacro(Macros, Macro)}. The binding is only used if the alias evaluates to the included macros
+ * when the call is evaluated. **/
+public class CallBinder {
+
+	/** Binds the calls in the template, its macros and the templates it includes. Includes must have been resolved by the
+	 * template loader. **/
+	public static void bind (Template template) {
+		bind(template, new HashSet<Template>());
+	}
+
+	private static void bind (Template template, Set<Template> visited) {
+		if (!visited.add(template)) return;
+		bind(template.getNodes(), template, visited);
+	}
+
+	private static void bind (List<Node> nodes, Template template, Set<Template> visited) {
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Block && ((Block)node).getTemplate() != null) {
+					// the body belongs to the extending template the block was defined in
+					Block block = (Block)node;
+					bind(block.getTemplate(), visited);
+					bind(block.getBody(), block.getTemplate(), visited);
+					return false;
+				} else if (node instanceof FlattenedInclude) {
+					// the nodes belong to the included template
+					bind(((FlattenedInclude)node).getNodes(), ((FlattenedInclude)node).getTemplate(), visited);
+					return false;
+				} else if (node instanceof Include) {
+					Include include = (Include)node;
+					if (include.getTemplate() != null) bind(include.getTemplate(), visited);
+				} else if (node instanceof FunctionCall) {
+					FunctionCall call = (FunctionCall)node;
+					if (call.getBoundMacro() == null && call.getFunction() instanceof VariableAccess)
+						call.setBoundMacro(template.getMacros().get(((VariableAccess)call.getFunction()).getVariableName().getText()));
+				} else if (node instanceof MethodCall) {
+					MethodCall call = (MethodCall)node;
+					if (call.getBoundMacro() == null && call.getObject() instanceof VariableAccess) {
+						Macros macros = getAliasedMacros(template, ((VariableAccess)call.getObject()).getVariableName().getText());
+						Macro macro = macros != null ? macros.get(call.getMethod().getName().getText()) : null;
+						if (macro != null) call.setBoundMacro(macros, macro);
+					}
+				}
+				return true;
+			}
+		}.walk(nodes);
+	}
+
+	/** Returns the macros of the template included under the alias, or null if the alias isn't used or used for different
+	 * templates. **/
+	static Macros getAliasedMacros (Template template, String alias) {
+		Macros macros = null;
+		for (Include include : template.getIncludes()) {
+			if (!include.isMacrosOnly() || !include.getAlias().getText().equals(alias)) continue;
+			if (include.getTemplate() == null || (macros != null && macros != include.getTemplate().getMacros())) return null;
+			macros = include.getTemplate().getMacros();
+		}
+		return macros;
+	}
+}
@@ -49,7 +49,7 @@ public class CharacterStream {
 	public boolean match (String needle, boolean consume) {
 		int needleLength = needle.length();
 		for (int i = 0, j = index; i < needleLength; i++, j++) {
-			if (index >= end) return false;
+			if (j >= end) return false;
 			if (needle.charAt(i) != source.getContent().charAt(j)) return false;
 		}
 		if (consume) index += needleLength;
@@ -0,0 +1,341 @@
+
+package io.marioslab.basis.template.parsing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import io.marioslab.basis.template.Dependencies;
+import io.marioslab.basis.template.Template;
+import io.marioslab.basis.template.parsing.Ast.AsyncBlock;
+import io.marioslab.basis.template.parsing.Ast.BinaryOperation;
+import io.marioslab.basis.template.parsing.Ast.BinaryOperation.BinaryOperator;
+import io.marioslab.basis.template.parsing.Ast.Block;
+import io.marioslab.basis.template.parsing.Ast.CacheBlock;
+import io.marioslab.basis.template.parsing.Ast.Expression;
+import io.marioslab.basis.template.parsing.Ast.FlattenedInclude;
+import io.marioslab.basis.template.parsing.Ast.ForStatement;
+import io.marioslab.basis.template.parsing.Ast.FunctionCall;
+import io.marioslab.basis.template.parsing.Ast.IfStatement;
+import io.marioslab.basis.template.parsing.Ast.Include;
+import io.marioslab.basis.template.parsing.Ast.Macro;
+import io.marioslab.basis.template.parsing.Ast.MapOrArrayAccess;
+import io.marioslab.basis.template.parsing.Ast.MemberAccess;
+import io.marioslab.basis.template.parsing.Ast.MethodCall;
+import io.marioslab.basis.template.parsing.Ast.Node;
+import io.marioslab.basis.template.parsing.Ast.StringLiteral;
+import io.marioslab.basis.template.parsing.Ast.VariableAccess;
+import io.marioslab.basis.template.parsing.Ast.WhileStatement;
+import io.marioslab.basis.template.parsing.Parser.Macros;
+
+/**
+ * <p>
+ * Determines the {@link Dependencies} of a template, i.e. the variables and member paths of the context it can read, by walking
+ * its AST. Included templates and the bodies of called macros are analyzed as well.
+ * </p>
+ *
+ * <p>
+ * The analysis tracks the scopes of the template like the {@link io.marioslab.basis.template.TemplateContext} does when
+ * rendering. Variables declared by loops, assigned by the template, or passed to macros and includes are local, and remember the
+ * path of the value they were assigned, if any, so reads through them are attributed to that path. Where it can't be decided
+ * statically whether a variable is local, e.g. because it is assigned in only one branch of an if statement, the variable is
+ * assumed to be read from the context, so the dependencies are a superset of what a rendering actually reads.
+ * </p>
+ **/
+public class DependencyAnalyzer {
+	private final Set<String> paths = new TreeSet<String>();
+	private final Set<List<Object>> analyzedMacroCalls = new HashSet<List<Object>>();
+	private final List<Template> includeStack = new ArrayList<Template>();
+
+	private DependencyAnalyzer () {
+	}
+
+	/** Returns the dependencies of the template. Includes must have been resolved by the template loader. **/
+	public static Dependencies analyze (Template template) {
+		DependencyAnalyzer analyzer = new DependencyAnalyzer();
+		analyzer.includeStack.add(template);
+		analyzer.analyze(template.getNodes(), template, new Scopes(false));
+
+		Set<String> variables = new TreeSet<String>();
+		for (String path : analyzer.paths) {
+			int end = 0;
+			while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[')
+				end++;
+			variables.add(path.substring(0, end));
+		}
+		return new Dependencies(variables, analyzer.paths);
+	}
+
+	private void analyze (List<? extends Node> nodes, Template template, Scopes scopes) {
+		for (int i = 0, n = nodes.size(); i < n; i++)
+			analyze(nodes.get(i), template, scopes);
+	}
+
+	private void analyzeScoped (List<? extends Node> nodes, Template template, Scopes scopes) {
+		scopes.push();
+		analyze(nodes, template, scopes);
+		scopes.pop();
+	}
+
+	private void analyze (Node node, Template template, Scopes scopes) {
+		if (node == null) return;
+
+		if (node instanceof VariableAccess || node instanceof MemberAccess || node instanceof MapOrArrayAccess) {
+			read((Expression)node, template, scopes);
+		} else if (node instanceof BinaryOperation && ((BinaryOperation)node).getOperator() == BinaryOperator.Assignment) {
+			BinaryOperation assignment = (BinaryOperation)node;
+			String path = read(assignment.getRightOperand(), template, scopes);
+			if (assignment.getLeftOperand() instanceof VariableAccess)
+				scopes.set(((VariableAccess)assignment.getLeftOperand()).getVariableName().getText(), new Binding(path, null));
+		} else if (node instanceof FunctionCall) {
+			analyzeFunctionCall((FunctionCall)node, template, scopes);
+		} else if (node instanceof MethodCall) {
+			analyzeMethodCall((MethodCall)node, template, scopes);
+		} else if (node instanceof IfStatement) {
+			IfStatement statement = (IfStatement)node;
+			analyze(statement.getCondition(), template, scopes);
+			analyzeScoped(statement.getTrueBlock(), template, scopes);
+			for (IfStatement elseIf : statement.getElseIfs()) {
+				analyze(elseIf.getCondition(), template, scopes);
+				analyzeScoped(elseIf.getTrueBlock(), template, scopes);
+			}
+			analyzeScoped(statement.getFalseBlock(), template, scopes);
+		} else if (node instanceof ForStatement) {
+			ForStatement statement = (ForStatement)node;
+			String path = read(statement.getMapOrArray(), template, scopes);
+			analyze(statement.getRangeEnd(), template, scopes);
+			analyze(statement.getRangeStep(), template, scopes);
+			scopes.push();
+			String elementPath = path != null && statement.getRangeEnd() == null ? path + "[*]" : null;
+			scopes.setOnCurrentScope(statement.getValueName().getText(), new Binding(elementPath, null));
+			if (statement.getIndexOrKeyName() != null) scopes.setOnCurrentScope(statement.getIndexOrKeyName().getText(), new Binding(null, null));
+			analyze(statement.getBody(), template, scopes);
+			scopes.pop();
+		} else if (node instanceof WhileStatement) {
+			WhileStatement statement = (WhileStatement)node;
+			analyze(statement.getCondition(), template, scopes);
+			analyzeScoped(statement.getBody(), template, scopes);
+		} else if (node instanceof AsyncBlock) {
+			analyzeScoped(((AsyncBlock)node).getBody(), template, scopes);
+		} else if (node instanceof CacheBlock) {
+			CacheBlock block = (CacheBlock)node;
+			analyze(block.getKey(), template, scopes);
+			analyze(block.getTimeToLive(), template, scopes);
+			analyzeScoped(block.getBody(), template, scopes);
+		} else if (node instanceof Include) {
+			analyzeInclude((Include)node, template, scopes);
+		} else if (node instanceof Block) {
+			// blocks share the scope of the enclosing nodes, overriding blocks are analyzed with the template they were defined in
+			Block block = (Block)node;
+			analyze(block.getBody(), block.getTemplate() != null ? block.getTemplate() : template, scopes);
+		} else if (node instanceof FlattenedInclude) {
+			// the included template shares the context of the including template
+			analyze(((FlattenedInclude)node).getNodes(), ((FlattenedInclude)node).getTemplate(), scopes);
+		} else if (!(node instanceof Macro)) {
+			// macros are analyzed when called, all other nodes are analyzed by analyzing their children in order
+			new AstWalker() {
+				@Override
+				protected boolean enter (Node child) {
+					if (child == node) return true;
+					analyze(child, template, scopes);
+					return false;
+				}
+			}.walk(node);
+		}
+	}
+
+	/** Records the path of the expression, if any, and returns it. Otherwise analyzes the expression and returns null. **/
+	private String read (Expression expression, Template template, Scopes scopes) {
+		if (!(expression instanceof VariableAccess || expression instanceof MemberAccess || expression instanceof MapOrArrayAccess)) {
+			analyze(expression, template, scopes);
+			return null;
+		}
+		String path = getPath(expression, template, scopes);
+		if (path != null) paths.add(path);
+		return path;
+	}
+
+	/** Returns the path of a variable, member or element access, or null if the value doesn't originate from the context.
+	 * Expressions that are not part of the path, like element keys, are analyzed. **/
+	private String getPath (Expression expression, Template template, Scopes scopes) {
+		if (expression instanceof VariableAccess) {
+			String name = ((VariableAccess)expression).getVariableName().getText();
+			Binding binding = scopes.get(name);
+			if (binding != null) return binding.path;
+			return scopes.isIsolated() ? null : name;
+		} else if (expression instanceof MemberAccess) {
+			MemberAccess access = (MemberAccess)expression;
+			String path = getObjectPath(access.getObject(), template, scopes);
+			return path != null ? path + "." + access.getName().getText() : null;
+		} else if (expression instanceof MapOrArrayAccess) {
+			MapOrArrayAccess access = (MapOrArrayAccess)expression;
+			String path = getObjectPath(access.getMapOrArray(), template, scopes);
+			analyze(access.getKeyOrIndex(), template, scopes);
+			if (path == null) return null;
+			if (access.getKeyOrIndex() instanceof StringLiteral) {
+				String key = ((StringLiteral)access.getKeyOrIndex()).getValue();
+				if (isIdentifier(key)) return path + "." + key;
+			}
+			return path + "[*]";
+		} else {
+			return null;
+		}
+	}
+
+	private String getObjectPath (Expression object, Template template, Scopes scopes) {
+		if (object instanceof VariableAccess || object instanceof MemberAccess || object instanceof MapOrArrayAccess)
+			return getPath(object, template, scopes);
+		analyze(object, template, scopes);
+		return null;
+	}
+
+	private static boolean isIdentifier (String key) {
+		if (key.isEmpty() || !Character.isJavaIdentifierStart(key.charAt(0))) return false;
+		for (int i = 1; i < key.length(); i++)
+			if (!Character.isJavaIdentifierPart(key.charAt(i))) return false;
+		return true;
+	}
+
+	private List<String> readArguments (List<Expression> arguments, Template template, Scopes scopes) {
+		List<String> argumentPaths = new ArrayList<String>(arguments.size());
+		for (Expression argument : arguments)
+			argumentPaths.add(read(argument, template, scopes));
+		return argumentPaths;
+	}
+
+	private void analyzeFunctionCall (FunctionCall call, Template template, Scopes scopes) {
+		List<String> argumentPaths = readArguments(call.getArguments(), template, scopes);
+		if (call.getFunction() instanceof VariableAccess) {
+			String name = ((VariableAccess)call.getFunction()).getVariableName().getText();
+			Macro macro = template.getMacros().get(name);
+			if (scopes.get(name) == null && macro != null) {
+				analyzeMacro(macro, argumentPaths, scopes);
+				return;
+			}
+		}
+		read(call.getFunction(), template, scopes);
+	}
+
+	private void analyzeMethodCall (MethodCall call, Template template, Scopes scopes) {
+		List<String> argumentPaths = readArguments(call.getArguments(), template, scopes);
+		if (call.getObject() instanceof VariableAccess) {
+			Binding binding = scopes.get(((VariableAccess)call.getObject()).getVariableName().getText());
+			if (binding != null && binding.macros != null) {
+				Macro macro = binding.macros.get(call.getMethod().getName().getText());
+				if (macro != null) analyzeMacro(macro, argumentPaths, scopes);
+				return;
+			}
+		}
+		read(call.getObject(), template, scopes);
+	}
+
+	/** Analyzes the body of the macro, with its arguments bound to the given paths. A macro doesn't see the context of its caller,
+	 * except for macros included with an alias. Each macro is analyzed once per combination of argument paths. **/
+	private void analyzeMacro (Macro macro, List<String> argumentPaths, Scopes callerScopes) {
+		List<Object> key = new ArrayList<Object>(argumentPaths);
+		key.add(macro);
+		if (!analyzedMacroCalls.add(key)) return;
+
+		Scopes scopes = new Scopes(true);
+		for (Map.Entry<String, Binding> alias : callerScopes.getIncludeAliases().entrySet())
+			scopes.setOnCurrentScope(alias.getKey(), alias.getValue());
+		List<Span> argumentNames = macro.getArgumentNames();
+		for (int i = 0, n = Math.min(argumentNames.size(), argumentPaths.size()); i < n; i++)
+			scopes.setOnCurrentScope(argumentNames.get(i).getText(), new Binding(argumentPaths.get(i), null));
+		analyze(macro.getBody(), macro.getTemplate(), scopes);
+	}
+
+	private void analyzeInclude (Include include, Template template, Scopes scopes) {
+		Template other = include.getTemplate();
+		if (other == null || includeStack.contains(other)) return;
+
+		if (include.isMacrosOnly()) {
+			scopes.set(include.getAlias().getText(), new Binding(null, other.getMacros()));
+			return;
+		}
+
+		includeStack.add(other);
+		if (include.getContext().isEmpty()) {
+			// the included template shares the context of the including template
+			analyze(other.getNodes(), other, scopes);
+		} else {
+			Scopes otherScopes = new Scopes(true);
+			for (Map.Entry<Span, Expression> entry : include.getContext().entrySet())
+				otherScopes.setOnCurrentScope(entry.getKey().getText(), new Binding(read(entry.getValue(), template, scopes), null));
+			analyze(other.getNodes(), other, otherScopes);
+		}
+		includeStack.remove(includeStack.size() - 1);
+	}
+
+	/** A local variable. Stores the path of the context value the variable was assigned, or the macros of an include with an
+	 * alias. **/
+	private static class Binding {
+		final String path;
+		final Macros macros;
+
+		Binding (String path, Macros macros) {
+			this.path = path;
+			this.macros = macros;
+		}
+	}
+
+	/** The scopes of local variables, mirroring the scopes of a {@link io.marioslab.basis.template.TemplateContext}. Variables
+	 * that are not bound are read from the context, unless the scopes are isolated, as is the case for the bodies of macros and
+	 * templates included with a context. **/
+	private static class Scopes {
+		private final List<Map<String, Binding>> scopes = new ArrayList<Map<String, Binding>>();
+		private final boolean isolated;
+
+		Scopes (boolean isolated) {
+			this.isolated = isolated;
+			push();
+		}
+
+		boolean isIsolated () {
+			return isolated;
+		}
+
+		void push () {
+			scopes.add(new HashMap<String, Binding>());
+		}
+
+		void pop () {
+			scopes.remove(scopes.size() - 1);
+		}
+
+		Binding get (String name) {
+			for (int i = scopes.size() - 1; i >= 0; i--) {
+				Binding binding = scopes.get(i).get(name);
+				if (binding != null) return binding;
+			}
+			return null;
+		}
+
+		void set (String name, Binding binding) {
+			for (int i = scopes.size() - 1; i >= 0; i--) {
+				if (scopes.get(i).containsKey(name)) {
+					scopes.get(i).put(name, binding);
+					return;
+				}
+			}
+			setOnCurrentScope(name, binding);
+		}
+
+		void setOnCurrentScope (String name, Binding binding) {
+			scopes.get(scopes.size() - 1).put(name, binding);
+		}
+
+		Map<String, Binding> getIncludeAliases () {
+			Map<String, Binding> aliases = new HashMap<String, Binding>();
+			for (Map<String, Binding> scope : scopes) {
+				for (Map.Entry<String, Binding> entry : scope.entrySet())
+					if (entry.getValue().macros != null) aliases.put(entry.getKey(), entry.getValue());
+			}
+			return aliases;
+		}
+	}
+}
@@ -3,16 +3,22 @@ package io.marioslab.basis.template.parsing;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import io.marioslab.basis.template.Error;
 import io.marioslab.basis.template.Template;
 import io.marioslab.basis.template.TemplateLoader.Source;
+import io.marioslab.basis.template.parsing.Ast.AsyncBlock;
 import io.marioslab.basis.template.parsing.Ast.BinaryOperation;
+import io.marioslab.basis.template.parsing.Ast.BinaryOperation.BinaryOperator;
+import io.marioslab.basis.template.parsing.Ast.Block;
 import io.marioslab.basis.template.parsing.Ast.BooleanLiteral;
 import io.marioslab.basis.template.parsing.Ast.Break;
 import io.marioslab.basis.template.parsing.Ast.ByteLiteral;
+import io.marioslab.basis.template.parsing.Ast.CacheBlock;
 import io.marioslab.basis.template.parsing.Ast.CharacterLiteral;
 import io.marioslab.basis.template.parsing.Ast.Continue;
 import io.marioslab.basis.template.parsing.Ast.DoubleLiteral;
@@ -54,14 +60,248 @@ public class Parser {
 		List<IncludeRaw> rawIncludes = new ArrayList<IncludeRaw>();
 		TokenStream stream = new TokenStream(new Tokenizer().tokenize(source));
 
+		Span extendedPath = null;
 		while (stream.hasMore()) {
+			if (stream.match("extends", false) && stream.isSameTag(0, 1) && isOfType(stream.lookahead(1), TokenType.StringLiteral) && extendedPath == null && isWhitespace(nodes)) {
+				stream.consume();
+				extendedPath = stream.expect(TokenType.StringLiteral).getSpan();
+				while (stream.match(";", true))
+					;
+				continue;
+			}
 			nodes.add(parseStatement(stream, true, macros, includes, rawIncludes));
 		}
-		return new ParserResult(nodes, macros, includes, rawIncludes);
+
+		if (extendedPath != null) checkExtendingTemplate(nodes);
+		checkBlocks(nodes, macros);
+		checkConcurrentBlocks(nodes, new HashSet<String>());
+		for (Macro macro : macros.values()) {
+			Set<String> arguments = new HashSet<String>();
+			for (Span argument : macro.getArgumentNames())
+				arguments.add(argument.getText());
+			checkConcurrentBlocks(macro.getBody(), arguments);
+			if (macro.isMemoized()) checkMemoizedMacro(macro, macros, includes);
+		}
+		return new ParserResult(nodes, macros, includes, rawIncludes, extendedPath);
+	}
+
+	/** Parses a {@link Source} consisting of a single expression, without enclosing {{ }}, see
+	 * {@link io.marioslab.basis.template.Expressions}. **/
+	public Expression parseExpression (Source source) {
+		if (source.getContent().trim().isEmpty()) Error.error("Expected an expression.", new Span(new Source(source.getPath(), " "), 0, 1));
+		TokenStream stream = new TokenStream(new Tokenizer().tokenizeCode(source));
+		Expression expression = parseExpression(stream);
+		if (stream.hasMore()) {
+			Token token = stream.consume();
+			Error.error("Expected the end of the expression, but got '" + token.getText() + "'.", token.getSpan());
+		}
+		return expression;
+	}
+
+	/** Returns whether the nodes only consist of text made up of whitespace. **/
+	private static boolean isWhitespace (List<Node> nodes) {
+		for (Node node : nodes) {
+			if (!(node instanceof Text) || !node.getSpan().getText().trim().isEmpty()) return false;
+		}
+		return true;
+	}
+
+	/** Reports an error if a template extending another template contains statements other than blocks, macros and includes of
+	 * macros at the top level. Only the blocks of an extending template are rendered, within the extended template. **/
+	private static void checkExtendingTemplate (List<Node> nodes) {
+		for (Node node : nodes) {
+			if (node instanceof Block || node instanceof Macro || (node instanceof Include && ((Include)node).isMacrosOnly())) continue;
+			if (node instanceof Text && node.getSpan().getText().trim().isEmpty()) continue;
+			Error.error("A template extending another template can only contain blocks, macros and includes of macros.", node.getSpan());
+		}
+	}
+
+	/** Reports an error if a block is defined in a macro, or if two blocks of the template have the same name. **/
+	private static void checkBlocks (List<Node> nodes, Macros macros) {
+		for (Macro macro : macros.values()) {
+			new AstWalker() {
+				@Override
+				protected boolean enter (Node node) {
+					if (node instanceof Block) Error.error("Blocks can not be defined in macros.", node.getSpan());
+					return true;
+				}
+			}.walk(macro.getBody());
+		}
+
+		Set<String> names = new HashSet<String>();
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Block && !names.add(((Block)node).getName().getText()))
+					Error.error("Block '" + ((Block)node).getName().getText() + "' is already defined.", ((Block)node).getName());
+				return !(node instanceof Macro);
+			}
+		}.walk(nodes);
+	}
+
+	/** Returns the name of the variable assigned by the node, or null if the node is not an assignment. **/
+	private static Span getAssignedVariable (Node node) {
+		if (!(node instanceof BinaryOperation)) return null;
+		BinaryOperation op = (BinaryOperation)node;
+		if (op.getOperator() != BinaryOperator.Assignment || !(op.getLeftOperand() instanceof VariableAccess)) return null;
+		return ((VariableAccess)op.getLeftOperand()).getVariableName();
+	}
+
+	/** Reports an error if the body of the memoized macro reads a variable other than its arguments, variables it declares
+	 * itself, macros of the template and macros included via <code>include "path" as alias</code>. The output of a memoized
+	 * macro is reused for equal arguments, so it may only depend on its arguments. **/
+	private static void checkMemoizedMacro (Macro macro, Macros macros, List<Include> includes) {
+		Set<String> names = new HashSet<String>(macros.keySet());
+		for (Span argument : macro.getArgumentNames())
+			names.add(argument.getText());
+		for (Include include : includes) {
+			if (include.isMacrosOnly()) names.add(include.getAlias().getText());
+		}
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				Span assigned = getAssignedVariable(node);
+				if (assigned != null) names.add(assigned.getText());
+				if (node instanceof ForStatement) {
+					ForStatement loop = (ForStatement)node;
+					names.add(loop.getValueName().getText());
+					if (loop.getIndexOrKeyName() != null) names.add(loop.getIndexOrKeyName().getText());
+				}
+				return true;
+			}
+		}.walk(macro.getBody());
+
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof VariableAccess && !names.contains(((VariableAccess)node).getVariableName().getText())) {
+					Span variable = ((VariableAccess)node).getVariableName();
+					Error.error("Memoized macro '" + macro.getName().getText() + "' can only read its arguments and macros, but reads '" + variable.getText() + "'.", variable);
+				}
+				return true;
+			}
+		}.walk(macro.getBody());
+	}
+
+	/** Reports an error if the body of a parallel for loop, async block or cache block in the given nodes assigns a variable that
+	 * is defined outside of it, i.e. one of the given outer names, or a variable assigned or declared by a loop in the nodes
+	 * outside of such a block. Iterations of parallel loops and async blocks are rendered concurrently, and can only assign
+	 * variables local to an iteration or block. The body of a cache block is not evaluated if its output is cached, so it can't
+	 * have effects outside of the block either. Variables provided by the context can only be checked when the template is
+	 * rendered. **/
+	private static void checkConcurrentBlocks (List<Node> nodes, Set<String> outerNames) {
+		Set<String> names = new HashSet<String>(outerNames);
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				Span assigned = getAssignedVariable(node);
+				if (assigned != null) names.add(assigned.getText());
+				if (node instanceof ForStatement) {
+					ForStatement loop = (ForStatement)node;
+					if (loop.isParallel()) return false;
+					names.add(loop.getValueName().getText());
+					if (loop.getIndexOrKeyName() != null) names.add(loop.getIndexOrKeyName().getText());
+				}
+				return !(node instanceof Macro) && !(node instanceof AsyncBlock) && !(node instanceof CacheBlock);
+			}
+		}.walk(nodes);
+
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				List<Node> body = null;
+				String description = null;
+				Set<String> bodyNames = new HashSet<String>(names);
+				if (node instanceof ForStatement && ((ForStatement)node).isParallel()) {
+					ForStatement loop = (ForStatement)node;
+					body = loop.getBody();
+					description = "a parallel for loop";
+					bodyNames.add(loop.getValueName().getText());
+					if (loop.getIndexOrKeyName() != null) bodyNames.add(loop.getIndexOrKeyName().getText());
+				} else if (node instanceof AsyncBlock) {
+					body = ((AsyncBlock)node).getBody();
+					description = "an async block";
+				} else if (node instanceof CacheBlock) {
+					body = ((CacheBlock)node).getBody();
+					description = "a cache block";
+				}
+				if (body == null) return !(node instanceof Macro);
+
+				String error = " defined outside of " + description + ".";
+				new AstWalker() {
+					@Override
+					protected boolean enter (Node node) {
+						Span assigned = getAssignedVariable(node);
+						if (assigned != null && names.contains(assigned.getText()))
+							Error.error("Can not assign to variable '" + assigned.getText() + "'" + error, assigned);
+						return true;
+					}
+				}.walk(body);
+				checkConcurrentBlocks(body, bodyNames);
+				return false;
+			}
+		}.walk(nodes);
+	}
+
+	/** Reports an error if the body of a parallel for loop, async, cache or block contains a return statement, or a break statement that
+	 * is not nested in another loop. Continue statements that are not nested in another loop are only allowed if
+	 * allowContinue is true. **/
+	private static void checkConcurrentBody (List<Node> body, String description, boolean allowContinue) {
+		new AstWalker() {
+			int loopDepth;
+
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Return) Error.error("Can not return from within " + description + ".", node.getSpan());
+				if (node instanceof Break && loopDepth == 0) Error.error("Can not break out of " + description + ".", node.getSpan());
+				if (node instanceof Continue && loopDepth == 0 && !allowContinue)
+					Error.error("Can not continue out of " + description + ".", node.getSpan());
+				if (node instanceof ForStatement || node instanceof WhileStatement) loopDepth++;
+				return true;
+			}
+
+			@Override
+			protected void exit (Node node) {
+				if (node instanceof ForStatement || node instanceof WhileStatement) loopDepth--;
+			}
+		}.walk(body);
+	}
+
+	/** Returns whether the token exists and is of the given type. Used to tell keywords like <code>block</code> and
+	 * <code>extends</code> from variables of the same name. **/
+	private static boolean isOfType (Token token, TokenType type) {
+		return token != null && token.getType() == type;
+	}
+
+	/** Returns whether the token can start a statement, or the expression of a statement if text is not allowed. Used to tell
+	 * keywords like <code>async</code> and <code>cache</code> from variables of the same name, e.g.
+	 * <code>{{ async + 1 }}</code>. **/
+	private static boolean startsStatement (Token token, boolean allowText) {
+		if (token == null) return false;
+		switch (token.getType()) {
+		case TextBlock:
+			return allowText;
+		case Identifier:
+			return !token.getText().equals("end") && !token.getText().equals("else") && !token.getText().equals("elseif");
+		case BooleanLiteral:
+		case DoubleLiteral:
+		case FloatLiteral:
+		case LongLiteral:
+		case IntegerLiteral:
+		case ShortLiteral:
+		case ByteLiteral:
+		case CharacterLiteral:
+		case StringLiteral:
+		case RawStringLiteral:
+		case NullLiteral:
+			return true;
+		default:
+			return false;
+		}
 	}
 
 	/** Parse a statement, which may either be a text block, if statement, for statement, while statement, macro definition,
-	 * include statement or an expression. **/
+	 * include statement, async block, cache block, block or an expression. **/
 	private Node parseStatement (TokenStream tokens, boolean allowMacros, Macros macros, List<Include> includes, List<IncludeRaw> rawIncludes) {
 		Node result = null;
 
@@ -88,6 +328,15 @@ public class Parser {
 			}
 		} else if (tokens.match("include", false)) {
 			result = parseInclude(tokens, includes, rawIncludes);
+		} else if (tokens.match("async", false) && (!tokens.isSameTag(0, 1) || startsStatement(tokens.lookahead(1), false))) {
+			// async alone in its tag starts a block, the body usually follows in the next tag
+			result = parseAsyncBlock(tokens, includes, rawIncludes);
+		} else if (tokens.match("cache", false) && tokens.isSameTag(0, 1) && startsStatement(tokens.lookahead(1), false)) {
+			result = parseCacheBlock(tokens, includes, rawIncludes);
+		} else if (tokens.match("block", false) && tokens.isSameTag(0, 1) && isOfType(tokens.lookahead(1), TokenType.Identifier)) {
+			result = parseBlock(tokens, includes, rawIncludes);
+		} else if (tokens.match("extends", false) && tokens.isSameTag(0, 1) && isOfType(tokens.lookahead(1), TokenType.StringLiteral)) {
+			Error.error("The extends statement must be the first statement of a template.", tokens.consume().getSpan());
 		} else if (tokens.match("return", false)) {
 			result = parseReturn(tokens);
 		} else
@@ -143,6 +392,13 @@ public class Parser {
 		Span index = null;
 		Span value = stream.expect(TokenType.Identifier).getSpan();
 
+		// "parallel" is only a keyword if followed by the loop variable, so it can still be used as a variable name
+		boolean parallel = false;
+		if (value.getText().equals("parallel") && stream.match(TokenType.Identifier, false) && !stream.match("in", false)) {
+			parallel = true;
+			value = stream.expect(TokenType.Identifier).getSpan();
+		}
+
 		if (stream.match(TokenType.Comma, true)) {
 			index = value;
 			value = stream.expect(TokenType.Identifier).getSpan();
@@ -152,6 +408,15 @@ public class Parser {
 
 		Expression mapOrArray = parseExpression(stream);
 
+		// range of the form start..end, with an optional step
+		Expression rangeEnd = null;
+		Expression rangeStep = null;
+		if (stream.match(TokenType.DoubleDot, true)) {
+			rangeEnd = parseExpression(stream);
+			// step is a variable if it is part of the loop body
+			if (stream.isSameTag(-1, 0) && stream.match("step", true)) rangeStep = parseExpression(stream);
+		}
+
 		List<Node> body = new ArrayList<Node>();
 		while (stream.hasMore() && !stream.match(false, "end")) {
 			body.add(parseStatement(stream, false, null, includes, rawIncludes));
@@ -159,7 +424,9 @@ public class Parser {
 
 		Span closingEnd = stream.expect("end").getSpan();
 
-		return new ForStatement(new Span(openingFor, closingEnd), index != null ? index : null, value, mapOrArray, body);
+		if (parallel) checkConcurrentBody(body, "a parallel for loop", true);
+		return new ForStatement(new Span(openingFor, closingEnd), index != null ? index : null, value, mapOrArray, rangeEnd, rangeStep, parallel,
+			body);
 	}
 
 	private WhileStatement parseWhileStatement (TokenStream stream, List<Include> includes, List<IncludeRaw> rawIncludes) {
@@ -182,6 +449,13 @@ public class Parser {
 
 		Span name = stream.expect(TokenType.Identifier).getSpan();
 
+		// "memo" is only a keyword if followed by the macro name, so it can still be used as a macro name
+		boolean memoized = false;
+		if (name.getText().equals("memo") && stream.match(TokenType.Identifier, false)) {
+			memoized = true;
+			name = stream.expect(TokenType.Identifier).getSpan();
+		}
+
 		List<Span> argumentNames = parseArgumentNames(stream);
 
 		stream.expect(TokenType.RightParantheses);
@@ -193,7 +467,7 @@ public class Parser {
 
 		Span closingEnd = stream.expect("end").getSpan();
 
-		return new Macro(new Span(openingWhile, closingEnd), name, argumentNames, body);
+		return new Macro(new Span(openingWhile, closingEnd), name, argumentNames, body, memoized);
 	}
 
 	/** Does not consume the closing parentheses. **/
@@ -207,6 +481,55 @@ public class Parser {
 		return arguments;
 	}
 
+	private AsyncBlock parseAsyncBlock (TokenStream stream, List<Include> includes, List<IncludeRaw> rawIncludes) {
+		Span openingAsync = stream.expect("async").getSpan();
+
+		List<Node> body = new ArrayList<Node>();
+		while (stream.hasMore() && !stream.match(false, "end")) {
+			body.add(parseStatement(stream, false, null, includes, rawIncludes));
+		}
+
+		Span closingEnd = stream.expect("end").getSpan();
+
+		checkConcurrentBody(body, "an async block", false);
+		return new AsyncBlock(new Span(openingAsync, closingEnd), body);
+	}
+
+	private CacheBlock parseCacheBlock (TokenStream stream, List<Include> includes, List<IncludeRaw> rawIncludes) {
+		Span openingCache = stream.expect("cache").getSpan();
+
+		Expression key = parseExpression(stream);
+		Expression timeToLive = null;
+		// ttl is a variable if it is part of the body
+		if (stream.isSameTag(-1, 0) && stream.match("ttl", true)) timeToLive = parseExpression(stream);
+
+		List<Node> body = new ArrayList<Node>();
+		while (stream.hasMore() && !stream.match(false, "end")) {
+			body.add(parseStatement(stream, false, null, includes, rawIncludes));
+		}
+
+		Span closingEnd = stream.expect("end").getSpan();
+
+		checkConcurrentBody(body, "a cache block", false);
+		return new CacheBlock(new Span(openingCache, closingEnd), key, timeToLive, body);
+	}
+
+	private Block parseBlock (TokenStream stream, List<Include> includes, List<IncludeRaw> rawIncludes) {
+		Span openingBlock = stream.expect("block").getSpan();
+
+		Span name = stream.expect(TokenType.Identifier).getSpan();
+
+		List<Node> body = new ArrayList<Node>();
+		while (stream.hasMore() && !stream.match(false, "end")) {
+			body.add(parseStatement(stream, false, null, includes, rawIncludes));
+		}
+
+		Span closingEnd = stream.expect("end").getSpan();
+
+		checkConcurrentBody(body, "a block", false);
+		return new Block(new Span(openingBlock, closingEnd), name, body);
+	}
+
 	private Node parseInclude (TokenStream stream, List<Include> includes, List<IncludeRaw> rawIncludes) {
 		Span openingInclude = stream.expect("include").getSpan();
 		if (stream.match("raw", true)) {
@@ -216,6 +539,18 @@ public class Parser {
 			return rawInclude;
 		}
 
+		// include async "path", rendered concurrently like an async block containing the include
+		if (stream.match("async", true)) {
+			Include include = parseIncludeTemplate(stream, openingInclude, includes);
+			if (include.isMacrosOnly()) Error.error("Can not include macros asynchronously.", include.getSpan());
+			List<Node> body = new ArrayList<Node>();
+			body.add(include);
+			return new AsyncBlock(include.getSpan(), body);
+		}
+		return parseIncludeTemplate(stream, openingInclude, includes);
+	}
+
+	private Include parseIncludeTemplate (TokenStream stream, Span openingInclude, List<Include> includes) {
 		Span path = stream.expect(TokenType.StringLiteral).getSpan();
 		Span closing = path;
 
@@ -426,12 +761,18 @@ public class Parser {
 		private final Macros macros;
 		private final List<Include> includes;
 		private final List<IncludeRaw> rawIncludes;
+		private final Span extendedPath;
 
 		public ParserResult (List<Node> nodes, Macros macros, List<Include> includes, List<IncludeRaw> rawIncludes) {
+			this(nodes, macros, includes, rawIncludes, null);
+		}
+
+		public ParserResult (List<Node> nodes, Macros macros, List<Include> includes, List<IncludeRaw> rawIncludes, Span extendedPath) {
 			this.nodes = nodes;
 			this.macros = macros;
 			this.includes = includes;
 			this.rawIncludes = rawIncludes;
+			this.extendedPath = extendedPath;
 		}
 
 		public List<Node> getNodes () {
@@ -449,5 +790,11 @@ public class Parser {
 		public List<IncludeRaw> getRawIncludes () {
 			return rawIncludes;
 		}
+
+		/** Returns the path of the template extended via <code>extends "path"</code>, or null if the template doesn't extend
+		 * another template. **/
+		public Span getExtendedPath () {
+			return extendedPath;
+		}
 	}
 }
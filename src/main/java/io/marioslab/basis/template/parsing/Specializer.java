@@ -0,0 +1,749 @@
+
+package io.marioslab.basis.template.parsing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import io.marioslab.basis.template.Error;
+import io.marioslab.basis.template.Template;
+import io.marioslab.basis.template.TemplateContext;
+import io.marioslab.basis.template.TemplateLoader.Source;
+import io.marioslab.basis.template.parsing.Ast.AsyncBlock;
+import io.marioslab.basis.template.parsing.Ast.BinaryOperation;
+import io.marioslab.basis.template.parsing.Ast.BinaryOperation.BinaryOperator;
+import io.marioslab.basis.template.parsing.Ast.Block;
+import io.marioslab.basis.template.parsing.Ast.Break;
+import io.marioslab.basis.template.parsing.Ast.CacheBlock;
+import io.marioslab.basis.template.parsing.Ast.Constant;
+import io.marioslab.basis.template.parsing.Ast.Continue;
+import io.marioslab.basis.template.parsing.Ast.Expression;
+import io.marioslab.basis.template.parsing.Ast.FlattenedInclude;
+import io.marioslab.basis.template.parsing.Ast.ForStatement;
+import io.marioslab.basis.template.parsing.Ast.FunctionCall;
+import io.marioslab.basis.template.parsing.Ast.IfStatement;
+import io.marioslab.basis.template.parsing.Ast.Include;
+import io.marioslab.basis.template.parsing.Ast.InlinedMacroCall;
+import io.marioslab.basis.template.parsing.Ast.ListLiteral;
+import io.marioslab.basis.template.parsing.Ast.Macro;
+import io.marioslab.basis.template.parsing.Ast.MapLiteral;
+import io.marioslab.basis.template.parsing.Ast.MapOrArrayAccess;
+import io.marioslab.basis.template.parsing.Ast.MemberAccess;
+import io.marioslab.basis.template.parsing.Ast.MethodCall;
+import io.marioslab.basis.template.parsing.Ast.Node;
+import io.marioslab.basis.template.parsing.Ast.PrerenderedCall;
+import io.marioslab.basis.template.parsing.Ast.Return;
+import io.marioslab.basis.template.parsing.Ast.TernaryOperation;
+import io.marioslab.basis.template.parsing.Ast.Text;
+import io.marioslab.basis.template.parsing.Ast.UnaryOperation;
+import io.marioslab.basis.template.parsing.Ast.VariableAccess;
+import io.marioslab.basis.template.parsing.Ast.WhileStatement;
+import io.marioslab.basis.template.parsing.Parser.Macros;
+
+/**
+ * <p>
+ * Partially evaluates a template with some of its context variables fixed to constant values, see
+ * {@link Template#specialize(Map)}. Reads of the constant variables are replaced by their values, operations, member and
+ * element accesses on constant values are evaluated, if statements with constant conditions are reduced to the branch taken,
+ * and constant output is merged with the surrounding text. The result is a residual template that renders the same output as
+ * the original template given a context containing the constants.
+ * </p>
+ *
+ * <p>
+ * The analysis is conservative. Function and method calls are never evaluated, as they may have side effects. A constant
+ * variable that is assigned by the template, or declared by a loop or include, is not replaced. Instead, the residual template
+ * sets it on the context before rendering, like the caller would have. Macro bodies and templates included with a context don't
+ * see the context of the including template, so they are left as is. Templates included without a context are specialized as
+ * well.
+ * </p>
+ *
+ * <p>
+ * Output that is fully determined by the template is pre-rendered. Templates included without a context, or with a context of
+ * constant values, are replaced by their output if it doesn't depend on the including template's context. Calls to macros of
+ * the template with constant arguments in statement position are replaced by their output if the macro body only reads its
+ * arguments, see {@link PrerenderedCall}. {@link #prerender(Template)} applies this to every template when it is loaded by a
+ * {@link io.marioslab.basis.template.TemplateLoader.CachingTemplateLoader}.
+ * </p>
+ *
+ * <p>
+ * Calls to small macros of the template, or to macros included via <code>include "path" as alias</code>, are inlined, see
+ * {@link InlinedMacroCall} and {@link #setMaxInlinedMacroSize(int)}. Only macros whose body reads nothing but its arguments and
+ * loop variables, and doesn't assign variables, return, include templates or break or continue outside of a loop are inlined,
+ * so evaluating the body in a scope of the calling context can't observe or change the caller's variables.
+ * </p>
+ *
+ * <p>
+ * A template extending another template via <code>extends "path"</code> is resolved by {@link #extend(Template, Template)}
+ * into a residual template of the extended template, in which the blocks are replaced by the blocks of the extending template.
+ * </p>
+ **/
+public class Specializer {
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write (int b) throws IOException {
+		}
+	};
+
+	private static int maxInlinedMacroSize = 32;
+
+	private final Map<String, Object> constants;
+	private final Map<Template, Template> residualTemplates = new IdentityHashMap<Template, Template>();
+
+	/** The macros whose calls are currently being pre-rendered, to stop at recursive calls. **/
+	private final Set<Macro> prerenderedMacros;
+
+	/** The blocks of the extending template by name, and the template they are defined in, see {@link #extend(Template, Template)}.
+	 * Null while specializing the nodes of included templates, whose blocks can't be overridden. **/
+	private Map<String, Block> overrides;
+	private Template extending;
+
+	private Specializer (Map<String, Object> constants, Set<Macro> prerenderedMacros) {
+		this.constants = constants;
+		this.prerenderedMacros = prerenderedMacros;
+	}
+
+	/** Sets the maximum number of AST nodes in the body of a macro for calls to it to be inlined, see {@link InlinedMacroCall}.
+	 * Defaults to 32. Setting it to 0 disables inlining. Only affects templates loaded afterwards. **/
+	public synchronized static void setMaxInlinedMacroSize (int nodes) {
+		maxInlinedMacroSize = nodes;
+	}
+
+	/** Returns the maximum number of AST nodes in the body of a macro for calls to it to be inlined. **/
+	public synchronized static int getMaxInlinedMacroSize () {
+		return maxInlinedMacroSize;
+	}
+
+	/** Returns a residual template of the template in which all output that doesn't depend on the context is pre-rendered. Includes
+	 * must have been resolved by the template loader. **/
+	public static Template prerender (Template template) {
+		return specialize(template, new HashMap<String, Object>());
+	}
+
+	/** Returns the expression with all operations on constant operands evaluated, e.g. <code>60 * 60 * 24</code>, or a
+	 * {@link Constant} if the value of the whole expression is known. **/
+	public static Expression prerender (Expression expression, Template template) {
+		return new Specializer(new HashMap<String, Object>(), new HashSet<Macro>()).specialize(expression, template);
+	}
+
+	/** Returns a residual template of the template, specialized for the given constant context variables. Includes must have
+	 * been resolved by the template loader. **/
+	public static Template specialize (Template template, Map<String, Object> constants) {
+		// constants that may be reassigned or are awaited when accessed can't be replaced by their value
+		Set<String> assigned = new HashSet<String>();
+		collectAssignedVariables(template, assigned, new HashSet<Template>());
+		Map<String, Object> replaced = new HashMap<String, Object>();
+		Map<String, Object> preset = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> constant : constants.entrySet()) {
+			if (constant.getValue() == null) continue;
+			if (assigned.contains(constant.getKey()) || constant.getValue() instanceof Future)
+				preset.put(constant.getKey(), constant.getValue());
+			else
+				replaced.put(constant.getKey(), constant.getValue());
+		}
+
+		List<Node> prelude = new ArrayList<Node>();
+		for (Map.Entry<String, Object> constant : preset.entrySet()) {
+			Span name = new Span(new Source("constants", constant.getKey()), 0, constant.getKey().length());
+			prelude.add(new BinaryOperation(name, new VariableAccess(name), BinaryOperator.Assignment, new Constant(name, constant.getValue())));
+		}
+		return new Specializer(replaced, new HashSet<Macro>()).specializeTemplate(template, prelude);
+	}
+
+	/** Returns a residual template of the extended template, in which each block is replaced by the top-level or nested block of
+	 * the same name of the extending template, if any. The body of a replaced block is evaluated with the extending template, see
+	 * {@link Block}. Includes of macros of the extending template are evaluated before the nodes of the extended template. The
+	 * macros of the extending template are added to the residual template, unless the extended template defines a macro of the
+	 * same name. Output that doesn't depend on the context is pre-rendered as by {@link #prerender(Template)}. Reports an error if
+	 * a top-level block of the extending template doesn't override a block of the extended template. **/
+	public static Template extend (Template extended, Template extending) {
+		Map<String, Block> blocks = new HashMap<String, Block>();
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Block) blocks.put(((Block)node).getName().getText(), (Block)node);
+				return !(node instanceof Macro);
+			}
+		}.walk(extending.getNodes());
+
+		List<Node> prelude = new ArrayList<Node>();
+		for (Node node : extending.getNodes())
+			if (node instanceof Include) prelude.add(node);
+
+		Specializer specializer = new Specializer(new HashMap<String, Object>(), new HashSet<Macro>());
+		specializer.overrides = blocks;
+		specializer.extending = extending;
+		Template residual = specializer.specializeTemplate(extended, prelude);
+
+		Set<String> names = new HashSet<String>();
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Block) names.add(((Block)node).getName().getText());
+				return !(node instanceof Macro);
+			}
+		}.walk(extended.getNodes());
+		for (Node node : extending.getNodes()) {
+			if (node instanceof Block && !names.contains(((Block)node).getName().getText()))
+				Error.error("The extended template doesn't define block '" + ((Block)node).getName().getText() + "'.", ((Block)node).getName());
+		}
+
+		// the macros of the extending template keep their template, and don't replace macros of the extended template, as calls in
+		// the extended template may already be bound to those
+		for (Macro macro : extending.getMacros().values())
+			residual.getMacros().putIfAbsent(macro.getName().getText(), macro);
+		return residual;
+	}
+
+	/** Collects the names of variables that may be assigned in the context the template is rendered with, including by templates
+	 * it includes without a context. **/
+	private static void collectAssignedVariables (Template template, Set<String> assigned, Set<Template> visited) {
+		if (!visited.add(template)) return;
+		collectAssignedVariables(template.getNodes(), assigned, visited);
+	}
+
+	private static void collectAssignedVariables (List<Node> nodes, Set<String> assigned, Set<Template> visited) {
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof BinaryOperation && ((BinaryOperation)node).getOperator() == BinaryOperator.Assignment) {
+					Expression left = ((BinaryOperation)node).getLeftOperand();
+					if (left instanceof VariableAccess) assigned.add(((VariableAccess)left).getVariableName().getText());
+				} else if (node instanceof ForStatement) {
+					ForStatement loop = (ForStatement)node;
+					assigned.add(loop.getValueName().getText());
+					if (loop.getIndexOrKeyName() != null) assigned.add(loop.getIndexOrKeyName().getText());
+				} else if (node instanceof Include) {
+					Include include = (Include)node;
+					if (include.isMacrosOnly())
+						assigned.add(include.getAlias().getText());
+					else if (include.getContext().isEmpty() && include.getTemplate() != null)
+						collectAssignedVariables(include.getTemplate(), assigned, visited);
+				}
+				return !(node instanceof Macro);
+			}
+		}.walk(nodes);
+	}
+
+	private static Macros copyMacros (Macros macros) {
+		Macros copy = new Macros();
+		for (Macro macro : macros.values())
+			copy.put(macro.getName().getText(), new Macro(macro.getSpan(), macro.getName(), macro.getArgumentNames(), macro.getBody(), macro.isMemoized()));
+		return copy;
+	}
+
+	/** Specializes the template, prepending the prelude to the nodes of the residual template. **/
+	private Template specializeTemplate (Template template, List<Node> prelude) {
+		Template residual = residualTemplates.get(template);
+		if (residual != null) return residual;
+
+		// macros are copied, as the template constructor sets the residual template on them
+		Macros macros = copyMacros(template.getMacros());
+		List<Node> nodes = new ArrayList<Node>(prelude);
+		for (Node node : template.getNodes()) {
+			if (node instanceof Macro)
+				nodes.add(macros.get(((Macro)node).getName().getText()));
+			else
+				specialize(node, template, nodes);
+		}
+		nodes = mergeText(nodes);
+
+		List<Include> includes = new ArrayList<Include>();
+		AstWalker includeCollector = new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Include) includes.add((Include)node);
+				return true;
+			}
+		};
+		includeCollector.walk(nodes);
+		residual = new Template(nodes, macros, includes);
+		residualTemplates.put(template, residual);
+		return residual;
+	}
+
+	/** Specializes the nodes, which form a scope of their own. **/
+	private List<Node> specialize (List<Node> nodes, Template template) {
+		List<Node> result = new ArrayList<Node>(nodes.size());
+		for (Node node : nodes)
+			specialize(node, template, result);
+		return mergeText(result);
+	}
+
+	/** Specializes the node and adds the residual nodes to the result. A node may be removed, or replaced by multiple nodes. **/
+	private void specialize (Node node, Template template, List<Node> result) {
+		if (node instanceof Expression) {
+			Expression expression = specialize((Expression)node, template);
+			// constant values are output like text, null is not output
+			if (expression instanceof Constant && ((Constant)expression).getValue() == null) return;
+			Expression call = expression instanceof InlinedMacroCall ? ((InlinedMacroCall)expression).getCall() : expression;
+			Node prerendered = call instanceof FunctionCall ? prerenderMacroCall((FunctionCall)call, template) : null;
+			result.add(prerendered != null ? prerendered : expression);
+		} else if (node instanceof IfStatement) {
+			specializeIf((IfStatement)node, template, result);
+		} else if (node instanceof ForStatement) {
+			ForStatement loop = (ForStatement)node;
+			result.add(new ForStatement(loop.getSpan(), loop.getIndexOrKeyName(), loop.getValueName(), specialize(loop.getMapOrArray(), template),
+				specialize(loop.getRangeEnd(), template), specialize(loop.getRangeStep(), template), loop.isParallel(),
+				specialize(loop.getBody(), template)));
+		} else if (node instanceof WhileStatement) {
+			WhileStatement loop = (WhileStatement)node;
+			Expression condition = specialize(loop.getCondition(), template);
+			if (condition instanceof Constant && Boolean.FALSE.equals(((Constant)condition).getValue())) return;
+			result.add(new WhileStatement(loop.getSpan(), condition, specialize(loop.getBody(), template)));
+		} else if (node instanceof AsyncBlock) {
+			List<Node> body = specialize(((AsyncBlock)node).getBody(), template);
+			if (body.isEmpty()) return;
+			if (body.size() == 1 && body.get(0) instanceof Text)
+				result.add(body.get(0));
+			else
+				result.add(new AsyncBlock(node.getSpan(), body));
+		} else if (node instanceof CacheBlock) {
+			CacheBlock block = (CacheBlock)node;
+			result.add(new CacheBlock(block.getSpan(), specialize(block.getKey(), template), specialize(block.getTimeToLive(), template),
+				specialize(block.getBody(), template)));
+		} else if (node instanceof Return) {
+			Return ret = (Return)node;
+			result.add(new Return(ret.getSpan(), specialize(ret.getReturnValue(), template)));
+		} else if (node instanceof Block) {
+			specializeBlock((Block)node, template, result);
+		} else if (node instanceof Include) {
+			Map<String, Block> overrides = this.overrides;
+			this.overrides = null;
+			try {
+				specializeInclude((Include)node, template, result);
+			} finally {
+				this.overrides = overrides;
+			}
+		} else if (node instanceof FlattenedInclude) {
+			FlattenedInclude include = (FlattenedInclude)node;
+			Map<String, Block> overrides = this.overrides;
+			this.overrides = null;
+			List<Node> nodes = new ArrayList<Node>();
+			try {
+				for (Node child : include.getNodes())
+					specialize(child, include.getTemplate(), nodes);
+			} finally {
+				this.overrides = overrides;
+			}
+			flattenInclude(include.getSpan(), include.getTemplate(), nodes, result);
+		} else {
+			// text, break, continue, raw includes
+			result.add(node);
+		}
+	}
+
+	/** Specializes the block, replacing it by the block of the same name of the extending template, if any. The block is kept,
+	 * so it can be overridden by templates extending the residual template. **/
+	private void specializeBlock (Block block, Template template, List<Node> result) {
+		Block override = overrides != null ? overrides.get(block.getName().getText()) : null;
+		Template blockTemplate = extending;
+		if (override == null) {
+			override = block;
+			blockTemplate = block.getTemplate();
+		}
+
+		List<Node> body = new ArrayList<Node>();
+		for (Node node : override.getBody())
+			specialize(node, blockTemplate != null ? blockTemplate : template, body);
+		result.add(new Block(override.getSpan(), override.getName(), mergeText(body), blockTemplate));
+	}
+
+	private void specializeIf (IfStatement statement, Template template, List<Node> result) {
+		List<Expression> conditions = new ArrayList<Expression>();
+		List<List<Node>> blocks = new ArrayList<List<Node>>();
+		conditions.add(statement.getCondition());
+		blocks.add(statement.getTrueBlock());
+		for (IfStatement elseIf : statement.getElseIfs()) {
+			conditions.add(elseIf.getCondition());
+			blocks.add(elseIf.getTrueBlock());
+		}
+
+		// drop branches whose condition is constant false, stop at the first branch whose condition is constant true
+		List<Expression> residualConditions = new ArrayList<Expression>();
+		List<List<Node>> residualBlocks = new ArrayList<List<Node>>();
+		List<Node> falseBlock = statement.getFalseBlock();
+		for (int i = 0; i < conditions.size(); i++) {
+			Expression condition = specialize(conditions.get(i), template);
+			if (condition instanceof Constant && ((Constant)condition).getValue() instanceof Boolean) {
+				if ((Boolean)((Constant)condition).getValue()) {
+					falseBlock = blocks.get(i);
+					break;
+				}
+				continue;
+			}
+			residualConditions.add(condition);
+			residualBlocks.add(blocks.get(i));
+		}
+
+		List<Node> residualFalseBlock = specialize(falseBlock, template);
+		if (residualConditions.isEmpty()) {
+			// the block can be inlined if it can't declare variables in its scope
+			if (declaresVariables(residualFalseBlock)) {
+				Constant condition = new Constant(statement.getCondition().getSpan(), true);
+				result.add(new IfStatement(statement.getSpan(), condition, residualFalseBlock, new ArrayList<IfStatement>(), new ArrayList<Node>()));
+			} else {
+				result.addAll(residualFalseBlock);
+			}
+			return;
+		}
+
+		List<IfStatement> elseIfs = new ArrayList<IfStatement>();
+		for (int i = 1; i < residualConditions.size(); i++) {
+			List<Node> block = specialize(residualBlocks.get(i), template);
+			elseIfs.add(new IfStatement(residualConditions.get(i).getSpan(), residualConditions.get(i), block, new ArrayList<IfStatement>(),
+				new ArrayList<Node>()));
+		}
+		result.add(new IfStatement(statement.getSpan(), residualConditions.get(0), specialize(residualBlocks.get(0), template), elseIfs,
+			residualFalseBlock));
+	}
+
+	private static boolean declaresVariables (List<Node> nodes) {
+		boolean[] declares = new boolean[1];
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof BinaryOperation && ((BinaryOperation)node).getOperator() == BinaryOperator.Assignment) declares[0] = true;
+				if (node instanceof Include && ((Include)node).isMacrosOnly()) declares[0] = true;
+				return !declares[0] && !(node instanceof Macro);
+			}
+		}.walk(nodes);
+		return declares[0];
+	}
+
+	/** Specializes the include and adds the residual nodes to the result. **/
+	private void specializeInclude (Include include, Template template, List<Node> result) {
+		if (include.isMacrosOnly() || include.getTemplate() == null) {
+			result.add(include);
+			return;
+		}
+
+		Include residual;
+		if (include.getContext().isEmpty()) {
+			Template included = specializeTemplate(include.getTemplate(), new ArrayList<Node>());
+			if (!canExit(included.getNodes())) {
+				flattenInclude(include.getSpan(), included, included.getNodes(), result);
+				return;
+			}
+			residual = new Include(include.getSpan(), include.getPath(), include.getContext(), false, null);
+			residual.setTemplate(included);
+		} else {
+			// the included template doesn't see the constants, only the expressions of its context are specialized
+			Map<Span, Expression> context = new HashMap<Span, Expression>();
+			Map<String, Object> values = new HashMap<String, Object>();
+			for (Map.Entry<Span, Expression> entry : include.getContext().entrySet()) {
+				Expression value = specialize(entry.getValue(), template);
+				context.put(entry.getKey(), value);
+				if (value instanceof Constant) values.put(entry.getKey().getText(), ((Constant)value).getValue());
+			}
+			// if the context is constant, the included template can be pre-rendered for it
+			if (values.size() == context.size()) {
+				byte[] output = getOutput(specialize(include.getTemplate(), values).getNodes());
+				if (output != null) {
+					result.add(new Text(include.getSpan(), output));
+					return;
+				}
+			}
+			residual = new Include(include.getSpan(), include.getPath(), context, false, null);
+			residual.setTemplate(include.getTemplate());
+		}
+		result.add(residual);
+	}
+
+	/** Adds the nodes of a template included without a context to the result. Text and constant output is added as is, so it can
+	 * be merged with the surrounding text, runs of other nodes are grouped into a {@link FlattenedInclude}. Macro definitions are
+	 * skipped. **/
+	private static void flattenInclude (Span span, Template included, List<Node> nodes, List<Node> result) {
+		List<Node> run = new ArrayList<Node>();
+		for (Node node : nodes) {
+			if (node instanceof Macro) continue;
+			if (getOutput(node) != null) {
+				if (!run.isEmpty()) result.add(new FlattenedInclude(span, included, run));
+				run = new ArrayList<Node>();
+				result.add(node);
+			} else {
+				run.add(node);
+			}
+		}
+		if (!run.isEmpty()) result.add(new FlattenedInclude(span, included, run));
+	}
+
+	/** Returns whether evaluating the nodes can end early via a return statement, or a break or continue statement outside of a
+	 * loop. An included template containing such statements can't be flattened, as they only end the included template. **/
+	private static boolean canExit (List<Node> nodes) {
+		boolean[] exits = new boolean[1];
+		new AstWalker() {
+			int loopDepth;
+
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Return || ((node instanceof Break || node instanceof Continue) && loopDepth == 0)) exits[0] = true;
+				if (node instanceof ForStatement || node instanceof WhileStatement) loopDepth++;
+				return !exits[0] && !(node instanceof Macro);
+			}
+
+			@Override
+			protected void exit (Node node) {
+				if (node instanceof ForStatement || node instanceof WhileStatement) loopDepth--;
+			}
+		}.walk(nodes);
+		return exits[0];
+	}
+
+	/** Returns a {@link PrerenderedCall} if the call is a call to a macro of the template with constant arguments, whose body
+	 * only reads its arguments, or null. **/
+	private Node prerenderMacroCall (FunctionCall call, Template template) {
+		if (!(call.getFunction() instanceof VariableAccess)) return null;
+		Macro macro = template.getMacros().get(((VariableAccess)call.getFunction()).getVariableName().getText());
+		if (macro == null || macro.getArgumentNames().size() != call.getArguments().size()) return null;
+		if (!prerenderedMacros.add(macro)) return null;
+		try {
+			Map<String, Object> arguments = new HashMap<String, Object>();
+			for (int i = 0; i < call.getArguments().size(); i++) {
+				Expression argument = call.getArguments().get(i);
+				if (!(argument instanceof Constant)) return null;
+				arguments.put(macro.getArgumentNames().get(i).getText(), ((Constant)argument).getValue());
+			}
+
+			// arguments that are reassigned can't be replaced by their value, a return value would be lost
+			Set<String> assigned = new HashSet<String>();
+			collectAssignedVariables(macro.getBody(), assigned, new HashSet<Template>());
+			for (String argument : arguments.keySet())
+				if (assigned.contains(argument)) return null;
+			if (containsReturn(macro.getBody())) return null;
+
+			byte[] output = getOutput(new Specializer(arguments, prerenderedMacros).specialize(macro.getBody(), macro.getTemplate()));
+			return output != null ? new PrerenderedCall(call, output) : null;
+		} finally {
+			prerenderedMacros.remove(macro);
+		}
+	}
+
+	/** Returns an {@link InlinedMacroCall} if the call is a call to a macro of the template, or a macro included under an alias,
+	 * that can be inlined. Otherwise returns the call. **/
+	private static Expression inlineMacroCall (Expression call, Template template) {
+		String name;
+		Macros macros = null;
+		Macro macro;
+		List<Expression> arguments;
+		if (call instanceof FunctionCall && ((FunctionCall)call).getFunction() instanceof VariableAccess) {
+			name = ((VariableAccess)((FunctionCall)call).getFunction()).getVariableName().getText();
+			macro = template.getMacros().get(name);
+			arguments = ((FunctionCall)call).getArguments();
+		} else if (call instanceof MethodCall && ((MethodCall)call).getObject() instanceof VariableAccess) {
+			name = ((VariableAccess)((MethodCall)call).getObject()).getVariableName().getText();
+			macros = CallBinder.getAliasedMacros(template, name);
+			if (macros == null) return call;
+			macro = macros.get(((MethodCall)call).getMethod().getName().getText());
+			arguments = ((MethodCall)call).getArguments();
+		} else {
+			return call;
+		}
+		if (macro == null || macro.isMemoized() || macro.getTemplate() == null || macro.getArgumentNames().size() != arguments.size()) return call;
+		if (!isInlinable(macro)) return call;
+		return new InlinedMacroCall(call, name, macros, macro, arguments);
+	}
+
+	/** Returns whether the macro body is small enough to be inlined and only reads its arguments and loop variables, see
+	 * {@link Specializer}. **/
+	private static boolean isInlinable (Macro macro) {
+		int maxSize = getMaxInlinedMacroSize();
+		Set<String> arguments = new HashSet<String>();
+		for (Span argument : macro.getArgumentNames())
+			arguments.add(argument.getText());
+
+		boolean[] inlinable = {true};
+		new AstWalker() {
+			Set<String> names = arguments;
+			int size, loopDepth;
+
+			@Override
+			protected boolean enter (Node node) {
+				if (++size > maxSize) inlinable[0] = false;
+				if (node instanceof Return || node instanceof Include || node instanceof Macro) inlinable[0] = false;
+				if (node instanceof BinaryOperation && ((BinaryOperation)node).getOperator() == BinaryOperator.Assignment) inlinable[0] = false;
+				if ((node instanceof Break || node instanceof Continue) && loopDepth == 0) inlinable[0] = false;
+				if (node instanceof VariableAccess && !names.contains(((VariableAccess)node).getVariableName().getText())) inlinable[0] = false;
+				if (!inlinable[0]) return false;
+
+				if (node instanceof ForStatement) {
+					ForStatement loop = (ForStatement)node;
+					walk(loop.getMapOrArray());
+					walk(loop.getRangeEnd());
+					walk(loop.getRangeStep());
+					Set<String> outerNames = names;
+					names = new HashSet<String>(outerNames);
+					names.add(loop.getValueName().getText());
+					if (loop.getIndexOrKeyName() != null) names.add(loop.getIndexOrKeyName().getText());
+					loopDepth++;
+					walk(loop.getBody());
+					loopDepth--;
+					names = outerNames;
+					return false;
+				} else if (node instanceof WhileStatement) {
+					walk(((WhileStatement)node).getCondition());
+					loopDepth++;
+					walk(((WhileStatement)node).getBody());
+					loopDepth--;
+					return false;
+				}
+				return true;
+			}
+		}.walk(macro.getBody());
+		return inlinable[0];
+	}
+
+	private static boolean containsReturn (List<Node> nodes) {
+		boolean[] contains = new boolean[1];
+		new AstWalker() {
+			@Override
+			protected boolean enter (Node node) {
+				if (node instanceof Return) contains[0] = true;
+				return !contains[0];
+			}
+		}.walk(nodes);
+		return contains[0];
+	}
+
+	/** Returns the specialized expression, a {@link Constant} if its value is known. **/
+	private Expression specialize (Expression expression, Template template) {
+		if (expression == null) return null;
+		if (expression instanceof Constant) return expression;
+		if (Ast.isConstant(expression)) return fold(expression, template);
+
+		if (expression instanceof VariableAccess) {
+			String name = ((VariableAccess)expression).getVariableName().getText();
+			return constants.containsKey(name) ? new Constant(expression.getSpan(), constants.get(name)) : expression;
+		} else if (expression instanceof UnaryOperation) {
+			UnaryOperation op = (UnaryOperation)expression;
+			Expression operand = specialize(op.getOperand(), template);
+			return fold(new UnaryOperation(op.getSpan(), op.getOperator(), operand), template, operand);
+		} else if (expression instanceof BinaryOperation) {
+			BinaryOperation op = (BinaryOperation)expression;
+			Expression left = op.getOperator() == BinaryOperator.Assignment ? op.getLeftOperand() : specialize(op.getLeftOperand(), template);
+			Expression right = specialize(op.getRightOperand(), template);
+			// short circuit evaluation doesn't evaluate the right operand
+			if (left instanceof Constant && (op.getOperator() == BinaryOperator.And || op.getOperator() == BinaryOperator.Or)) {
+				Object value = ((Constant)left).getValue();
+				if (value instanceof Boolean && (Boolean)value == (op.getOperator() == BinaryOperator.Or)) return new Constant(op.getSpan(), value);
+			}
+			BinaryOperation residual = new BinaryOperation(op.getSpan(), left, op.getOperator(), right);
+			if (op.getOperator() == BinaryOperator.Assignment) return residual;
+			return fold(residual, template, left, right);
+		} else if (expression instanceof TernaryOperation) {
+			TernaryOperation op = (TernaryOperation)expression;
+			Expression condition = specialize(op.getCondition(), template);
+			if (condition instanceof Constant && ((Constant)condition).getValue() instanceof Boolean)
+				return specialize((Boolean)((Constant)condition).getValue() ? op.getTrueExpression() : op.getFalseExpression(), template);
+			return new TernaryOperation(condition, specialize(op.getTrueExpression(), template), specialize(op.getFalseExpression(), template));
+		} else if (expression instanceof MemberAccess) {
+			MemberAccess access = (MemberAccess)expression;
+			Expression object = specialize(access.getObject(), template);
+			return fold(new MemberAccess(object, access.getName()), template, object);
+		} else if (expression instanceof MapOrArrayAccess) {
+			MapOrArrayAccess access = (MapOrArrayAccess)expression;
+			Expression mapOrArray = specialize(access.getMapOrArray(), template);
+			Expression keyOrIndex = specialize(access.getKeyOrIndex(), template);
+			return fold(new MapOrArrayAccess(access.getSpan(), mapOrArray, keyOrIndex), template, mapOrArray, keyOrIndex);
+		} else if (expression instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall)expression;
+			call = new FunctionCall(call.getSpan(), specialize(call.getFunction(), template), specializeExpressions(call.getArguments(), template));
+			return inlineMacroCall(call, template);
+		} else if (expression instanceof MethodCall) {
+			MethodCall call = (MethodCall)expression;
+			MemberAccess method = new MemberAccess(specialize(call.getObject(), template), call.getMethod().getName());
+			return inlineMacroCall(new MethodCall(call.getSpan(), method, specializeExpressions(call.getArguments(), template)), template);
+		} else if (expression instanceof InlinedMacroCall) {
+			// calls inlined when the template was loaded are specialized like the original call, which inlines them again
+			return specialize(((InlinedMacroCall)expression).getCall(), template);
+		} else if (expression instanceof MapLiteral) {
+			MapLiteral literal = (MapLiteral)expression;
+			return new MapLiteral(literal.getSpan(), literal.getKeys(), specializeExpressions(literal.getValues(), template));
+		} else if (expression instanceof ListLiteral) {
+			ListLiteral literal = (ListLiteral)expression;
+			return new ListLiteral(literal.getSpan(), specializeExpressions(literal.getValues(), template));
+		} else {
+			return expression;
+		}
+	}
+
+	private List<Expression> specializeExpressions (List<Expression> expressions, Template template) {
+		List<Expression> result = new ArrayList<Expression>(expressions.size());
+		for (Expression expression : expressions)
+			result.add(specialize(expression, template));
+		return result;
+	}
+
+	/** Evaluates the expression if all operands are constant and returns the value as a {@link Constant}. If the evaluation fails,
+	 * the expression is returned, so the error is reported when the template is rendered. **/
+	private static Expression fold (Expression expression, Template template, Expression... operands) {
+		for (Expression operand : operands) {
+			if (!(operand instanceof Constant)) return expression;
+		}
+		try {
+			return new Constant(expression.getSpan(), expression.evaluate(template, new TemplateContext(), NULL_OUTPUT));
+		} catch (Throwable t) {
+			return expression;
+		}
+	}
+
+	/** Merges consecutive text nodes and constant output into a single text node. **/
+	private static List<Node> mergeText (List<Node> nodes) {
+		List<Node> result = new ArrayList<Node>(nodes.size());
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		Node first = null, last = null;
+		for (Node node : nodes) {
+			byte[] bytes = getOutput(node);
+			if (bytes != null) {
+				if (first == null) first = node;
+				last = node;
+				text.write(bytes, 0, bytes.length);
+				continue;
+			}
+			if (first != null) result.add(createText(first, last, text));
+			first = null;
+			result.add(node);
+		}
+		if (first != null) result.add(createText(first, last, text));
+		return result;
+	}
+
+	/** Returns the output of the nodes if they only consist of text and macro definitions, or null. **/
+	private static byte[] getOutput (List<Node> nodes) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (Node node : nodes) {
+			if (node instanceof Macro) continue;
+			if (!(node instanceof Text)) return null;
+			byte[] bytes = ((Text)node).getBytes();
+			output.write(bytes, 0, bytes.length);
+		}
+		return output.toByteArray();
+	}
+
+	private static byte[] getOutput (Node node) {
+		if (node instanceof Text) return ((Text)node).getBytes();
+		if (node instanceof Constant) {
+			try {
+				return ((Constant)node).getValue().toString().getBytes("UTF-8");
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static Node createText (Node first, Node last, ByteArrayOutputStream text) {
+		Node node = first == last && first instanceof Text ? first
+			: new Text(first.getSpan().getSource() == last.getSpan().getSource() ? new Span(first.getSpan(), last.getSpan()) : first.getSpan(), text.toByteArray());
+		text.reset();
+		return node;
+	}
+}
@@ -102,6 +102,29 @@ public class TokenStream {
 		return false;
 	}
 
+	/** Returns the token the given number of tokens after the next token without consuming any tokens, or null if the stream
+	 * ends before. **/
+	public Token lookahead (int offset) {
+		if (index + offset >= end) return null;
+		return tokens.get(index + offset);
+	}
+
+	/** Returns whether the tokens at the given offsets from the next token exist and are part of the same {{ }} tag, i.e. no tag
+	 * ends between them. Text blocks are not part of any tag. Used to only treat optional keywords like <code>step</code> as such
+	 * if they appear in the tag of the statement they belong to, e.g. in <code>{{ for i in 0..n }}{{ step }}{{ end }}</code>. **/
+	public boolean isSameTag (int fromOffset, int toOffset) {
+		int from = index + fromOffset, to = index + toOffset;
+		if (from < 0 || to >= end || from > to) return false;
+		for (int i = from; i <= to; i++) {
+			if (tokens.get(i).getType() == TokenType.TextBlock) return false;
+		}
+		String content = tokens.get(from).getSpan().getSource().getContent();
+		for (int i = from; i < to; i++) {
+			if (content.substring(tokens.get(i).getSpan().getEnd(), tokens.get(i + 1).getSpan().getStart()).contains("}}")) return false;
+		}
+		return true;
+	}
+
 	/** Returns the {@link Source} this stream wraps. */
 	public Source getSource () {
 		if (tokens.size() == 0) return null;
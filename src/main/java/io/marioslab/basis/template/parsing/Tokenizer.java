@@ -29,7 +29,7 @@ public class Tokenizer {
 					if (!stream.hasMore()) Error.error("Did not find closing }}.", stream.endSpan());
 					stream.consume();
 				}
-				tokens.addAll(tokenizeCodeSpan(stream.endSpan()));
+				tokens.addAll(tokenizeCodeSpan(stream.endSpan(), true));
 				stream.startSpan();
 			} else {
 				stream.consume();
@@ -39,26 +39,34 @@ public class Tokenizer {
 		return tokens;
 	}
 
-	private static List<Token> tokenizeCodeSpan (Span span) {
+	/** Tokenizes the entire source as code, e.g. a single expression, without the enclosing {{ }}. **/
+	public List<Token> tokenizeCode (Source source) {
+		return tokenizeCodeSpan(new Span(source, 0, source.getContent().length()), false);
+	}
+
+	/** Tokenizes the code in the span. If delimited is true, the code must be enclosed in {{ }}. **/
+	private static List<Token> tokenizeCodeSpan (Span span, boolean delimited) {
 		Source source = span.getSource();
 		CharacterStream stream = new CharacterStream(source, span.getStart(), span.getEnd());
 		List<Token> tokens = new ArrayList<Token>();
 
 		// match opening tag and throw it away
-		if (!stream.match("{{", true)) Error.error("Expected {{", new Span(source, stream.getPosition(), stream.getPosition() + 1));
+		if (delimited && !stream.match("{{", true)) Error.error("Expected {{", new Span(source, stream.getPosition(), stream.getPosition() + 1));
 
 		outer:
 		while (stream.hasMore()) {
 			// skip whitespace
 			stream.skipWhiteSpace();
+			if (!stream.hasMore()) break;
 
-			// Number literal, both integers and floats. Number literals may be suffixed by a type identifier.
+			// Number literal, both integers and floats. Number literals may be suffixed by a type identifier. A period followed
+			// by another period is not a decimal point, but the range operator, e.g. 0..10.
 			if (stream.matchDigit(false)) {
 				TokenType type = TokenType.IntegerLiteral;
 				stream.startSpan();
 				while (stream.matchDigit(true))
 					;
-				if (stream.match(TokenType.Period.getLiteral(), true)) {
+				if (!stream.match(TokenType.DoubleDot.getLiteral(), false) && stream.match(TokenType.Period.getLiteral(), true)) {
 					type = TokenType.FloatLiteral;
 					while (stream.matchDigit(true))
 						;
@@ -140,12 +148,12 @@ public class Tokenizer {
 				}
 
 			// Identifier, keyword, boolean literal, or null literal
-			if (stream.matchIdentifierStart(true)) {
+			if (stream.matchIdentifierStart(false)) {
 				stream.startSpan();
+				stream.consume();
 				while (stream.matchIdentifierPart(true))
 					;
 				Span identifierSpan = stream.endSpan();
-				identifierSpan = new Span(identifierSpan.getSource(), identifierSpan.getStart() - 1, identifierSpan.getEnd());
 
 				if (identifierSpan.getText().equals("true") || identifierSpan.getText().equals("false")) {
 					tokens.add(new Token(TokenType.BooleanLiteral, identifierSpan));
@@ -168,7 +176,7 @@ public class Tokenizer {
 			}
 
 			// match closing tag
-			if (stream.match("}}", false)) break;
+			if (delimited && stream.match("}}", false)) break;
 
 			// single right curly for object literals
 			if (stream.match("}", false)) {
@@ -182,7 +190,7 @@ public class Tokenizer {
 		}
 
 		// code spans must end with }}
-		if (!stream.match("}}", true)) Error.error("Expected }}", new Span(source, stream.getPosition(), stream.getPosition() + 1));
+		if (delimited && !stream.match("}}", true)) Error.error("Expected }}", new Span(source, stream.getPosition(), stream.getPosition() + 1));
 		return tokens;
 	}
 }
@@ -0,0 +1,89 @@
+
+package io.marioslab.basis.template;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.marioslab.basis.template.TemplateLoader.MapTemplateLoader;
+
+/** Compares the throughput of rendering a newsletter for many recipients via {@link Template#render(TemplateContext)} in a loop
+ * with {@link BatchRenderer}. Not run as part of the tests, run the main method with an optional number of recipients. **/
+public class BatchRenderBenchmark {
+	private static final String NEWSLETTER = "<html><body><h1>{{ title }}</h1><p>Hello {{ name }},</p>\n"
+		+ "{{ if points > 1000 }}<p>You are a gold member with {{ points }} points.</p>{{ else }}<p>Collect {{ 1000 - points }} more points for gold.</p>{{ end }}\n"
+		+ "<ul>{{ for article in articles }}<li><a href=\"{{ baseUrl }}/{{ article.id }}?r={{ id }}\">{{ article.title }}</a></li>{{ end }}</ul>\n"
+		+ "<p><a href=\"{{ baseUrl }}/unsubscribe?r={{ id }}\">Unsubscribe</a></p></body></html>";
+
+	public static void main (String[] args) throws IOException {
+		int numRecipients = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Template template = new MapTemplateLoader().set("newsletter", NEWSLETTER).load("newsletter");
+
+		List<Map<String, Object>> articles = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 5; i++) {
+			Map<String, Object> article = new HashMap<String, Object>();
+			article.put("id", i);
+			article.put("title", "Article " + i);
+			articles.add(article);
+		}
+		List<Map<String, Object>> recipients = new ArrayList<Map<String, Object>>(numRecipients);
+		for (int i = 0; i < numRecipients; i++) {
+			Map<String, Object> recipient = new HashMap<String, Object>();
+			recipient.put("id", i);
+			recipient.put("name", "Recipient " + i);
+			recipient.put("points", i % 2000);
+			recipients.add(recipient);
+		}
+		Map<String, Object> shared = new HashMap<String, Object>();
+		shared.put("title", "Weekly news");
+		shared.put("baseUrl", "https://example.com");
+		shared.put("articles", articles);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		int[] threadCounts = cores > 1 ? new int[] {1, cores} : new int[] {1};
+		for (int round = 0; round < 3; round++) {
+			System.out.println(round < 2 ? "Warm-up round " + (round + 1) : "Measured round");
+			benchmarkLoop(template, shared, recipients);
+			for (int threads : threadCounts) {
+				benchmarkBatch(template, shared, recipients, threads, true);
+				benchmarkBatch(template, shared, recipients, threads, false);
+			}
+		}
+	}
+
+	/** Renders each recipient with a new context and output buffer, as with {@link Template#render(TemplateContext)}. **/
+	private static void benchmarkLoop (Template template, Map<String, Object> shared, List<Map<String, Object>> recipients) {
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (Map<String, Object> recipient : recipients) {
+			TemplateContext context = new TemplateContext();
+			for (Map.Entry<String, Object> variable : shared.entrySet())
+				context.set(variable.getKey(), variable.getValue());
+			for (Map.Entry<String, Object> variable : recipient.entrySet())
+				context.set(variable.getKey(), variable.getValue());
+			bytes += template.render(context).length();
+		}
+		report("Template.render() loop", recipients.size(), bytes, System.nanoTime() - start);
+	}
+
+	private static void benchmarkBatch (Template template, Map<String, Object> shared, List<Map<String, Object>> recipients, int threads,
+		boolean ordered) throws IOException {
+		TemplateContext context = new TemplateContext();
+		for (Map.Entry<String, Object> variable : shared.entrySet())
+			context.set(variable.getKey(), variable.getValue());
+		AtomicLong bytes = new AtomicLong();
+		long start = System.nanoTime();
+		new BatchRenderer(template).context(context).threads(threads).ordered(ordered).render(recipients,
+			(index, variables, output, length) -> bytes.addAndGet(length));
+		report("BatchRenderer, " + threads + " thread(s), " + (ordered ? "ordered" : "unordered"), recipients.size(), bytes.get(),
+			System.nanoTime() - start);
+	}
+
+	private static void report (String name, int count, long bytes, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("  %-40s %10.0f renders/s %8.1f MB/s", name, count / seconds, bytes / seconds / 1024 / 1024));
+	}
+}
@@ -3,19 +3,52 @@ package io.marioslab.basis.template;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.IntFunction;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
+import io.marioslab.basis.template.Error.TemplateException;
+import io.marioslab.basis.template.Expressions.Batch;
+import io.marioslab.basis.template.Expressions.CompiledExpression;
+import io.marioslab.basis.template.FragmentCache.BoundedFragmentCache;
+import io.marioslab.basis.template.TemplateLoader.FileTemplateLoader;
 import io.marioslab.basis.template.TemplateLoader.MapTemplateLoader;
+import io.marioslab.basis.template.interpreter.AstInterpreter;
+import io.marioslab.basis.template.parsing.Ast.Constant;
+import io.marioslab.basis.template.parsing.Ast.FlattenedInclude;
+import io.marioslab.basis.template.parsing.Ast.ForStatement;
+import io.marioslab.basis.template.parsing.Ast.FunctionCall;
+import io.marioslab.basis.template.parsing.Ast.InlinedMacroCall;
+import io.marioslab.basis.template.parsing.Ast.MethodCall;
+import io.marioslab.basis.template.parsing.Ast.PrerenderedCall;
+import io.marioslab.basis.template.parsing.Ast.Text;
+import io.marioslab.basis.template.parsing.Ast.VariableAccess;
 
 public class InterpreterTest {
 	class OtherObject {
@@ -75,6 +108,45 @@ public class InterpreterTest {
 		assertEquals(123, ((Map<String, Object>)map.get("test3")).get("test4"));
 	}
 
+	@Test
+	public void testConstantMapAndListLiterals () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "{{ return { a: 1, b: [ 1, 2, { c: \"3\" } ] } }}");
+		Template template = loader.load("hello");
+		Map<String, Object> map = (Map<String, Object>)template.evaluate(new TemplateContext());
+		assertTrue(map == template.evaluate(new TemplateContext()));
+		assertEquals(1, map.get("a"));
+		assertEquals(3, ((List<Object>)map.get("b")).size());
+
+		try {
+			map.put("d", 4);
+			fail("Constant map literal must be unmodifiable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			((List<Object>)map.get("b")).add(4);
+			fail("Constant list literal must be unmodifiable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+
+		loader.set("hello", "{{ return { a: a, b: [ a ] } }}");
+		template = loader.load("hello");
+		TemplateContext context = new TemplateContext().set("a", 1);
+		map = (Map<String, Object>)template.evaluate(context);
+		assertTrue(map != template.evaluate(context));
+		map.put("d", 4);
+		((List<Object>)map.get("b")).add(4);
+		assertEquals(3, map.size());
+
+		// empty literals create a new, modifiable instance, as do literals containing them
+		loader.set("hello", "{{ x = []; m = {}; n = { a: [] } }}{{ x.add(1) }}{{ m.put(\"a\", 1) }}{{ n.a.add(2) }}{{ x }} {{ m }} {{ n }}");
+		template = loader.load("hello");
+		assertEquals("truetrue[1] {a=1} {a=[2]}", template.render(new TemplateContext()));
+		assertEquals("truetrue[1] {a=1} {a=[2]}", template.render(new TemplateContext()));
+	}
+
 	@Test
 	public void testMapMemberAccess () {
 		MapTemplateLoader loader = new MapTemplateLoader();
@@ -179,6 +251,41 @@ public class InterpreterTest {
 		assertEquals("123456789123.456Test", result);
 	}
 
+	@Test
+	public void testSpecializedAccess () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "{{a[1]}} {{a.length}} {{a[0] + a[1]}}");
+		Template template = loader.load("hello");
+
+		// receivers of changing classes, each causing the access nodes to specialize again
+		assertEquals("2 2 3", template.render(new TemplateContext().set("a", new int[] {1, 2})));
+		assertEquals("2 2 3", template.render(new TemplateContext().set("a", new long[] {1, 2})));
+		assertEquals("2.0 2 3.0", template.render(new TemplateContext().set("a", new double[] {1, 2})));
+		assertEquals("b 2 ab", template.render(new TemplateContext().set("a", new String[] {"a", "b"})));
+		assertEquals("2 2 3", template.render(new TemplateContext().set("a", new float[] {1, 2})).replace(".0", ""));
+		assertEquals("2 2 3", template.render(new TemplateContext().set("a", new int[] {1, 2})));
+
+		loader.set("hello", "{{a[\"length\"]}} {{a.length}}");
+		template = loader.load("hello");
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("length", 3);
+		assertEquals("3 3", template.render(new TemplateContext().set("a", map)));
+		List<Object> list = new ArrayList<Object>();
+		list.add(1);
+		try {
+			template.render(new TemplateContext().set("a", list));
+			fail("List index must be an integer");
+		} catch (TemplateException e) {
+			// expected
+		}
+
+		loader.set("hello", "{{object.field1}}");
+		template = loader.load("hello");
+		assertEquals("123", template.render(new TemplateContext().set("object", new MyObject())));
+		assertEquals("1", template.render(new TemplateContext().set("object", Collections.singletonMap("field1", 1))));
+		assertEquals("123", template.render(new TemplateContext().set("object", new MyObject())));
+	}
+
 	@Test
 	public void testMethodCall () {
 		MapTemplateLoader loader = new MapTemplateLoader();
@@ -595,6 +702,43 @@ public class InterpreterTest {
 		assertEquals(123, context.get("a"));
 	}
 
+	@Test
+	public void testSpecializedOperations () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "{{a + b * 2}} {{a < b}} {{a == b}} {{-a + 1 > 0 ? a % 3 : b}} {{if a * 2 <= b}}yes{{else}}no{{end}}");
+		Template template = loader.load("hello");
+
+		// first render specializes the operations on int operands
+		assertEquals("7 true false 3 yes", template.render(new TemplateContext().set("a", 1).set("b", 3)));
+		assertEquals("10 false false 3 no", template.render(new TemplateContext().set("a", 4).set("b", 3)));
+
+		// int overflow must be preserved
+		assertEquals("" + (Integer.MAX_VALUE + 3 * 2), template.render(new TemplateContext().set("a", Integer.MAX_VALUE).set("b", 3)).split(" ")[0]);
+
+		// operand types change, operations fall back to the generic implementation
+		assertEquals("7 true false 3 yes", template.render(new TemplateContext().set("a", 1l).set("b", 3)));
+		assertEquals("7.5 true false 3 yes", template.render(new TemplateContext().set("a", 1.5d).set("b", 3)));
+		assertEquals("6.0 false false 1.0 no", template.render(new TemplateContext().set("a", 4).set("b", 1.0d)));
+		assertEquals("4 false false 1 no", template.render(new TemplateContext().set("a", 2).set("b", 1l)));
+
+		// a comparison falling back to the generic implementation compares the operands as evaluated, not as widened
+		loader.set("compare", "{{a <= b}}");
+		template = loader.load("compare");
+		assertEquals("false", template.render(new TemplateContext().set("a", 16777217).set("b", 1.0d)));
+		assertEquals("true", template.render(new TemplateContext().set("a", 16777217).set("b", 16777216f)));
+
+		loader.set("hello", "{{a + b}}");
+		template = loader.load("hello");
+		assertEquals("3", template.render(new TemplateContext().set("a", 1).set("b", 2)));
+		assertEquals("ab", template.render(new TemplateContext().set("a", "a").set("b", "b")));
+		assertEquals("3", template.render(new TemplateContext().set("a", 1).set("b", 2)));
+
+		loader.set("hello", "{{a == b}}");
+		template = loader.load("hello");
+		assertEquals("true", template.render(new TemplateContext().set("a", 1).set("b", 1)));
+		assertEquals("false", template.render(new TemplateContext().set("a", 1).set("b", 1l)));
+	}
+
 	@Test
 	public void testTernaryOperator () {
 		MapTemplateLoader loader = new MapTemplateLoader();
@@ -746,6 +890,932 @@ public class InterpreterTest {
 		assertEquals("0: aa\n1: bb\n2: cc\n", result);
 	}
 
+	@Test
+	public void testForRange () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		TemplateContext context = new TemplateContext().set("n", 3);
+
+		loader.set("hello", "{{ for i in 0..n }}{{i}} {{end}}");
+		Template template = loader.load("hello");
+		assertEquals("0 1 2 3 ", template.render(context));
+
+		loader.set("hello", "{{ for k, i in 10..0 step -4 }}{{k}}:{{i * 2}} {{end}}");
+		template = loader.load("hello");
+		assertEquals("0:20 1:12 2:4 ", template.render(context));
+
+		loader.set("hello", "{{ for i in 3..1 step 1 }}{{i}}{{end}}{{ for i in 1..n step n - 1 }}{{i}}{{end}}");
+		template = loader.load("hello");
+		assertEquals("13", template.render(context));
+
+		// step is only a keyword in the tag of the loop
+		loader.set("hello", "{{step = 2}}{{for i in 0..2}}{{step}}{{end}}{{for i in 0..4 step step}}{{i}}{{end}}");
+		template = loader.load("hello");
+		assertEquals("222024", template.render(context));
+
+		// long ranges must not overflow
+		loader.set("hello", "{{ for i in 9223372036854775806l..9223372036854775807l }}{{i}} {{end}}");
+		template = loader.load("hello");
+		assertEquals(Long.MAX_VALUE - 1 + " " + Long.MAX_VALUE + " ", template.render(context));
+
+		// assignments to the loop variable only last for the current iteration
+		loader.set("hello", "{{ for i in 1..3 }}{{if i == 2}}{{i = 5}}{{continue}}{{end}}{{i}}{{end}}");
+		template = loader.load("hello");
+		assertEquals("13", template.render(context));
+
+		loader.set("hello", "{{ for i in 0..\"a\" }}{{end}}");
+		template = loader.load("hello");
+		try {
+			template.render(context);
+			fail("Range bounds must be integers");
+		} catch (TemplateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testForPrimitiveArray () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "{{ sum = 0; for i, v in array }}{{ sum = sum + v * i }}{{end}}{{sum}}");
+		Template template = loader.load("hello");
+		assertEquals("8", template.render(new TemplateContext().set("array", new int[] {1, 2, 3})));
+		assertEquals("8.0", template.render(new TemplateContext().set("array", new double[] {1, 2, 3})));
+		assertEquals("8", template.render(new TemplateContext().set("array", new long[] {1, 2, 3})));
+		assertEquals("8.0", template.render(new TemplateContext().set("array", new float[] {1, 2, 3})));
+		assertEquals("8", template.render(new TemplateContext().set("array", new int[] {1, 2, 3})));
+	}
+
+	@Test
+	public void testForStream () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		AtomicInteger closed = new AtomicInteger();
+
+		loader.set("hello", "{{ for i, v in stream }}{{i}}:{{v}} {{end}}");
+		Template template = loader.load("hello");
+		Stream<String> stream = Stream.of("a", "b", "c").onClose( () -> closed.incrementAndGet());
+		assertEquals("0:a 1:b 2:c ", template.render(new TemplateContext().set("stream", stream)));
+		assertEquals(1, closed.get());
+		assertEquals("0:1 1:2 2:3 ", template.render(new TemplateContext().set("stream", IntStream.rangeClosed(1, 3))));
+		assertEquals("0:1.5 ", template.render(new TemplateContext().set("stream", DoubleStream.of(1.5))));
+		assertEquals("0:a 1:b ", template.render(new TemplateContext().set("stream", Arrays.asList("a", "b").spliterator())));
+		assertEquals("0:4 ", template.render(new TemplateContext().set("stream", LongStream.of(4).spliterator())));
+
+		// streams are consumed lazily and closed on break, return and errors
+		loader.set("hello", "{{ for v in stream }}{{v}}{{if v == 3}}{{break}}{{end}}{{end}}");
+		template = loader.load("hello");
+		assertEquals("123", template.render(new TemplateContext().set("stream", IntStream.iterate(1, v -> v + 1).onClose( () -> closed.incrementAndGet()))));
+		assertEquals(2, closed.get());
+
+		loader.set("hello", "{{ for v in stream }}{{return v}}{{end}}");
+		template = loader.load("hello");
+		assertEquals(1, template.evaluate(new TemplateContext().set("stream", Stream.of(1, 2).onClose( () -> closed.incrementAndGet()))));
+		assertEquals(3, closed.get());
+
+		loader.set("hello", "{{ for v in stream }}{{v.foo}}{{end}}");
+		template = loader.load("hello");
+		try {
+			template.render(new TemplateContext().set("stream", Stream.of(1, 2).onClose( () -> closed.incrementAndGet())));
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+		assertEquals(4, closed.get());
+	}
+
+	@Test
+	public void testForParallel () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "{{ macro row(i, v) i \":\" v end }}{{ for parallel i, v in values }}{{ if v % 3 == 0 }}{{ continue }}{{ end }}{{ t = v * 2 }}{{ row(i, t) }} {{ end }}");
+		Template template = loader.load("hello");
+
+		List<Integer> values = new ArrayList<Integer>();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			values.add(i);
+			if (i % 3 != 0) expected.append(i + ":" + i * 2 + " ");
+		}
+		assertEquals(expected.toString(), template.render(new TemplateContext().set("values", values)));
+		assertEquals(expected.toString(), template.render(new TemplateContext().set("values", values.iterator())));
+		assertEquals(expected.toString(), template.render(new TemplateContext().set("values", values.stream().mapToInt(v -> v).toArray())));
+
+		loader.set("hello", "{{ for parallel k, v in values }}{{ k }}={{ v }} {{ end }}{{ for parallel i in 1..n step 2 }}{{ i }}{{ end }}");
+		template = loader.load("hello");
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		map.put("a", 1);
+		assertEquals("a=1 13579", template.render(new TemplateContext().set("values", map).set("n", 9)));
+
+		// assignments to variables of the context can only be detected at render time
+		loader.set("hello", "{{ for parallel v in values }}{{ n = v }}{{ end }}");
+		template = loader.load("hello");
+		try {
+			template.render(new TemplateContext().set("values", values).set("n", 0));
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+
+		loader.set("hello", "{{ for parallel v in values }}{{ v.foo }}{{ end }}");
+		template = loader.load("hello");
+		try {
+			template.render(new TemplateContext().set("values", values));
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAsyncAsVariableName () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		TemplateContext context = new TemplateContext().set("async", "a").set("xs", Arrays.asList(1, 2));
+		assertEquals("12", loader.set("loop", "{{for async in xs}}{{async + \"\"}}{{end}}").load("loop").render(context));
+		assertEquals("a!", loader.set("expression", "{{ async + \"!\" }}").load("expression").render(context));
+		assertEquals("1", loader.set("member", "{{async.length()}}").load("member").render(context));
+
+		// async alone in its tag is reserved for blocks
+		assertEquals("hi", loader.set("block", "{{async}}hi{{end}}").load("block").render(context));
+		String[] reserved = {"{{async}}", "{{async}} hi", "{{async}}{{xs}}"};
+		for (String source : reserved) {
+			try {
+				loader.set("reserved", source).load("reserved");
+				fail("Expected an error for " + source);
+			} catch (TemplateException e) {
+				assertTrue(e.getMessage().contains("Expected 'end'"));
+			}
+		}
+	}
+
+	@Test
+	public void testCacheAsVariableName () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		TemplateContext context = new TemplateContext().set("cache", "c").set("xs", Arrays.asList(1, 2));
+		assertEquals("c", loader.set("variable", "{{cache}}").load("variable").render(context));
+		assertEquals("12", loader.set("loop", "{{for cache in xs}}{{cache}}{{end}}").load("loop").render(context));
+		assertEquals("c!", loader.set("expression", "{{ cache + \"!\" }}").load("expression").render(context));
+		assertEquals("1", loader.set("block", "{{cache \"key\"}}{{cache.length()}}{{end}}").load("block").render(context));
+
+		// the key and ttl must be in the tag of the cache block
+		context.set("n", 1).set("ttl", 2);
+		assertEquals("11", loader.set("adjacent", "{{cache = 1}}{{cache}}{{n}}").load("adjacent").render(context));
+		assertEquals("1 1", loader.set("spaced", "{{cache = 1}}{{cache}} {{n}}").load("spaced").render(context));
+		assertEquals("2", loader.set("ttl", "{{cache \"ttl-key\"}}{{ttl}}{{end}}").load("ttl").render(context));
+	}
+
+	@Test
+	public void testBlockAndExtendsAsVariableNames () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		Map<String, String> block = new HashMap<String, String>();
+		block.put("title", "t");
+		TemplateContext context = new TemplateContext().set("block", block).set("extends", "e");
+		assertEquals("{title=t}", loader.set("block", "{{block}}").load("block").render(context));
+		assertEquals("t", loader.set("member", "{{block.title}}").load("member").render(context));
+		assertEquals("e", loader.set("extends", "{{extends}}").load("extends").render(context));
+		assertEquals("ee", loader.set("twice", "{{extends}}{{ extends + \"\" }}").load("twice").render(context));
+		assertEquals("{title=t}t", loader.set("adjacent", "{{block}}{{block.title}}").load("adjacent").render(context));
+		assertEquals("ex", loader.set("adjacentExtends", "{{extends}}{{\"x\"}}").load("adjacentExtends").render(context));
+	}
+
+	@Test
+	public void testAsync () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("header", "{{ waitForFooter(5) }}");
+		loader.set("sidebar", "{{ a }}");
+		loader.set("hello", "{{ include async \"header\" }}|{{ include async \"sidebar\" with (a: 1 + 1) }}|{{ async }}{{ b = 3 }}{{ b }}{{ end }}|{{ footer(0) }}");
+		Template template = loader.load("hello");
+
+		// the header waits for the footer, which is rendered after it, so it must be rendered concurrently
+		CountDownLatch latch = new CountDownLatch(1);
+		TemplateContext context = new TemplateContext();
+		context.set("waitForFooter", (IntFunction<Boolean>)timeout -> {
+			try {
+				return latch.await(timeout, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		});
+		context.set("footer", (IntFunction<String>)v -> {
+			latch.countDown();
+			return "footer";
+		});
+		assertEquals("true|2|3|footer", template.render(context));
+
+		// async blocks in loops and nested async blocks are spliced in order
+		loader.set("hello", "{{ for i in 0..99 }}{{ async }}{{ i }}{{ async }}.{{ end }}{{ end }}{{ end }}");
+		template = loader.load("hello");
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			expected.append(i + ".");
+		assertEquals(expected.toString(), template.render(new TemplateContext()));
+
+		// assignments to variables of the context can only be detected at render time
+		loader.set("hello", "{{ async }}{{ n = 1 }}{{ end }}");
+		template = loader.load("hello");
+		try {
+			template.render(new TemplateContext().set("n", 0));
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+
+		loader.set("hello", "a{{ async }}{{ n.foo }}{{ end }}b");
+		template = loader.load("hello");
+		try {
+			template.render(new TemplateContext().set("n", 0));
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFutures () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "<head>{{ user.name }} {{ count + 1 }} {{ for i in items }}{{ i }}{{ end }}");
+		Template template = loader.load("hello");
+
+		Map<String, Object> user = new HashMap<String, Object>();
+		user.put("name", CompletableFuture.completedFuture("Mario"));
+		TemplateContext context = new TemplateContext();
+		context.set("user", CompletableFuture.supplyAsync( () -> user));
+		context.set("count", CompletableFuture.supplyAsync( () -> 2));
+		context.set("items", CompletableFuture.supplyAsync( () -> Arrays.asList(1, 2, 3)));
+		assertEquals("<head>Mario 3 123", template.render(context));
+
+		// the output rendered before waiting for a future is flushed, if enabled
+		CompletableFuture<String> name = new CompletableFuture<String>();
+		user.put("name", name);
+		context.set("user", user);
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			@Override
+			public void flush () throws IOException {
+				name.complete(toString("UTF-8"));
+			}
+		};
+		template.render(context.setFlushBeforeAwait(true), out);
+		assertEquals("<head><head> 3 123", new String(out.toByteArray()));
+		context.setFlushBeforeAwait(false);
+
+		// the results of futures can be used where a value of a specific type is expected
+		MapTemplateLoader conditions = new MapTemplateLoader();
+		TemplateContext flags = new TemplateContext().set("flag", CompletableFuture.completedFuture(true));
+		flags.set("number", CompletableFuture.completedFuture(3));
+		flags.set("holder", Collections.singletonMap("number", CompletableFuture.completedFuture(4)));
+		assertEquals("yes", conditions.set("if", "{{ if flag }}yes{{ else }}no{{ end }}").load("if").render(flags));
+		assertEquals("no", conditions.set("not", "{{ if !flag }}yes{{ else }}no{{ end }}").load("not").render(flags));
+		assertEquals("1", conditions.set("ternary", "{{ flag ? 1 : 2 }}").load("ternary").render(flags));
+		assertEquals("true false", conditions.set("logical", "{{ flag && true }} {{ !flag || false }}").load("logical").render(flags));
+		assertEquals("6 8", conditions.set("arithmetic", "{{ number * 2 }} {{ holder.number * 2 }}").load("arithmetic").render(flags));
+
+		CompletableFuture<Integer> failed = new CompletableFuture<Integer>();
+		failed.completeExceptionally(new IllegalStateException("Couldn't fetch count"));
+		context.set("count", failed);
+		try {
+			template.render(context);
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLazy () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("hello", "{{ a }} {{ a + b }} {{ for parallel i in 1..10 }}{{ c }}{{ end }}{{ async }}{{ d.length }}{{ end }}");
+		Template template = loader.load("hello");
+
+		AtomicInteger calls = new AtomicInteger();
+		TemplateContext context = new TemplateContext();
+		context.setLazy("a", () -> calls.incrementAndGet());
+		context.setLazy("b", () -> 2);
+		context.setLazy("c", () -> {
+			calls.incrementAndGet();
+			return "c";
+		});
+		context.setLazy("d", () -> new int[3]);
+		context.setLazy("unused", () -> {
+			throw new IllegalStateException("Should not be called");
+		});
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c", "d", "unused")), context.getUntouchedLazyValues());
+		assertEquals("1 3 cccccccccc3", template.render(context));
+		assertEquals(2, calls.get());
+		assertEquals(Collections.singleton("unused"), context.getUntouchedLazyValues());
+
+		// calls to macros that aren't inlined don't compute unrelated lazy values
+		loader.set("macros", "{{macro foo(x)}}{{x}}{{end}}{{macro bar(x)}}{{foo(x)}}{{end}}");
+		loader.set("calls", "{{include \"macros\" as m}}{{macro foo(x)}}{{x}}{{end}}{{macro bar(x)}}{{foo(x)}}{{end}}{{bar(n)}} {{m.bar(n)}}");
+		context = new TemplateContext().set("n", 1);
+		context.setLazy("expensive", () -> {
+			throw new IllegalStateException("Should not be called");
+		});
+		assertEquals("1 1", loader.load("calls").render(context));
+		assertEquals(Collections.singleton("expensive"), context.getUntouchedLazyValues());
+	}
+
+	@Test
+	public void testDependencies () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("header", "{{ title }} {{ user.name }}");
+		loader.set("item", "{{ item.price }} {{ currency }}");
+		loader.set("macros", "{{ macro money(value) value.amount \" \" value.currency end }}");
+		loader.set("hello", "{{ include \"header\" }}{{ include \"macros\" as m }}{{ macro row(i) i.name \" \" i[\"sku\"] \" \" i.tags[0] end }}"
+			+ "{{ for item in cart.items }}{{ row(item) }}{{ include \"item\" with (item: item, currency: cart.currency) }}{{ end }}"
+			+ "{{ total = cart.total; m.money(total) }}{{ for i in 1..count }}{{ i }}{{ end }}{{ if (x = user) != null }}{{ x.id }}{{ end }}"
+			+ "{{ format(user.birthday) }}{{ user.getAge() }}");
+		Template template = loader.load("hello");
+
+		Dependencies dependencies = template.getDependencies();
+		assertEquals(new TreeSet<String>(Arrays.asList("cart", "count", "format", "title", "user")), dependencies.getVariables());
+		assertEquals(new TreeSet<String>(Arrays.asList("cart.currency", "cart.items", "cart.items[*]", "cart.items[*].name", "cart.items[*].price",
+			"cart.items[*].sku", "cart.items[*].tags[*]", "cart.total", "cart.total.amount", "cart.total.currency", "count",
+			"format", "title", "user", "user.birthday", "user.id", "user.name")), dependencies.getPaths());
+	}
+
+	@Test
+	public void testSpecialize () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("header", "<h1 class=\"{{ theme.header }}\">{{ strings.title }}</h1>{{ if flags.beta }}beta {{ user }}{{ end }}");
+		loader.set("footer", "{{ year }}");
+		loader.set("hello", "{{ include \"header\" }}{{ if flags.beta && !flags.legacy }}{{ strings[\"greeting\"] }}, {{ user }}{{ elseif flags.legacy }}legacy"
+			+ "{{ else }}hi{{ end }} {{ count = 2 * max }}{{ for i in 1..count }}{{ i }}{{ end }} {{ mode == \"dark\" ? \"night\" : \"day\" }}"
+			+ " {{ include \"footer\" with (year: 2000 + 18) }}{{ mode = \"light\" }}{{ mode }}");
+		Template template = loader.load("hello");
+
+		Map<String, Object> strings = new HashMap<String, Object>();
+		strings.put("title", "Title");
+		strings.put("greeting", "Hello");
+		Map<String, Object> flags = new HashMap<String, Object>();
+		flags.put("beta", true);
+		flags.put("legacy", false);
+		Map<String, Object> theme = new HashMap<String, Object>();
+		theme.put("header", "big");
+		Map<String, Object> constants = new HashMap<String, Object>();
+		constants.put("strings", strings);
+		constants.put("flags", flags);
+		constants.put("theme", theme);
+		constants.put("max", 3);
+		constants.put("mode", "dark");
+
+		Template specialized = template.specialize(constants);
+		assertTrue(specialized == template.specialize(new HashMap<String, Object>(constants)));
+		TemplateContext context = new TemplateContext();
+		for (Map.Entry<String, Object> constant : constants.entrySet())
+			context.set(constant.getKey(), constant.getValue());
+		context.set("user", "Mario");
+		String expected = "<h1 class=\"big\">Title</h1>beta MarioHello, Mario 123456 night 2018light";
+		assertEquals(expected, template.render(context));
+		assertEquals(expected, specialized.render(new TemplateContext().set("user", "Mario")));
+
+		// the flattened header is reduced to text and the user variable, the if statement of the template to its true branch
+		assertEquals("<h1 class=\"big\">Title</h1>beta ", new String(((Text)specialized.getNodes().get(1)).getBytes()));
+		assertEquals(VariableAccess.class, ((FlattenedInclude)specialized.getNodes().get(2)).getNodes().get(0).getClass());
+		assertEquals("Hello, ", new String(((Text)specialized.getNodes().get(3)).getBytes()));
+		assertEquals(VariableAccess.class, specialized.getNodes().get(4).getClass());
+
+		flags = new HashMap<String, Object>();
+		flags.put("beta", false);
+		flags.put("legacy", true);
+		constants.put("flags", flags);
+		assertEquals(template.render(context.set("mode", "dark").set("flags", flags)), template.specialize(constants).render(new TemplateContext().set("user", "Mario")));
+
+		// arguments of calls to inlined macros are specialized
+		template = loader.set("inlined", "{{macro f(a)}}{{a}}{{end}}{{f(n)}} {{x = f(n)}}").load("inlined");
+		assertEquals(InlinedMacroCall.class, template.getNodes().get(1).getClass());
+		assertEquals("3 3", template.render(new TemplateContext().set("n", 3)));
+		assertEquals("3 3", template.specialize(Collections.singletonMap("n", 3)).render(new TemplateContext()));
+	}
+
+	@Test
+	public void testCache () throws InterruptedException {
+		BoundedFragmentCache cache = new BoundedFragmentCache(1024, 1);
+		AstInterpreter.setFragmentCache(cache);
+		try {
+			MapTemplateLoader loader = new MapTemplateLoader();
+			loader.set("hello", "{{ for id in ids }}{{ cache \"tile\" + id }}{{ id }}:{{ counter.incrementAndGet() }} {{ end }}{{ end }}");
+			Template template = loader.load("hello");
+			AtomicInteger counter = new AtomicInteger();
+			TemplateContext context = new TemplateContext().set("ids", new int[] {1, 2, 1}).set("counter", counter);
+			assertEquals("1:1 2:2 1:1 ", template.render(context));
+			assertEquals("1:1 2:2 1:1 ", template.render(context));
+			assertEquals(2, counter.get());
+			assertEquals(4, cache.getHits());
+			assertEquals(2, cache.getMisses());
+
+			// output expires after the time to live
+			loader.set("hello", "{{ cache \"expiring\" ttl 0.05 }}{{ counter.incrementAndGet() }}{{ end }}");
+			template = loader.load("hello");
+			assertEquals("3", template.render(context));
+			assertEquals("3", template.render(context));
+			Thread.sleep(100);
+			assertEquals("4", template.render(context));
+
+			// least recently used output is evicted if the cache is full
+			cache.clear();
+			loader.set("hello", "{{ cache key }}{{ text }}{{ end }}");
+			template = loader.load("hello");
+			char[] text = new char[400];
+			Arrays.fill(text, 'x');
+			for (int i = 0; i < 3; i++)
+				template.render(new TemplateContext().set("key", i).set("text", new String(text)));
+			assertEquals(2, cache.getEntryCount());
+			assertEquals(1, cache.getEvictions());
+			assertEquals("new", template.render(new TemplateContext().set("key", 0).set("text", "new")));
+		} finally {
+			AstInterpreter.setFragmentCache(null);
+		}
+	}
+
+	@Test
+	public void testMemoizedMacro () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("macros", "{{ macro memo price(amount, counter) }}{{ counter.incrementAndGet() }}:{{ amount }}{{ return amount * 2 }}{{ end }}");
+		loader.set("hello", "{{ include \"macros\" as m }}{{ for i in [1, 2, 1] }}{{ x = m.price(i, counter) }}={{ x }} {{ end }}"
+			+ "{{ for i in [1, 1] }}{{ twice(i, counter) }} {{ end }}{{ macro memo twice(n, counter) }}{{ counter.incrementAndGet() }}:{{ n * 2 }}{{ end }}");
+		Template template = loader.load("hello");
+		AtomicInteger counter = new AtomicInteger();
+		assertEquals("1:1=2 2:2=4 1:1=2 3:2 3:2 ", template.render(new TemplateContext().set("counter", counter)));
+		assertEquals(3, counter.get());
+
+		// the output is stored per macro, across renders
+		assertEquals("1:1=2 2:2=4 1:1=2 3:2 3:2 ", template.render(new TemplateContext().set("counter", counter)));
+		assertEquals(3, counter.get());
+	}
+
+	@Test
+	public void testFlattenedIncludes () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("inner", "<i>{{ name }}</i>{{ set = true }}");
+		loader.set("outer", "<o>{{ include \"inner\" }}</o>");
+		loader.set("early", "{{ if name.length() == 0 }}{{ return null }}{{ end }}{{ name }}");
+		loader.set("hello", "<p>{{ include \"outer\" }}{{ set }}{{ include \"early\" }}</p>");
+		Template template = loader.load("hello");
+
+		// text of nested includes is merged, the include that may return early isn't flattened
+		assertEquals("<p><o><i>", new String(((Text)template.getNodes().get(0)).getBytes()));
+		assertEquals(FlattenedInclude.class, template.getNodes().get(1).getClass());
+		assertEquals("</i>", new String(((Text)template.getNodes().get(2)).getBytes()));
+		assertEquals("<p><o><i>Mario</i></o>trueMario</p>", template.render(new TemplateContext().set("name", "Mario")));
+		assertEquals("<p><o><i></i></o>true</p>", template.render(new TemplateContext().set("name", "")));
+
+		// errors are reported for the include
+		try {
+			template.render(new TemplateContext());
+			fail("Expected an error in the included template.");
+		} catch (TemplateException e) {
+			assertTrue(e.getMessage().contains("Error (outer:1): Error in included file."));
+			assertTrue(e.getMessage().contains("Error (inner:1): Couldn't find variable 'name' in context."));
+		}
+
+		// the context of an include with a context is reused across evaluations of the include
+		loader.set("inner", "{{ b = a * 2 }}{{ a }}{{ b }}");
+		loader.set("hello", "{{ for i in 0..2 }}{{ include \"inner\" with (a: i) }}{{ end }}");
+		assertEquals("001224", loader.load("hello").render(new TemplateContext()));
+	}
+
+	@Test
+	public void testExtends () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("layout", "{{ macro greet(n) }}Hi {{ n }}{{ end }}<html><title>{{ block title }}Default{{ end }}</title>{{ block body }}<p>{{ greet(name) }}</p>{{ end }}</html>");
+		loader.set("page", "{{ extends \"layout\" }}\n{{ block title }}Page {{ name }}{{ end }}\n"
+			+ "{{ block body }}{{ shout(name) }}{{ block extra }}!{{ end }}{{ end }}{{ macro shout(n) }}{{ n.toUpperCase() }}{{ end }}");
+		loader.set("subpage", "{{ extends \"page\" }}{{ block extra }}?{{ end }}");
+		TemplateContext context = new TemplateContext().set("name", "mario");
+		assertEquals("<html><title>Default</title><p>Hi mario</p></html>", loader.load("layout").render(context));
+
+		// overriding blocks are evaluated with the template they are defined in, and can be overridden in turn
+		Template page = loader.load("page");
+		assertTrue(page.getIncludes().isEmpty());
+		assertEquals("<html><title>Page mario</title>MARIO!</html>", page.render(context));
+		assertEquals("<html><title>Page mario</title>MARIO?</html>", loader.load("subpage").render(context));
+		assertTrue(page.getDependencies().getVariables().contains("name"));
+
+		loader.set("invalid", "{{ extends \"layout\" }}{{ block footer }}{{ end }}");
+		try {
+			loader.load("invalid");
+			fail("Expected an error for a block that isn't defined by the extended template.");
+		} catch (TemplateException e) {
+			assertTrue(e.getMessage().contains("The extended template doesn't define block 'footer'."));
+		}
+	}
+
+	@Test
+	public void testRenderFragment () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("macros", "{{ macro cell(value) }}<td>{{ value }}</td>{{ end }}");
+		loader.set("layout", "<html>{{ block content }}{{ end }}</html>");
+		loader.set("page", "{{ extends \"layout\" }}{{ include \"macros\" as m }}{{ block content }}<h1>{{ title }}</h1>"
+			+ "{{ block table }}<table>{{ for row in rows }}<tr>{{ m.cell(row) }}</tr>{{ end }}</table>{{ end }}{{ end }}");
+		loader.set("macros2", "{{ include \"macros\" as m }}{{ macro row(label, count) }}{{ m.cell(label) }}{{ return count * 2 }}{{ end }}");
+		TemplateContext context = new TemplateContext().set("title", "Rows").set("rows", Arrays.asList(1, 2)).set("label", "a").set("count", 3);
+
+		Template page = loader.load("page");
+		assertEquals("<table><tr><td>1</td></tr><tr><td>2</td></tr></table>", page.renderFragment("table", context));
+		assertEquals("<h1>Rows</h1><table><tr><td>1</td></tr><tr><td>2</td></tr></table>", page.renderFragment("content", context));
+
+		// macro arguments are taken from the context
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(6, loader.load("macros2").renderFragment("row", context, out));
+		assertEquals("<td>a</td>", new String(out.toByteArray()));
+
+		// macros of an extending template are available as fragments, but don't replace macros of the extended template
+		loader.set("base", "{{ macro cell(value) }}<th>{{ value }}</th>{{ end }}{{ block content }}{{ end }}");
+		loader.set("child", "{{ extends \"base\" }}{{ macro cell(value) }}<td>{{ value }}</td>{{ end }}"
+			+ "{{ macro heading(title) }}<h2>{{ title }}</h2>{{ end }}{{ block content }}{{ heading(title) }}{{ end }}");
+		assertEquals("<h2>Rows</h2>", loader.load("child").renderFragment("heading", context));
+		assertEquals("<th>a</th>", loader.load("child").renderFragment("cell", context.set("value", "a")));
+
+		try {
+			page.renderFragment("footer", context);
+			fail("Expected an error for an unknown fragment.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testExpressions () {
+		Map<String, Object> user = new HashMap<String, Object>();
+		user.put("age", 21);
+		user.put("country", "AT");
+		TemplateContext context = new TemplateContext().set("user", user).set("b", 2);
+		context.set("max", (BiFunction<Integer, Integer, Integer>)Math::max);
+
+		CompiledExpression rule = Expressions.compile("user.age >= 18 && user.country == \"AT\"");
+		assertEquals(true, rule.evaluate(context));
+		user.put("country", "DE");
+		assertEquals(false, rule.evaluate(context));
+		assertTrue(rule == Expressions.compile("user.age >= 18 && user.country == \"AT\""));
+		assertEquals(7, Expressions.evaluate("max(b, 7)", context));
+		Expressions.evaluate("a = b * 3", context);
+		assertEquals(6, context.get("a"));
+
+		// constant operations are evaluated when compiling
+		CompiledExpression constant = Expressions.compile(" 60 * 60 * 24 ");
+		assertEquals(Constant.class, constant.getExpression().getClass());
+		assertEquals(86400, constant.evaluate(context));
+
+		String[] invalid = {"", "a +", "a b", "{{ a }}"};
+		for (String source : invalid) {
+			try {
+				Expressions.compile(source);
+				fail("Expected an error for " + source);
+			} catch (TemplateException e) {
+				// expected
+			}
+		}
+
+		// errors when evaluating are reported as template exceptions
+		try {
+			Expressions.evaluate("b / (b - 2)", context);
+			fail("Expected an error for a division by zero.");
+		} catch (TemplateException e) {
+			assertTrue(e.getCause() instanceof ArithmeticException);
+		}
+	}
+
+	@Test
+	public void testBatchEvaluation () {
+		int size = 1000;
+		long[] quantities = new long[size];
+		double[] prices = new double[size];
+		String[] names = new String[size];
+		for (int i = 0; i < size; i++) {
+			quantities[i] = i;
+			prices[i] = i * 0.5;
+			names[i] = "item" + i;
+		}
+		TemplateContext context = new TemplateContext().set("discount", 0.5);
+
+		for (boolean parallel : new boolean[] {false, true}) {
+			Batch batch = new Batch(size, context).column("quantity", quantities).column("price", prices).column("name", names).parallel(parallel);
+			double[] totals = new double[size];
+			Expressions.compile("quantity * price * discount").evaluate(batch, totals);
+			long[] doubled = new long[size];
+			Expressions.compile("quantity * 2").evaluate(batch, doubled);
+			boolean[] filtered = new boolean[size];
+			Expressions.compile("quantity > 10 && price < 100").evaluate(batch, filtered);
+			Object[] labels = new Object[size];
+			Expressions.compile("name + \":\" + quantity").evaluate(batch, labels);
+			for (int i = 0; i < size; i++) {
+				assertEquals(i * i * 0.5 * 0.5, totals[i], 0);
+				assertEquals(i * 2, doubled[i]);
+				assertEquals(i > 10 && i * 0.5 < 100, filtered[i]);
+				assertEquals("item" + i + ":" + i, labels[i]);
+			}
+		}
+
+		// values of other types are converted, or reported with their row
+		int[] counts = {1, 2, 3};
+		double[] ratios = new double[3];
+		Expressions.compile("count").evaluate(new Batch(3).column("count", counts), ratios);
+		assertEquals(3, ratios[2], 0);
+		try {
+			Expressions.compile("count > 1 ? count : \"many\"").evaluate(new Batch(3).column("count", counts), new long[3]);
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			assertTrue(e.getMessage().contains("Expected an integer in row 0"));
+		}
+		try {
+			new Batch(3).column("count", new int[2]);
+			fail("Expected an error");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBatchRender () throws IOException {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		Template template = loader.set("mail", "{{ greeting = greeting + \"!\" }}{{ greeting }} {{ name }}, you ordered {{ for item in items }}{{ item }}{{ end }}.{{ count = 1 }}").load("mail");
+		List<Map<String, Object>> recipients = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 500; i++) {
+			Map<String, Object> recipient = new HashMap<String, Object>();
+			recipient.put("name", "user" + i);
+			recipient.put("items", Arrays.asList(i, i + 1));
+			recipients.add(recipient);
+		}
+		TemplateContext base = new TemplateContext().set("greeting", "Hi");
+
+		for (boolean ordered : new boolean[] {true, false}) {
+			List<String> outputs = new ArrayList<String>();
+			String[] byIndex = new String[recipients.size()];
+			long count = new BatchRenderer(template).context(base).threads(4).ordered(ordered).render(recipients, (index, variables, output, length) -> {
+				outputs.add(new String(output, 0, length, "UTF-8"));
+				byIndex[(int)index] = outputs.get(outputs.size() - 1);
+				assertEquals(recipients.get((int)index), variables);
+			});
+			assertEquals(recipients.size(), count);
+			for (int i = 0; i < recipients.size(); i++) {
+				String expected = "Hi! user" + i + ", you ordered " + i + (i + 1) + ".";
+				assertEquals(expected, byIndex[i]);
+				if (ordered) assertEquals(expected, outputs.get(i));
+			}
+		}
+		// variables set by the template stay in the batch, shared variables are only shadowed for the element
+		assertEquals(null, base.get("count"));
+		assertEquals("Hi", base.get("greeting"));
+
+		recipients.get(300).put("items", null);
+		try {
+			new BatchRenderer(template).context(base).threads(4).render(recipients, (index, variables, output, length) -> {
+			});
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			// expected
+		}
+		try {
+			new BatchRenderer(template).context(base).threads(4).render(recipients, (index, variables, output, length) -> {
+				throw new IOException("Couldn't send mail.");
+			});
+			fail("Expected an error");
+		} catch (IOException e) {
+			assertEquals("Couldn't send mail.", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSiteGenerator () throws IOException {
+		Path dir = Files.createTempDirectory("basis-template-site");
+		try {
+			Path templates = dir.resolve("templates");
+			Files.createDirectories(templates);
+			Files.write(templates.resolve("page.bt"), "{{ year = year + 0 }}{{ include \"header.bt\" }}{{ body }}{{ include raw \"footer.txt\" }}".getBytes("UTF-8"));
+			Files.write(templates.resolve("header.bt"), "<h1>{{ title }} {{ year }}</h1>".getBytes("UTF-8"));
+			Files.write(templates.resolve("footer.txt"), "<footer>".getBytes("UTF-8"));
+			String template = templates.resolve("page.bt").toString();
+			Path output = dir.resolve("out");
+			Path manifest = dir.resolve("manifest.txt");
+
+			Map<String, Object> a = new HashMap<String, Object>();
+			a.put("title", "A");
+			a.put("body", "Hello");
+			Map<String, Object> b = new HashMap<String, Object>();
+			b.put("title", "B");
+			b.put("body", "World");
+			b.put("unused", "x");
+			List<SiteGenerator.Page> pages = Arrays.asList(new SiteGenerator.Page("a.html", template, a), new SiteGenerator.Page("b/b.html", template, b));
+			Map<String, Object> shared = new HashMap<String, Object>();
+			shared.put("year", 2024);
+
+			assertEquals(2, new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).threads(2).generate(pages).getRendered());
+			assertEquals("<h1>A 2024</h1>Hello<footer>", new String(Files.readAllBytes(output.resolve("a.html")), "UTF-8"));
+			assertEquals("<h1>B 2024</h1>World<footer>", new String(Files.readAllBytes(output.resolve("b/b.html")), "UTF-8"));
+			assertEquals(0, new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).generate(pages).getRendered());
+
+			// variables the template doesn't read don't cause a page to be rendered again
+			b.put("unused", "y");
+			assertEquals(0, new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).generate(pages).getRendered());
+			b.put("body", "Everyone");
+			assertEquals(1, new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).generate(pages).getRendered());
+			assertEquals("<h1>B 2024</h1>Everyone<footer>", new String(Files.readAllBytes(output.resolve("b/b.html")), "UTF-8"));
+
+			// changes to included templates and files, shared variables and missing output files
+			Files.write(templates.resolve("footer.txt"), "</footer>".getBytes("UTF-8"));
+			assertEquals(2, new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).generate(pages).getRendered());
+			shared.put("year", 2025);
+			assertEquals(2, new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).generate(pages).getRendered());
+			Files.delete(output.resolve("a.html"));
+			SiteGenerator.Summary summary = new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared).generate(pages);
+			assertEquals(1, summary.getRendered());
+			assertEquals(1, summary.getSkipped());
+			assertEquals("<h1>A 2025</h1>Hello</footer>", new String(Files.readAllBytes(output.resolve("a.html")), "UTF-8"));
+			assertTrue(new String(Files.readAllBytes(manifest), "UTF-8").contains("page\tb/b.html\t" + template + "\n"));
+
+			// a generator used for several runs loads templates again if their files changed
+			SiteGenerator generator = new SiteGenerator(new FileTemplateLoader(), output, manifest).shared(shared);
+			assertEquals(0, generator.generate(pages).getRendered());
+			Files.write(templates.resolve("header.bt"), "<h2>{{ title }} {{ year }}</h2>".getBytes("UTF-8"));
+			assertEquals(2, generator.generate(pages).getRendered());
+			assertEquals("<h2>A 2025</h2>Hello</footer>", new String(Files.readAllBytes(output.resolve("a.html")), "UTF-8"));
+			assertEquals(0, generator.generate(pages).getRendered());
+		} finally {
+			try (Stream<Path> paths = Files.walk(dir)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	@Test
+	public void testFrozenContext () throws InterruptedException {
+		Map<String, Object> variables = new HashMap<String, Object>();
+		for (int i = 0; i < 50; i++)
+			variables.put("global" + i, i);
+		variables.put("greeting", "Hello");
+		variables.put("missing", null);
+		FrozenContext frozen = new FrozenContext(variables);
+		assertEquals(51, frozen.getVariables().size());
+		for (int i = 0; i < 50; i++)
+			assertEquals(i, frozen.get("global" + i));
+		assertEquals(null, frozen.get("missing"));
+		assertEquals(null, frozen.get("other"));
+
+		MapTemplateLoader loader = new MapTemplateLoader();
+		Template template = loader.set("hello", "{{ greeting }} {{ name }} {{ global42 }}").load("hello");
+		TemplateContext context = new TemplateContext(frozen).set("name", "Mario");
+		assertEquals("Hello Mario 42", template.render(context));
+		assertTrue(context.getFrozenContext() == frozen);
+		assertTrue(!context.getVariables().contains("greeting"));
+
+		// variables set on a context shadow the frozen variables, without affecting other contexts
+		assertEquals("Ciao Mario 0", loader.set("shadow", "{{ greeting = \"Ciao\"; global42 = 0 }}{{ greeting }} {{ name }} {{ global42 }}").load("shadow").render(context));
+		assertEquals("Hello Mario 42", template.render(new TemplateContext(frozen).set("name", "Mario")));
+		assertEquals("Hello", frozen.get("greeting"));
+		context.clear();
+		assertEquals("Hello null 42", template.render(context.set("name", "null")));
+
+		// parallel for loops and async blocks see the frozen variables
+		assertEquals("Hello 0 Hello 1 ", loader.set("parallel", "{{ for parallel i in 0..1 }}{{ greeting }} {{ i }} {{ end }}").load("parallel").render(new TemplateContext(frozen)));
+		assertEquals("Hello", loader.set("async", "{{ async }}{{ greeting }}{{ end }}").load("async").render(new TemplateContext(frozen)));
+
+		// contexts on top of the same frozen context can be used concurrently
+		List<Thread> threads = new ArrayList<Thread>();
+		AtomicInteger failures = new AtomicInteger();
+		for (int i = 0; i < 4; i++) {
+			String name = "user" + i;
+			Thread thread = new Thread( () -> {
+				for (int j = 0; j < 1000; j++) {
+					if (!template.render(new TemplateContext(frozen).set("name", name)).equals("Hello " + name + " 42")) failures.incrementAndGet();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(0, failures.get());
+	}
+
+	@Test
+	public void testTemplateContextPool () {
+		FrozenContext frozen = new FrozenContext(Collections.singletonMap("greeting", "Hello"));
+		TemplateContextPool pool = new TemplateContextPool(frozen);
+		Template template = new MapTemplateLoader().set("hello", "{{ greeting }} {{ name }}{{ for i in 0..1 }}{{ i }}{{ end }}").load("hello");
+
+		TemplateContext context = pool.acquire();
+		assertEquals("Hello Mario01", template.render(context.set("name", "Mario")));
+		pool.release(context);
+		assertEquals(1, pool.getSize());
+		try {
+			context.get("name");
+			fail("Expected an error");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			pool.release(context);
+			fail("Expected an error");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			pool.release(new TemplateContext());
+			fail("Expected an error");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// released contexts are reused without the variables of their previous use
+		TemplateContext reused = pool.acquire();
+		assertTrue(reused == context);
+		assertEquals(null, reused.get("name"));
+		assertTrue(reused.getVariables().isEmpty());
+		for (int i = 0; i < 1000; i++)
+			reused.set("variable" + i, i);
+		pool.release(reused);
+		assertTrue(pool.acquire().getVariables().isEmpty());
+
+		// in debug mode, released contexts are discarded, so every later use is detected
+		pool.setDebug(true);
+		TemplateContext debugged = pool.acquire();
+		pool.release(debugged);
+		assertTrue(pool.acquire() != debugged);
+		try {
+			template.render(debugged);
+			fail("Expected an error");
+		} catch (TemplateException e) {
+			assertTrue(e.getMessage().contains("The context was used after it was released to its pool."));
+		}
+	}
+
+	@Test
+	public void testCallBinding () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		// the macros return, so calls to them aren't inlined
+		loader.set("macros", "{{ macro greet(name) }}{{ if name == null }}{{ return \"nobody\" }}{{ end }}Hello {{ name }}{{ end }}");
+		loader.set("other", "{{ macro greet(name) }}Ciao {{ name }}{{ end }}");
+		loader.set("hello", "{{ include \"macros\" as m }}{{ m.greet(name) }} {{ hi(name) }}{{ include \"other\" as o; m = o; m.greet(name) }}"
+			+ "{{ macro hi(name) }}{{ if name == null }}{{ return \"nobody\" }}{{ end }}Hi {{ name }}{{ end }}");
+		Template template = loader.load("hello");
+		Template macros = loader.load("macros");
+		assertTrue(((MethodCall)template.getNodes().get(1)).getBoundMacro() == macros.getMacros().get("greet"));
+		assertTrue(((FunctionCall)template.getNodes().get(3)).getBoundMacro() == template.getMacros().get("hi"));
+
+		// a context variable takes precedence over a bound macro, an alias assigned another value isn't bound
+		TemplateContext context = new TemplateContext().set("name", "Mario");
+		assertEquals("Hello Mario Hi MarioCiao Mario", template.render(context));
+		context.set("hi", (Function<String, String>)n -> "Hey " + n);
+		assertEquals("Hello Mario Hey MarioCiao Mario", template.render(context));
+	}
+
+	@Test
+	public void testInlineMacros () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("macros", "{{ macro td(value) }}<td>{{ value }}</td>{{ end }}{{ macro row(values) }}{{ for v in values }}{{ td(v) }}{{ end }}{{ end }}");
+		loader.set("hello", "{{ include \"macros\" as m }}{{ for v in values }}{{ m.td(v) }}{{ cell(v, 1) }}{{ end }}{{ value }}"
+			+ "{{ macro cell(value, i) }}{{ for j in i..2 }}[{{ value }}{{ j }}]{{ end }}{{ end }}{{ m.row(values) }}");
+		Template template = loader.load("hello");
+		ForStatement loop = (ForStatement)template.getNodes().get(1);
+		assertEquals(InlinedMacroCall.class, loop.getBody().get(0).getClass());
+		assertEquals(InlinedMacroCall.class, loop.getBody().get(1).getClass());
+		// calls other macros, not inlined
+		assertEquals(MethodCall.class, template.getNodes().get(4).getClass());
+
+		// arguments don't leak into the calling scope
+		TemplateContext context = new TemplateContext().set("values", new int[] {1, 2}).set("value", "x");
+		assertEquals("<td>1</td>[11][12]<td>2</td>[21][22]x<td>1</td><td>2</td>", template.render(context));
+
+		// a variable named like the macro takes precedence over it
+		context.set("cell", (BiFunction<Integer, Integer, String>)(value, i) -> "(" + value + ")");
+		assertEquals("<td>1</td>(1)<td>2</td>(2)x<td>1</td><td>2</td>", template.render(context));
+
+		// errors point at the macro source
+		loader.set("macros", "{{ macro td(value) }}{{ value.foo }}{{ end }}");
+		loader.set("hello", "{{ include \"macros\" as m }}{{ m.td(1) }}");
+		try {
+			loader.load("hello").render(new TemplateContext());
+			fail("Expected an error in the macro body.");
+		} catch (TemplateException e) {
+			assertEquals("macros", e.getLocation().getSource().getPath());
+		}
+	}
+
+	@Test
+	public void testPrerender () {
+		MapTemplateLoader loader = new MapTemplateLoader();
+		loader.set("header", "<header>{{ 2 * 3 }}</header>");
+		loader.set("footer", "<footer>{{ year }}</footer>");
+		loader.set("hello", "{{ include \"header\" }}{{ badge(\"new\", 2 + 1) }}{{ badge(label, 1) }}{{ include \"footer\" with (year: 2018) }}"
+			+ "{{ macro badge(text, count) }}<b>{{ text }}{{ if count > 2 }}!{{ end }}</b>{{ end }}");
+		Template template = loader.load("hello");
+
+		// the includes and the macro call with constant arguments are pre-rendered, the other call is inlined
+		assertEquals(Text.class, template.getNodes().get(0).getClass());
+		assertEquals(PrerenderedCall.class, template.getNodes().get(1).getClass());
+		assertEquals(InlinedMacroCall.class, template.getNodes().get(2).getClass());
+		assertEquals(Text.class, template.getNodes().get(3).getClass());
+		assertEquals("<header>6</header>", new String(((Text)template.getNodes().get(0)).getBytes()));
+		assertEquals("<footer>2018</footer>", new String(((Text)template.getNodes().get(3)).getBytes()));
+		assertEquals("<header>6</header><b>new!</b><b>hot</b><footer>2018</footer>", template.render(new TemplateContext().set("label", "hot")));
+
+		// a context variable named like the macro takes precedence over it
+		TemplateContext context = new TemplateContext().set("label", "hot").set("badge", (BiFunction<String, Integer, String>)(text, count) -> text + count);
+		assertEquals("<header>6</header>new3hot1<footer>2018</footer>", template.render(context));
+
+		// calls reading the context or macros with return values are not pre-rendered
+		loader.set("hello", "{{ a(1) }}{{ b(1) }}{{ macro a(n) }}{{ n + x }}{{ end }}{{ macro b(n) }}{{ return n }}{{ end }}");
+		template = loader.load("hello");
+		assertEquals(FunctionCall.class, template.getNodes().get(0).getClass());
+		assertEquals(FunctionCall.class, template.getNodes().get(1).getClass());
+	}
+
 	@Test
 	public void testIf () {
 		MapTemplateLoader loader = new MapTemplateLoader();
@@ -2,8 +2,10 @@
 package io.marioslab.basis.template;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.HashSet;
 import java.util.List;
@@ -12,11 +14,15 @@ import java.util.Set;
 
 import org.junit.Test;
 
+import io.marioslab.basis.template.Error.TemplateException;
 import io.marioslab.basis.template.TemplateLoader.Source;
+import io.marioslab.basis.template.parsing.Ast.AsyncBlock;
 import io.marioslab.basis.template.parsing.Ast.BinaryOperation;
 import io.marioslab.basis.template.parsing.Ast.BinaryOperation.BinaryOperator;
+import io.marioslab.basis.template.parsing.Ast.Block;
 import io.marioslab.basis.template.parsing.Ast.BooleanLiteral;
 import io.marioslab.basis.template.parsing.Ast.ByteLiteral;
+import io.marioslab.basis.template.parsing.Ast.CacheBlock;
 import io.marioslab.basis.template.parsing.Ast.CharacterLiteral;
 import io.marioslab.basis.template.parsing.Ast.DoubleLiteral;
 import io.marioslab.basis.template.parsing.Ast.Expression;
@@ -474,6 +480,109 @@ public class ParserTest {
 		assertEquals(Text.class, forStmt.getBody().get(2).getClass());
 	}
 
+	@Test
+	public void testParallelForStatement () {
+		List<Node> nodes = new Parser().parse(new Source("test", "{{ for parallel x in y }}{{ t = x }}{{ end }}{{ for parallel in y }}{{ end }}")).getNodes();
+		assertEquals(2, nodes.size());
+		ForStatement forStmt = (ForStatement)nodes.get(0);
+		assertTrue(forStmt.isParallel());
+		assertEquals("x", forStmt.getValueName().getText());
+		forStmt = (ForStatement)nodes.get(1);
+		assertFalse(forStmt.isParallel());
+		assertEquals("parallel", forStmt.getValueName().getText());
+
+		// break in a nested loop is fine
+		new Parser().parse(new Source("test", "{{ for parallel x in y }}{{ while true break end }}{{ end }}"));
+
+		String[] invalid = {"{{ for parallel x in y }}{{ break }}{{ end }}", "{{ for parallel x in y }}{{ return }}{{ end }}",
+			"{{ t = 0; for parallel x in y }}{{ t = x }}{{ end }}", "{{ for a in b for parallel x in y }}{{ a = x }}{{ end end }}",
+			"{{ macro m(a) for parallel x in y }}{{ a = x }}{{ end end }}", "{{ for parallel x in y t = 0 for parallel z in x t = z end end }}"};
+		for (String source : invalid) {
+			try {
+				new Parser().parse(new Source("test", source));
+				fail("Expected a load-time error for " + source);
+			} catch (TemplateException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testAsyncBlock () {
+		ParserResult result = new Parser().parse(new Source("test", "{{ async }}a{{ b }}{{ end }}{{ include async \"c\" with (d: 1) }}"));
+		List<Node> nodes = result.getNodes();
+		assertEquals(2, nodes.size());
+		assertEquals(2, ((AsyncBlock)nodes.get(0)).getBody().size());
+		AsyncBlock block = (AsyncBlock)nodes.get(1);
+		assertEquals(1, block.getBody().size());
+		assertEquals("\"c\"", ((Include)block.getBody().get(0)).getPath().getText());
+		assertEquals(1, result.getIncludes().size());
+
+		// break and continue in a nested loop are fine
+		new Parser().parse(new Source("test", "{{ async for x in y }}{{ continue }}{{ break }}{{ end end }}"));
+
+		String[] invalid = {"{{ async }}{{ break }}{{ end }}", "{{ for x in y async }}{{ continue }}{{ end end }}",
+			"{{ async }}{{ return }}{{ end }}", "{{ t = 0; async }}{{ t = 1 }}{{ end }}", "{{ for x in y async x = 1 end end }}",
+			"{{ include async \"c\" as c }}"};
+		for (String source : invalid) {
+			try {
+				new Parser().parse(new Source("test", source));
+				fail("Expected a load-time error for " + source);
+			} catch (TemplateException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testCacheBlock () {
+		List<Node> nodes = new Parser().parse(new Source("test", "{{ cache \"tile\" + id }}a{{ b }}{{ end }}{{ cache id ttl 60 }}c{{ end }}")).getNodes();
+		assertEquals(2, nodes.size());
+		CacheBlock block = (CacheBlock)nodes.get(0);
+		assertEquals(BinaryOperation.class, block.getKey().getClass());
+		assertEquals(null, block.getTimeToLive());
+		assertEquals(2, block.getBody().size());
+		block = (CacheBlock)nodes.get(1);
+		assertEquals(IntegerLiteral.class, block.getTimeToLive().getClass());
+		assertEquals(1, block.getBody().size());
+
+		String[] invalid = {"{{ for x in y cache x }}{{ break }}{{ end end }}", "{{ cache x }}{{ return }}{{ end }}", "{{ t = 0; cache x }}{{ t = 1 }}{{ end }}"};
+		for (String source : invalid) {
+			try {
+				new Parser().parse(new Source("test", source));
+				fail("Expected a load-time error for " + source);
+			} catch (TemplateException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testBlock () {
+		ParserResult result = new Parser().parse(new Source("test", "{{ block title }}a{{ b }}{{ block inner }}c{{ end }}{{ end }}"));
+		assertNull(result.getExtendedPath());
+		assertEquals(1, result.getNodes().size());
+		Block block = (Block)result.getNodes().get(0);
+		assertEquals("title", block.getName().getText());
+		assertEquals(3, block.getBody().size());
+		assertEquals("inner", ((Block)block.getBody().get(2)).getName().getText());
+
+		result = new Parser().parse(new Source("test", " {{ extends \"layout\" }}\n{{ include \"macros\" as m }}{{ block title }}a{{ end }}{{ macro m() }}{{ end }}"));
+		assertEquals("\"layout\"", result.getExtendedPath().getText());
+
+		String[] invalid = {"{{ block a }}{{ end }}{{ block a }}{{ end }}", "{{ macro m() }}{{ block a }}{{ end }}{{ end }}", "{{ block a }}{{ return }}{{ end }}",
+			"text{{ extends \"layout\" }}", "{{ extends \"layout\" }}text", "{{ extends \"layout\" }}{{ block a }}{{ extends \"other\" }}{{ end }}",
+			"{{ extends \"layout\" }}{{ a = 1 }}"};
+		for (String source : invalid) {
+			try {
+				new Parser().parse(new Source("test", source));
+				fail("Expected a load-time error for " + source);
+			} catch (TemplateException e) {
+				// expected
+			}
+		}
+	}
+
 	@Test
 	public void testWhileStatement () {
 		List<Node> nodes = new Parser().parse(new Source("test", "{{ while true }} true body {{expr}} {{ end }}")).getNodes();
@@ -524,6 +633,22 @@ public class ParserTest {
 		}
 	}
 
+	@Test
+	public void testMemoizedMacro () {
+		Macros macros = new Parser().parse(new Source("test", "{{ include \"m\" as m }}{{ macro memo price(a, c) }}{{ s = m.format(a) + c; for x in s }}{{ x }}{{ end }}{{ other() }}{{ end }}"
+			+ "{{ macro other() }}{{ end }}{{ macro memo() }}{{ end }}")).getMacros();
+		assertTrue(macros.get("price").isMemoized());
+		assertTrue(!macros.get("other").isMemoized());
+		assertTrue(!macros.get("memo").isMemoized());
+
+		try {
+			new Parser().parse(new Source("test", "{{ macro memo price(a) }}{{ a }} {{ currency }}{{ end }}"));
+			fail("Memoized macros can only read their arguments.");
+		} catch (TemplateException e) {
+			// expected
+		}
+	}
+
 	@Test
 	public void testInclude () {
 		List<Node> nodes = new Parser().parse(new Source("test", "{{ include \"othertemplate.html\" with ( key1: 1 * 2 + 3, key2: \"test\" ) }}")).getNodes();
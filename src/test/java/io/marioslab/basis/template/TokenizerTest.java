@@ -54,6 +54,19 @@ public class TokenizerTest {
 		}
 	}
 
+	@Test
+	public void testRange () {
+		List<Token> tokens = new Tokenizer().tokenize(new Source("test", "{{ 0..10 a..b 1.5 }}"));
+		assertEquals(7, tokens.size());
+		assertEquals(TokenType.IntegerLiteral, tokens.get(0).getType());
+		assertEquals(TokenType.DoubleDot, tokens.get(1).getType());
+		assertEquals(TokenType.IntegerLiteral, tokens.get(2).getType());
+		assertEquals(TokenType.Identifier, tokens.get(3).getType());
+		assertEquals(TokenType.DoubleDot, tokens.get(4).getType());
+		assertEquals(TokenType.Identifier, tokens.get(5).getType());
+		assertEquals(TokenType.FloatLiteral, tokens.get(6).getType());
+	}
+
 	@Test
 	public void testTokenizer () {
 		List<Token> tokens = new Tokenizer().tokenize(new Source("test",